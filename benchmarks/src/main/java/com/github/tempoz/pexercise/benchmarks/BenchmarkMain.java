@@ -0,0 +1,27 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import java.io.IOException;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the usual JMH command line, always adding the
+// gc profiler so that allocation rates are reported next to throughput.
+public class BenchmarkMain {
+  public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+    var command_line = new CommandLineOptions(args);
+    if (command_line.shouldHelp() || command_line.shouldList() || command_line.shouldListProfilers() ||
+        command_line.shouldListResultFormats() || command_line.shouldListWithParams()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    var options = new OptionsBuilder()
+      .parent(command_line)
+      .addProfiler(GCProfiler.class)
+      .build();
+    new Runner(options).run();
+  }
+}
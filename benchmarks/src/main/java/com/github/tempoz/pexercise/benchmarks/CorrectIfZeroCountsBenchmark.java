@@ -0,0 +1,42 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.ProcessImageRunner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Fixing up the selected colors of images with fewer than three colors.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CorrectIfZeroCountsBenchmark {
+  // Number of distinct colors found in the image.
+  @Param({"0", "1", "2", "3"})
+  public int found;
+
+  private final int[] colors = new int[3];
+  private final int[] counts = new int[3];
+  private final int[] initial_colors = {0x123456, 0x654321, 0xabcdef};
+  private final int[] initial_counts = new int[3];
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < found; ++i) {
+      initial_counts[i] = 3 - i;
+    }
+  }
+
+  @Benchmark
+  public int[] correctIfZeroCounts() {
+    System.arraycopy(initial_colors, 0, colors, 0, 3);
+    System.arraycopy(initial_counts, 0, counts, 0, 3);
+    ProcessImageRunner.correctIfZeroCounts(colors, counts);
+    return colors;
+  }
+}
@@ -0,0 +1,220 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+// A local stand-in for the image hosts, serving a fixed set of images
+// over http and https with configurable latency and bandwidth. The path
+// decides the response:
+//
+//   /image/NAME     200 with the image NAME
+//   /missing/NAME   404
+//   /error/NAME     500
+//   /redirect/NAME  301 to https /image/NAME, as some hosts do for http
+//
+// Anything after a '?' is ignored, so distinct URLs can share an image.
+// Images are served with an ETag and a Last-Modified of the time the
+// server started, and with a Cache-Control max-age if one is given, and
+// a request with a matching If-None-Match is answered with a 304.
+// The https certificate is self-signed for 127.0.0.1 and installed as
+// the default SSLContext of this JVM, so the pipeline trusts it.
+public class ImageServer implements AutoCloseable {
+  private static final String KEYSTORE_PASSWORD = "pexercise";
+
+  private final Map<String, byte[]> images;
+  private final long latency_ms;
+  private final long bytes_per_second;
+  private final long max_age_seconds;
+  private final String last_modified =
+    DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    var thread = new Thread(runnable, "image-server");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private HttpServer http_server;
+  private HttpsServer https_server;
+
+  // bytes_per_second of 0 serves each response as fast as possible, and
+  // max_age_seconds of 0 sends no Cache-Control.
+  public ImageServer(Map<String, byte[]> images, long latency_ms, long bytes_per_second, long max_age_seconds) {
+    this.images = images;
+    this.latency_ms = latency_ms;
+    this.bytes_per_second = bytes_per_second;
+    this.max_age_seconds = max_age_seconds;
+  }
+
+  public ImageServer(Map<String, byte[]> images, long latency_ms, long bytes_per_second) {
+    this(images, latency_ms, bytes_per_second, 0);
+  }
+
+  public void start() throws IOException, GeneralSecurityException, InterruptedException {
+    var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    https_server = HttpsServer.create(address, 0);
+    https_server.setHttpsConfigurator(new HttpsConfigurator(selfSignedContext()));
+    https_server.createContext("/", this::handle);
+    https_server.setExecutor(executor);
+    https_server.start();
+
+    http_server = HttpServer.create(address, 0);
+    http_server.createContext("/", this::handle);
+    http_server.setExecutor(executor);
+    http_server.start();
+  }
+
+  public String httpBase() {
+    return "http://127.0.0.1:" + http_server.getAddress().getPort();
+  }
+
+  public String httpsBase() {
+    return "https://127.0.0.1:" + https_server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    http_server.stop(0);
+    https_server.stop(0);
+    executor.shutdownNow();
+  }
+
+  // Generates a key pair with keytool, which ships with every JDK, and
+  // makes it both the server's key and this JVM's only trusted
+  // certificate.
+  private static SSLContext selfSignedContext()
+      throws IOException, GeneralSecurityException, InterruptedException {
+    final Path directory = Files.createTempDirectory("pexercise-keystore");
+    final Path keystore_path = directory.resolve("keystore.p12");
+    final Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+    var keytool_process = new ProcessBuilder(keytool.toString(),
+        "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+        "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1,dns:localhost",
+        "-storetype", "PKCS12", "-keystore", keystore_path.toString(),
+        "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD)
+      .redirectErrorStream(true)
+      .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+      .start();
+    if (keytool_process.waitFor() != 0) {
+      throw new IOException("keytool failed to generate a certificate");
+    }
+
+    var keystore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = new FileInputStream(keystore_path.toFile())) {
+      keystore.load(in, KEYSTORE_PASSWORD.toCharArray());
+    }
+    Files.delete(keystore_path);
+    Files.delete(directory);
+
+    var key_managers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    key_managers.init(keystore, KEYSTORE_PASSWORD.toCharArray());
+    var trust_managers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trust_managers.init(keystore);
+    var context = SSLContext.getInstance("TLS");
+    context.init(key_managers.getKeyManagers(), trust_managers.getTrustManagers(), null);
+    SSLContext.setDefault(context);
+    HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+    return context;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (latency_ms > 0) {
+        try {
+          Thread.sleep(latency_ms);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+
+      final String path = exchange.getRequestURI().getPath();
+      final int slash = path.indexOf('/', 1);
+      final String kind = slash < 0 ? "" : path.substring(1, slash);
+      final String name = slash < 0 ? "" : path.substring(slash + 1);
+      final byte[] image = images.get(name);
+
+      if (kind.equals("redirect") && image != null) {
+        exchange.getResponseHeaders().set("Location", httpsBase() + "/image/" + name);
+        exchange.sendResponseHeaders(301, -1);
+      } else if (kind.equals("error")) {
+        exchange.sendResponseHeaders(500, -1);
+      } else if (!kind.equals("image") || image == null) {
+        exchange.sendResponseHeaders(404, -1);
+      } else {
+        final String etag = "\"" + Integer.toHexString(Arrays.hashCode(image)) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Last-Modified", last_modified);
+        if (max_age_seconds > 0) {
+          exchange.getResponseHeaders().set("Cache-Control", "max-age=" + max_age_seconds);
+        }
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          exchange.getResponseHeaders().set("Content-Type", contentType(name));
+          exchange.sendResponseHeaders(200, image.length);
+          write(exchange.getResponseBody(), image);
+        }
+      }
+    }
+  }
+
+  private static String contentType(String name) {
+    if (name.endsWith(".png")) {
+      return "image/png";
+    }
+    if (name.endsWith(".gif")) {
+      return "image/gif";
+    }
+    return "image/jpeg";
+  }
+
+  // Writes body in chunks, sleeping between them to stay under
+  // bytes_per_second.
+  private void write(OutputStream out, byte[] body) throws IOException {
+    if (bytes_per_second <= 0) {
+      out.write(body);
+      return;
+    }
+    final int chunk = (int) Math.max(1024, Math.min(64 * 1024, bytes_per_second / 20));
+    final long start = System.nanoTime();
+    for (int written = 0; written < body.length; ) {
+      final int length = Math.min(chunk, body.length - written);
+      out.write(body, written, length);
+      written += length;
+      final long due = start + written * 1_000_000_000L / bytes_per_second;
+      final long wait = due - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.LinesFromFileChannel;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Reading every line of a URL list, at different read buffer sizes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LinesFromFileChannelBenchmark {
+  @Param({"512", "4096", "65536"})
+  public int buffer_size;
+
+  @Param({"100000"})
+  public int lines;
+
+  private Path path;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    path = Files.createTempFile("pexercise-lines", ".txt");
+    var contents = new StringBuilder();
+    for (int i = 0; i < lines; ++i) {
+      contents.append("https://i.example.com/").append(Integer.toHexString(i * 0x9E3779B9)).append(".jpg\r\n");
+    }
+    Files.write(path, contents.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.delete(path);
+  }
+
+  @Benchmark
+  public int readLines() throws IOException {
+    int length = 0;
+    try (var file = FileChannel.open(path, StandardOpenOption.READ)) {
+      for (CharSequence line : new LinesFromFileChannel(file, buffer_size)) {
+        length += line.length();
+      }
+    }
+    return length;
+  }
+}
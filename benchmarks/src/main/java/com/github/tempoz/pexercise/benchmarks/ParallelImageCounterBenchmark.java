@@ -0,0 +1,66 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.FetchedImage;
+import com.github.tempoz.pexercise.Options;
+import com.github.tempoz.pexercise.Pair;
+import com.github.tempoz.pexercise.PipelineListener;
+import com.github.tempoz.pexercise.ProcessImageRunner;
+import com.github.tempoz.pexercise.ResultRow;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Processing a single large image counted in stripes on a pool of
+// stripe_threads threads, or on the calling thread alone for 1.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParallelImageCounterBenchmark {
+  // Side of the square image in pixels.
+  @Param({"2048", "4096"})
+  public int size;
+
+  // Number of distinct colors drawn from.
+  @Param({"4096", "1000000"})
+  public int colors;
+
+  @Param({"1", "2", "4", "8"})
+  public int stripe_threads;
+
+  private BufferedImage image;
+  private ForkJoinPool pool;
+  private ProcessImageRunner runner;
+
+  @Setup
+  public void setup() {
+    image = SyntheticImages.create(size, size, colors, BufferedImage.TYPE_3BYTE_BGR, 2);
+    var options = new Options();
+    options.stripe_threads = stripe_threads;
+    options.stripe_min_pixels = 1;
+    pool = stripe_threads > 1 ? new ForkJoinPool(stripe_threads) : null;
+    runner = new ProcessImageRunner(new ArrayBlockingQueue<Pair<String, FetchedImage>>(1),
+        new ArrayBlockingQueue<ResultRow>(1), options, PipelineListener.NONE, pool);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public int[] processImage() {
+    return runner.processImage("", image);
+  }
+}
@@ -0,0 +1,314 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.Options;
+import com.github.tempoz.pexercise.Pipeline;
+import com.github.tempoz.pexercise.PipelineListener;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.ImageIO;
+
+// Runs the whole pipeline against a local ImageServer serving a generated
+// corpus, so that runs are reproducible and comparable, sweeping the
+// same thread counts and queue capacities as benchmarks.txt. Run with
+//
+//   java -cp target/benchmarks.jar com.github.tempoz.pexercise.benchmarks.PipelineBenchmark [options]
+//
+// Options are --name=value, where the pipeline dimensions take comma
+// separated lists to sweep over. See USAGE for the defaults. Any other
+// option is passed on to the pipeline, for example --counter=radix.
+public class PipelineBenchmark {
+  private static final String USAGE =
+    "Usage: PipelineBenchmark [options]\n" +
+    "  --images=N               distinct images in the corpus (default 40)\n" +
+    "  --urls=N                 lines in the input file (default 1000)\n" +
+    "  --min-size=N             smallest image side in pixels (default 256)\n" +
+    "  --max-size=N             largest image side in pixels (default 2048)\n" +
+    "  --duplicate-ratio=F      fraction of lines repeating an earlier URL (default 0.9)\n" +
+    "  --not-found-rate=F       fraction of new URLs answering 404 (default 0.01)\n" +
+    "  --error-rate=F           fraction of new URLs answering 500 (default 0.01)\n" +
+    "  --redirect-rate=F        fraction of new URLs redirecting http -> https (default 0.1)\n" +
+    "  --latency-ms=N           delay before each response (default 50)\n" +
+    "  --bandwidth-kbps=N       KB/s per response, 0 for unlimited (default 0)\n" +
+    "  --seed=N                 seed for the corpus and input (default 1)\n" +
+    "  --runs=N                 runs per configuration (default 1)\n" +
+    "  --fetch-threads=N,...    (default 4,8,16)\n" +
+    "  --process-threads=N,...  (default 1,2,4)\n" +
+    "  --url-queue=N,...        (default 64)\n" +
+    "  --image-queue=N,...      (default 16)\n" +
+    "  --result-queue=N,...     (default 64)\n" +
+    "Other options are passed on to the pipeline:\n" + Options.USAGE;
+
+  private int images = 40;
+  private int urls = 1000;
+  private int min_size = 256;
+  private int max_size = 2048;
+  private double duplicate_ratio = 0.9;
+  private double not_found_rate = 0.01;
+  private double error_rate = 0.01;
+  private double redirect_rate = 0.1;
+  private long latency_ms = 50;
+  private long bandwidth_kbps = 0;
+  private long seed = 1;
+  private int runs = 1;
+  private int[] fetch_threads = {4, 8, 16};
+  private int[] process_threads = {1, 2, 4};
+  private int[] url_queue = {64};
+  private int[] image_queue = {16};
+  private int[] result_queue = {64};
+  private List<String> pipeline_args = new ArrayList<>();
+
+  public static void main(String[] args) throws Exception {
+    var benchmark = new PipelineBenchmark();
+    try {
+      benchmark.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+    }
+    benchmark.run();
+  }
+
+  private void parse(String[] args) {
+    for (String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Malformed option " + arg);
+      }
+      final String name = arg.substring(2, equals);
+      final String value = arg.substring(equals + 1);
+      try {
+        switch (name) {
+          case "images": images = Integer.parseInt(value); break;
+          case "urls": urls = Integer.parseInt(value); break;
+          case "min-size": min_size = Integer.parseInt(value); break;
+          case "max-size": max_size = Integer.parseInt(value); break;
+          case "duplicate-ratio": duplicate_ratio = Double.parseDouble(value); break;
+          case "not-found-rate": not_found_rate = Double.parseDouble(value); break;
+          case "error-rate": error_rate = Double.parseDouble(value); break;
+          case "redirect-rate": redirect_rate = Double.parseDouble(value); break;
+          case "latency-ms": latency_ms = Long.parseLong(value); break;
+          case "bandwidth-kbps": bandwidth_kbps = Long.parseLong(value); break;
+          case "seed": seed = Long.parseLong(value); break;
+          case "runs": runs = Integer.parseInt(value); break;
+          case "fetch-threads": fetch_threads = parseList(value); break;
+          case "process-threads": process_threads = parseList(value); break;
+          case "url-queue": url_queue = parseList(value); break;
+          case "image-queue": image_queue = parseList(value); break;
+          case "result-queue": result_queue = parseList(value); break;
+          default: pipeline_args.add(arg); break;
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+      }
+    }
+    // Fail before generating anything if these are invalid.
+    Options.parse(pipeline_args.toArray(new String[0]));
+  }
+
+  private static int[] parseList(String value) {
+    return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+  }
+
+  // Encodes the corpus, cycling through JPEG, PNG and GIF, keyed by the
+  // file name the server knows them by.
+  private Map<String, byte[]> generateCorpus(Random random) throws IOException {
+    final String[] formats = {"jpg", "png", "gif"};
+    final int[] types = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_INDEXED};
+    final int[] color_counts = {16, 256, 4096};
+    var corpus = new HashMap<String, byte[]>();
+    for (int i = 0; i < images; ++i) {
+      final int width = min_size + random.nextInt(max_size - min_size + 1);
+      final int height = min_size + random.nextInt(max_size - min_size + 1);
+      final int colors = color_counts[random.nextInt(color_counts.length)];
+      final BufferedImage image = SyntheticImages.create(width, height, colors, types[i % 3], random.nextLong());
+      var encoded = new ByteArrayOutputStream();
+      if (!ImageIO.write(image, formats[i % 3], encoded)) {
+        throw new IOException("No ImageIO writer for " + formats[i % 3]);
+      }
+      corpus.put(i + "." + formats[i % 3], encoded.toByteArray());
+    }
+    return corpus;
+  }
+
+  private List<String> generateURLs(Random random, String http_base, List<String> names) {
+    var lines = new ArrayList<String>(urls);
+    for (int line = 0; line < urls; ++line) {
+      if (line > 0 && random.nextDouble() < duplicate_ratio) {
+        lines.add(lines.get(random.nextInt(line)));
+        continue;
+      }
+      final String name = names.get(random.nextInt(names.size())) + "?n=" + line;
+      final double kind = random.nextDouble();
+      if (kind < not_found_rate) {
+        lines.add(http_base + "/missing/" + name);
+      } else if (kind < not_found_rate + error_rate) {
+        lines.add(http_base + "/error/" + name);
+      } else if (kind < not_found_rate + error_rate + redirect_rate) {
+        lines.add(http_base + "/redirect/" + name);
+      } else {
+        lines.add(http_base + "/image/" + name);
+      }
+    }
+    return lines;
+  }
+
+  private void run() throws Exception {
+    var random = new Random(seed);
+    System.out.println("Generating " + images + " images...");
+    final Map<String, byte[]> corpus = generateCorpus(random);
+    var names = new ArrayList<String>(corpus.keySet());
+    names.sort(null);
+
+    try (var server = new ImageServer(corpus, latency_ms, bandwidth_kbps * 1024)) {
+      server.start();
+
+      final Path directory = Files.createTempDirectory("pexercise-pipeline");
+      final Path input = directory.resolve("input.txt");
+      final Path output = directory.resolve("output.csv");
+      Files.write(input, generateURLs(random, server.httpBase(), names), StandardCharsets.US_ASCII);
+
+      System.out.println(
+          "Execution time | Fetch threads | Process threads | URL Queue | Image Queue | Results Queue |" +
+          " URLs/s  | p50 ms  | p99 ms  | Peak heap MB | Failed");
+      System.out.println(
+          "---------------+---------------+-----------------+-----------+-------------+---------------+" +
+          "---------+---------+---------+--------------+-------");
+      for (int fetch : fetch_threads) {
+        for (int process : process_threads) {
+          for (int url_capacity : url_queue) {
+            for (int image_capacity : image_queue) {
+              for (int result_capacity : result_queue) {
+                var options = Options.parse(pipeline_args.toArray(new String[0]));
+                options.input = input.toString();
+                options.output = output.toString();
+                options.fetch_threads = fetch;
+                options.process_threads = process;
+                options.url_queue = url_capacity;
+                options.image_queue = image_capacity;
+                options.result_queue = result_capacity;
+                for (int i = 0; i < runs; ++i) {
+                  Files.deleteIfExists(output);
+                  System.out.println(measure(options));
+                }
+              }
+            }
+          }
+        }
+      }
+
+      Files.deleteIfExists(output);
+      Files.delete(input);
+      Files.delete(directory);
+    }
+  }
+
+  // Runs the pipeline once, returning a row of the results table.
+  private String measure(Options options) throws IOException, InterruptedException {
+    var latencies = new LatencyListener();
+    final List<MemoryPoolMXBean> heap_pools = new ArrayList<>();
+    for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heap_pools.add(pool);
+      }
+    }
+    System.gc();
+    for (var pool : heap_pools) {
+      pool.resetPeakUsage();
+    }
+
+    // The pipeline reports each failed URL on stderr, which would bury
+    // the table.
+    final PrintStream err = System.err;
+    System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+    final long start = System.nanoTime();
+    try {
+      new Pipeline(options, latencies).run();
+    } finally {
+      System.setErr(err);
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    long peak_heap = 0;
+    for (var pool : heap_pools) {
+      peak_heap += pool.getPeakUsage().getUsed();
+    }
+
+    final long[] sorted = latencies.sorted();
+    final long seconds = elapsed / 1_000_000_000L;
+    return String.format("%-15s| %-14d| %-16d| %-10d| %-12d| %-14d| %-8.1f| %-8.1f| %-8.1f| %-13d| %d",
+        String.format("%d:%02d.%03d", seconds / 60, seconds % 60, elapsed / 1_000_000 % 1000),
+        options.fetch_threads, options.process_threads,
+        options.url_queue, options.image_queue, options.result_queue,
+        sorted.length * 1e9 / elapsed,
+        percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+        peak_heap / (1024 * 1024), latencies.failed());
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+  }
+
+  // Records the time from each URL being read to its result being queued
+  // for output, or to it failing. Duplicate URLs are matched up in the
+  // order they were read.
+  private static class LatencyListener implements PipelineListener {
+    private final Map<String, ConcurrentLinkedQueue<Long>> starts = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void urlQueued(String image_url) {
+      starts.computeIfAbsent(image_url, url -> new ConcurrentLinkedQueue<>()).add(System.nanoTime());
+    }
+
+    @Override
+    public void resultQueued(String image_url) {
+      finish(image_url);
+    }
+
+    @Override
+    public void urlFailed(String image_url) {
+      failures.add(image_url);
+      finish(image_url);
+    }
+
+    private void finish(String image_url) {
+      final var queued = starts.get(image_url);
+      final Long start = queued == null ? null : queued.poll();
+      if (start != null) {
+        latencies.add(System.nanoTime() - start);
+      }
+    }
+
+    long[] sorted() {
+      final long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    int failed() {
+      return failures.size();
+    }
+  }
+}
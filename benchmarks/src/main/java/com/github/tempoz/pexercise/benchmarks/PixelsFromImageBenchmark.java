@@ -0,0 +1,61 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.PixelsFromImage;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Reading every pixel of an image, through the iterator and in bulk,
+// compared with calling getRGB for each pixel.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PixelsFromImageBenchmark {
+  @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY", "BYTE_INDEXED", "USHORT_565_RGB"})
+  public String type;
+
+  @Param({"1024"})
+  public int size;
+
+  private BufferedImage image;
+  private int[] rows;
+
+  @Setup
+  public void setup() {
+    image = SyntheticImages.create(size, size, 4096, SyntheticImages.imageType(type), 1);
+    rows = new int[size * size];
+  }
+
+  @Benchmark
+  public int iterator() {
+    int sum = 0;
+    for (var pixels = new PixelsFromImage(image).iterator(); pixels.hasNext(); ) {
+      sum += pixels.nextInt();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int[] readRows() {
+    new PixelsFromImage(image).readRows(0, size, rows, 0);
+    return rows;
+  }
+
+  @Benchmark
+  public int getRGBPerPixel() {
+    int sum = 0;
+    for (int y = 0; y < size; ++y) {
+      for (int x = 0; x < size; ++x) {
+        sum += image.getRGB(x, y);
+      }
+    }
+    return sum;
+  }
+}
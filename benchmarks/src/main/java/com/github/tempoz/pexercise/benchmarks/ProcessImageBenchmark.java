@@ -0,0 +1,57 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.Options;
+import com.github.tempoz.pexercise.FetchedImage;
+import com.github.tempoz.pexercise.Pair;
+import com.github.tempoz.pexercise.ProcessImageRunner;
+import com.github.tempoz.pexercise.ResultRow;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Finding the most common colors of a whole image with each counting
+// engine. Narrow the matrix with -p, for example
+// -p counter=RADIX,HASH -p size=1024.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProcessImageBenchmark {
+  // Side of the square image in pixels.
+  @Param({"128", "1024", "4096"})
+  public int size;
+
+  // Number of distinct colors drawn from.
+  @Param({"8", "4096", "1000000"})
+  public int colors;
+
+  @Param({"3BYTE_BGR", "INT_RGB", "BYTE_INDEXED"})
+  public String type;
+
+  @Param({"AUTO", "RADIX", "HASH", "DENSE"})
+  public String counter;
+
+  private BufferedImage image;
+  private ProcessImageRunner runner;
+
+  @Setup
+  public void setup() {
+    image = SyntheticImages.create(size, size, colors, SyntheticImages.imageType(type), 2);
+    var options = new Options();
+    options.counter = Options.CounterEngine.valueOf(counter);
+    runner = new ProcessImageRunner(
+        new ArrayBlockingQueue<Pair<String, FetchedImage>>(1), new ArrayBlockingQueue<ResultRow>(1), options);
+  }
+
+  @Benchmark
+  public int[] processImage() {
+    return runner.processImage("", image);
+  }
+}
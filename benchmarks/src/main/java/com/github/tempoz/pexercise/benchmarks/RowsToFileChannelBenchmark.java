@@ -0,0 +1,71 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.ResultRow;
+import com.github.tempoz.pexercise.RowsToFileChannel;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Writing result rows and flushing them, at different write buffer
+// sizes. Scores are in rows rather than batches.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RowsToFileChannelBenchmark {
+  private static final int ROWS = 1000;
+
+  @Param({"512", "4096", "65536"})
+  public int buffer_size;
+
+  private Path path;
+  private FileChannel file;
+  private RowsToFileChannel out_channel;
+  private final ResultRow[] rows = new ResultRow[ROWS];
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    path = Files.createTempFile("pexercise-results", ".csv");
+    file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    out_channel = new RowsToFileChannel(file, buffer_size);
+    for (int i = 0; i < ROWS; ++i) {
+      rows[i] = ResultRow.exact(String.format("https://i.example.com/%08x.jpg", i * 0x9E3779B9),
+          new int[] {i, i * 3 & 0xffffff, i * 7 & 0xffffff}, 3);
+    }
+  }
+
+  // Keep the file from growing without bound over the run.
+  @Setup(Level.Iteration)
+  public void truncate() throws IOException {
+    file.truncate(0);
+    file.position(0);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    file.close();
+    Files.delete(path);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void putAndFlush() throws IOException {
+    for (ResultRow row : rows) {
+      out_channel.put(row);
+    }
+    out_channel.flush();
+  }
+}
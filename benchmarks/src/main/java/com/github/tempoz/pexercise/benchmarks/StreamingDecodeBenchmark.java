@@ -0,0 +1,75 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import com.github.tempoz.pexercise.FetchedImage;
+import com.github.tempoz.pexercise.Options;
+import com.github.tempoz.pexercise.Pair;
+import com.github.tempoz.pexercise.ProcessImageRunner;
+import com.github.tempoz.pexercise.ResultRow;
+import com.github.tempoz.pexercise.Sampling;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Decoding and counting an encoded image, either decoded in full first
+// as the fetchers normally do, or decoded while counting as with
+// --streaming=true, and exactly or subsampled as with --approximate=true.
+// The gc profiler's gc.alloc.rate.norm shows the difference in
+// allocation per image.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamingDecodeBenchmark {
+  // Side of the square image in pixels.
+  @Param({"1024", "4096"})
+  public int size;
+
+  @Param({"png", "jpg", "gif"})
+  public String format;
+
+  @Param({"false", "true"})
+  public boolean streaming;
+
+  @Param({"false", "true"})
+  public boolean approximate;
+
+  private byte[] encoded;
+  private Options options;
+  private ProcessImageRunner runner;
+
+  @Setup
+  public void setup() throws IOException {
+    var image = SyntheticImages.create(size, size, 4096, SyntheticImages.imageType(
+        format.equals("gif") ? "BYTE_INDEXED" : "3BYTE_BGR"), 2);
+    var output = new ByteArrayOutputStream();
+    if (!ImageIO.write(image, format, output)) {
+      throw new IOException("No ImageIO writer for " + format);
+    }
+    encoded = output.toByteArray();
+    options = new Options();
+    options.approximate = approximate;
+    runner = new ProcessImageRunner(
+        new ArrayBlockingQueue<Pair<String, FetchedImage>>(1), new ArrayBlockingQueue<ResultRow>(1), options);
+  }
+
+  @Benchmark
+  public int[] decodeAndProcess() throws IOException {
+    if (streaming) {
+      return runner.processEncoded("", encoded);
+    }
+    if (approximate) {
+      return runner.processImage("", Sampling.read(new ByteArrayInputStream(encoded), options.sample_pixels).image);
+    }
+    return runner.processImage("", ImageIO.read(new ByteArrayInputStream(encoded)));
+  }
+}
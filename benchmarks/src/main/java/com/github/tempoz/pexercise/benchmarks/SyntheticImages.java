@@ -0,0 +1,55 @@
+package com.github.tempoz.pexercise.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+// Generates reproducible images for benchmarking, so that results don't
+// depend on whatever images happen to be behind a set of URLs.
+public class SyntheticImages {
+
+  // Maps the BufferedImage.TYPE_ constant names used in benchmark
+  // parameters, without the TYPE_ prefix, to their values.
+  public static int imageType(String name) {
+    switch (name) {
+      case "INT_RGB":
+        return BufferedImage.TYPE_INT_RGB;
+      case "INT_ARGB":
+        return BufferedImage.TYPE_INT_ARGB;
+      case "3BYTE_BGR":
+        return BufferedImage.TYPE_3BYTE_BGR;
+      case "4BYTE_ABGR":
+        return BufferedImage.TYPE_4BYTE_ABGR;
+      case "BYTE_GRAY":
+        return BufferedImage.TYPE_BYTE_GRAY;
+      case "BYTE_INDEXED":
+        return BufferedImage.TYPE_BYTE_INDEXED;
+      case "USHORT_565_RGB":
+        return BufferedImage.TYPE_USHORT_565_RGB;
+      default:
+        throw new IllegalArgumentException("Unknown image type " + name);
+    }
+  }
+
+  // Creates a width x height image of the given type whose pixels are
+  // drawn from colors random colors. Lower palette entries are drawn more
+  // often, as in real photos where a few colors dominate. Gray and
+  // indexed images quantize the colors to what they can represent.
+  public static BufferedImage create(int width, int height, int colors, int type, long seed) {
+    var random = new Random(seed);
+    var palette = new int[colors];
+    for (int i = 0; i < colors; ++i) {
+      palette[i] = random.nextInt() & 0xffffff;
+    }
+    var image = new BufferedImage(width, height, type);
+    var row = new int[width];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        // Squaring a uniform value skews the choice towards index 0.
+        final double skewed = random.nextDouble();
+        row[x] = 0xff000000 | palette[(int) (skewed * skewed * colors)];
+      }
+      image.setRGB(0, y, width, 1, row, 0, width);
+    }
+    return image;
+  }
+}
@@ -0,0 +1,94 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Fetches from a local plain http server with the async engine.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+public class AsyncFetchImageRunnerTest {
+  private HttpServer server;
+  private ExecutorService executor;
+  private final CopyOnWriteArrayList<String> upgrades = new CopyOnWriteArrayList<>();
+
+  @BeforeEach
+  public void start() throws Exception {
+    final ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB), "png", png);
+    final byte[] body = png.toByteArray();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", exchange -> {
+      upgrades.add(String.valueOf(exchange.getRequestHeaders().getFirst("Upgrade")));
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterEach
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  private String url(int i) {
+    return "http://localhost:" + server.getAddress().getPort() + "/" + i + ".png";
+  }
+
+  @Test
+  public void plainHttpIsNotUpgraded() throws Exception {
+    final LinkedBlockingQueue<String> image_urls = new LinkedBlockingQueue<>();
+    final LinkedBlockingQueue<Pair<String, FetchedImage>> images = new LinkedBlockingQueue<>();
+    final Thread runner = new Thread(
+      new AsyncFetchImageRunner(image_urls, images, executor, new Options(), PipelineListener.NONE));
+    runner.start();
+    for (int i = 0; i < 3; ++i) {
+      image_urls.put(url(i));
+    }
+    image_urls.put("");
+    runner.join();
+    assertEquals(3, images.size());
+    for (Pair<String, FetchedImage> image : images) {
+      assertEquals(4, image.value.image.getWidth());
+    }
+    assertEquals(List.of("null", "null", "null"), upgrades);
+  }
+
+  @Test
+  public void fullImageQueueDoesNotHoldUpOtherResponses() throws Exception {
+    final LinkedBlockingQueue<String> image_urls = new LinkedBlockingQueue<>();
+    // Room for one image, so both fetch threads wait to queue theirs while
+    // the other responses come in.
+    final LinkedBlockingQueue<Pair<String, FetchedImage>> images = new LinkedBlockingQueue<>(1);
+    final Thread runner = new Thread(
+      new AsyncFetchImageRunner(image_urls, images, executor, new Options(), PipelineListener.NONE));
+    runner.start();
+    for (int i = 0; i < 4; ++i) {
+      image_urls.put(url(i));
+    }
+    image_urls.put("");
+    for (int i = 0; i < 4; ++i) {
+      images.take();
+    }
+    runner.join();
+    assertNull(images.poll());
+  }
+}
@@ -0,0 +1,161 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Serves batches over HTTP, standing in for the pipeline by taking the
+// URLs queued and finishing them in whatever order a test picks.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+public class BatchServiceTest {
+  private final LinkedBlockingQueue<String> image_urls = new LinkedBlockingQueue<>();
+  private final HttpClient client = HttpClient.newHttpClient();
+  private BatchService service;
+  private Thread service_thread;
+  private URI uri;
+
+  private static ResultRow row(String image_url, int color) {
+    return ResultRow.exact(image_url, new int[] {color, 0, 0}, 3);
+  }
+
+  private static List<String> lines(CompletableFuture<HttpResponse<String>> response) throws Exception {
+    assertEquals(200, response.get().statusCode());
+    return response.get().body().lines().toList();
+  }
+
+  private CompletableFuture<HttpResponse<String>> post(String... urls) {
+    final String body = urls.length == 0 ? "" : String.join("\n", urls) + "\n";
+    return client.sendAsync(HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+      HttpResponse.BodyHandlers.ofString());
+  }
+
+  // The next count URLs queued for the pipeline by the request that
+  // response is for, failing if it failed.
+  private List<String> take(int count, CompletableFuture<HttpResponse<String>> response) throws Exception {
+    final ArrayList<String> urls = new ArrayList<>();
+    while (urls.size() < count) {
+      final String url = image_urls.poll(100, TimeUnit.MILLISECONDS);
+      if (url != null) {
+        urls.add(url);
+      } else if (response.isDone()) {
+        response.get();
+      }
+    }
+    return urls;
+  }
+
+  @BeforeEach
+  public void start() throws Exception {
+    final Options options = new Options();
+    options.serve = Options.ServeMode.HTTP;
+    try (ServerSocket probe = new ServerSocket(0)) {
+      options.serve_port = probe.getLocalPort();
+    }
+    uri = URI.create("http://localhost:" + options.serve_port + "/colors");
+    service = new BatchService(options, image_urls, PipelineListener.NONE);
+    service_thread = new Thread(service);
+    service_thread.start();
+    // Only POST is served, which also tells when the server is up. Asked
+    // on a connection of its own, as the server may close it after a 405.
+    for (int attempt = 0; ; ++attempt) {
+      try {
+        final HttpResponse<Void> response = HttpClient.newHttpClient()
+          .send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(405, response.statusCode());
+        assertEquals("POST", response.headers().firstValue("Allow").orElse(null));
+        return;
+      } catch (ConnectException e) {
+        if (attempt == 100) {
+          throw e;
+        }
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  @AfterEach
+  public void stop() throws InterruptedException {
+    service.stop();
+    service_thread.join();
+  }
+
+  @Test
+  public void rowsAreSentToTheirBatch() throws Exception {
+    final CompletableFuture<HttpResponse<String>> response = post("a", "b", "c");
+    assertEquals(List.of("a", "b", "c"), take(3, response));
+    service.finish(row("c", 3));
+    service.finish(row("a", 1));
+    service.finish(row("b", 2));
+    assertEquals(List.of("c,#000003,#000000,#000000", "a,#000001,#000000,#000000", "b,#000002,#000000,#000000"),
+      lines(response));
+  }
+
+  @Test
+  public void repeatedURLsAreMatchedToBatchesInOrder() throws Exception {
+    final CompletableFuture<HttpResponse<String>> first = post("x", "a");
+    assertEquals(List.of("x", "a"), take(2, first));
+    final CompletableFuture<HttpResponse<String>> second = post("b", "x");
+    assertEquals(List.of("b", "x"), take(2, second));
+    // The first row of x goes to the first batch submitted with x,
+    // whichever finishes first.
+    service.finish(row("x", 1));
+    service.finish(row("b", 2));
+    service.finish(row("x", 3));
+    assertEquals(List.of("b,#000002,#000000,#000000", "x,#000003,#000000,#000000"), lines(second));
+    service.finish(row("a", 4));
+    assertEquals(List.of("x,#000001,#000000,#000000", "a,#000004,#000000,#000000"), lines(first));
+  }
+
+  @Test
+  public void repeatedURLsWithinABatchEachGetARow() throws Exception {
+    final CompletableFuture<HttpResponse<String>> response = post("x", "x");
+    assertEquals(List.of("x", "x"), take(2, response));
+    service.finish(row("x", 1));
+    service.finish(row("x", 1));
+    assertEquals(List.of("x,#000001,#000000,#000000", "x,#000001,#000000,#000000"), lines(response));
+  }
+
+  @Test
+  public void failuresCompleteTheBatchWithoutARow() throws Exception {
+    final CompletableFuture<HttpResponse<String>> response = post("a", "bad");
+    assertEquals(List.of("a", "bad"), take(2, response));
+    service.finish(ResultRow.failed("bad"));
+    service.finish(row("a", 1));
+    assertEquals(List.of("a,#000001,#000000,#000000"), lines(response));
+
+    final CompletableFuture<HttpResponse<String>> failed = post("bad");
+    take(1, failed);
+    service.finish(ResultRow.failed("bad"));
+    assertEquals(List.of(), lines(failed));
+  }
+
+  @Test
+  public void emptyBatchIsAnsweredStraightAway() throws Exception {
+    assertEquals(List.of(), lines(post()));
+    assertEquals(List.of(), lines(post("", "")));
+    assertEquals(0, image_urls.size());
+  }
+
+  @Test
+  public void rowsOfUnknownURLsAreDropped() throws Exception {
+    service.finish(row("x", 1));
+    final CompletableFuture<HttpResponse<String>> response = post("x");
+    take(1, response);
+    service.finish(row("x", 2));
+    assertEquals(List.of("x,#000002,#000000,#000000"), lines(response));
+  }
+}
@@ -0,0 +1,78 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Runs the coalescer on its own thread, standing in for the fetch and
+// process threads by taking the URLs it queues and completing them.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+public class CoalesceURLRunnerTest {
+  private final LinkedBlockingQueue<String> input_urls = new LinkedBlockingQueue<>();
+  private final LinkedBlockingQueue<String> image_urls = new LinkedBlockingQueue<>();
+  private final LinkedBlockingQueue<ResultRow> results = new LinkedBlockingQueue<>();
+  private Thread coalesce_thread;
+
+  private CoalesceURLRunner start(int max_results) {
+    final CoalesceURLRunner coalescer =
+      new CoalesceURLRunner(input_urls, image_urls, results, max_results, PipelineListener.NONE);
+    coalesce_thread = new Thread(coalescer);
+    coalesce_thread.start();
+    return coalescer;
+  }
+
+  private static ResultRow row(String image_url) {
+    return ResultRow.exact(image_url, new int[] {1, 0, 0}, 3);
+  }
+
+  // Waits until the coalescer has taken every URL put so far.
+  private void drain() throws InterruptedException {
+    while (!input_urls.isEmpty()) {
+      Thread.sleep(10);
+    }
+    // Taken is not yet handled, so also wait for what it queues.
+    Thread.sleep(100);
+  }
+
+  @AfterEach
+  public void stop() throws InterruptedException {
+    input_urls.put("");
+    coalesce_thread.join();
+  }
+
+  @Test
+  public void completedURLsAreAnsweredFromTheResultsKept() throws Exception {
+    final CoalesceURLRunner coalescer = start(10);
+    input_urls.put("a");
+    assertEquals("a", image_urls.take());
+    input_urls.put("a");
+    drain();
+    assertEquals(1, coalescer.complete("a", row("a")));
+    input_urls.put("a");
+    assertEquals(row("a").toString(), results.take().toString());
+    drain();
+    assertNull(image_urls.poll());
+  }
+
+  @Test
+  public void withoutResultsKeptOnlyURLsInFlightAreMerged() throws Exception {
+    final CoalesceURLRunner coalescer = start(0);
+    input_urls.put("a");
+    assertEquals("a", image_urls.take());
+    input_urls.put("a");
+    input_urls.put("a");
+    drain();
+    assertNull(image_urls.poll());
+    assertEquals(2, coalescer.complete("a", row("a")));
+    // Done, so fetched again rather than answered.
+    input_urls.put("a");
+    assertEquals("a", image_urls.take());
+    drain();
+    assertNull(results.poll());
+  }
+}
@@ -0,0 +1,174 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+// Checks that every exact ColorCounter engine selects the same colors as
+// a plain count, with ties going to the lower color, so that the output
+// never depends on the engine picked.
+public class ColorCounterTest {
+  private static final List<Supplier<ColorCounter>> ENGINES =
+    List.of(RadixColorCounter::new, HashColorCounter::new, DenseColorCounter::new);
+
+  // The k most common colors of pixels and their counts, by sorting a
+  // HashMap of counts.
+  static int[][] reference(int[] pixels, int k) {
+    final HashMap<Integer, Integer> counts = new HashMap<>();
+    for (int pixel : pixels) {
+      counts.merge(pixel & 0xffffff, 1, Integer::sum);
+    }
+    final ArrayList<Integer> colors = new ArrayList<>(counts.keySet());
+    colors.sort((a, b) -> counts.get(a).equals(counts.get(b)) ? Integer.compare(a, b)
+      : counts.get(b) - counts.get(a));
+    final int[][] expected = new int[2][k];
+    for (int i = 0; i < Math.min(k, colors.size()); ++i) {
+      expected[0][i] = colors.get(i);
+      expected[1][i] = counts.get(colors.get(i));
+    }
+    return expected;
+  }
+
+  static int[][] select(ColorCounter counter, int k) {
+    final int[][] selected = new int[2][k];
+    counter.selectMostCommon(selected[0], selected[1]);
+    return selected;
+  }
+
+  // Pixels drawn from colors random colors, skewed towards the first as
+  // in SyntheticImages, with random alpha, which is ignored.
+  static int[] randomPixels(int count, int colors, long seed) {
+    final Random random = new Random(seed);
+    final int[] palette = new int[colors];
+    for (int i = 0; i < colors; ++i) {
+      palette[i] = random.nextInt() & 0xffffff;
+    }
+    final int[] pixels = new int[count];
+    for (int i = 0; i < count; ++i) {
+      final double skewed = random.nextDouble();
+      pixels[i] = random.nextInt() << 24 | palette[(int) (skewed * skewed * colors)];
+    }
+    return pixels;
+  }
+
+  @Test
+  public void offerKeepsMostCommonInOrder() {
+    final int[] max_colors = new int[3];
+    final int[] max_counts = new int[3];
+    ColorCounter.offer(max_colors, max_counts, 0x10, 5);
+    ColorCounter.offer(max_colors, max_counts, 0x20, 9);
+    ColorCounter.offer(max_colors, max_counts, 0x30, 1);
+    ColorCounter.offer(max_colors, max_counts, 0x40, 7);
+    assertArrayEquals(new int[] {0x20, 0x40, 0x10}, max_colors);
+    assertArrayEquals(new int[] {9, 7, 5}, max_counts);
+  }
+
+  @Test
+  public void offerBreaksTiesByLowerColor() {
+    final int[] max_colors = new int[3];
+    final int[] max_counts = new int[3];
+    for (int color : new int[] {0x50, 0x30, 0x40, 0x10, 0x20}) {
+      ColorCounter.offer(max_colors, max_counts, color, 4);
+    }
+    assertArrayEquals(new int[] {0x10, 0x20, 0x30}, max_colors);
+    assertArrayEquals(new int[] {4, 4, 4}, max_counts);
+  }
+
+  @Test
+  public void offerIgnoresZeroCounts() {
+    final int[] max_colors = new int[2];
+    final int[] max_counts = new int[2];
+    ColorCounter.offer(max_colors, max_counts, 0x10, 0);
+    ColorCounter.offer(max_colors, max_counts, 0x20, 3);
+    assertArrayEquals(new int[] {0x20, 0}, max_colors);
+    assertArrayEquals(new int[] {3, 0}, max_counts);
+  }
+
+  @Test
+  public void enginesMatchReference() {
+    for (int colors : new int[] {1, 2, 5, 300, 5000, 100000}) {
+      final int[] pixels = randomPixels(200000, colors, colors);
+      for (int k : new int[] {1, 3, 8}) {
+        final int[][] expected = reference(pixels, k);
+        for (Supplier<ColorCounter> engine : ENGINES) {
+          final ColorCounter counter = engine.get();
+          counter.add(pixels, 0, pixels.length);
+          final int[][] selected = select(counter, k);
+          final String message = counter.getClass().getSimpleName() + " with " + colors + " colors, k = " + k;
+          assertArrayEquals(expected[0], selected[0], message);
+          assertArrayEquals(expected[1], selected[1], message);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void enginesBreakTiesByLowerColor() {
+    // 20 colors 4 times each, in shuffled order.
+    final ArrayList<Integer> shuffled = new ArrayList<>();
+    for (int i = 0; i < 20; ++i) {
+      for (int j = 0; j < 4; ++j) {
+        shuffled.add(0xff000000 | (i * 0x0a0b0c ^ 0x123456));
+      }
+    }
+    Collections.shuffle(shuffled, new Random(1));
+    final int[] pixels = shuffled.stream().mapToInt(Integer::intValue).toArray();
+    final int[][] expected = reference(pixels, 5);
+    for (Supplier<ColorCounter> engine : ENGINES) {
+      final ColorCounter counter = engine.get();
+      counter.add(pixels, 0, pixels.length);
+      final int[][] selected = select(counter, 5);
+      assertArrayEquals(expected[0], selected[0], counter.getClass().getSimpleName());
+      assertArrayEquals(expected[1], selected[1], counter.getClass().getSimpleName());
+    }
+  }
+
+  @Test
+  public void enginesCountOnlyTheRangeGiven() {
+    final int[] pixels = {0x111111, 0x222222, 0x222222, 0x333333, 0x333333, 0x333333, 0x444444};
+    for (Supplier<ColorCounter> engine : ENGINES) {
+      final ColorCounter counter = engine.get();
+      counter.add(pixels, 1, 4);
+      final int[][] selected = select(counter, 3);
+      assertArrayEquals(new int[] {0x222222, 0x333333, 0}, selected[0], counter.getClass().getSimpleName());
+      assertArrayEquals(new int[] {2, 2, 0}, selected[1], counter.getClass().getSimpleName());
+    }
+  }
+
+  @Test
+  public void enginesForgetCountsOnClear() {
+    final int[] first = randomPixels(50000, 1000, 1);
+    final int[] second = randomPixels(50000, 1000, 2);
+    final int[][] expected = reference(second, 3);
+    for (Supplier<ColorCounter> engine : ENGINES) {
+      final ColorCounter counter = engine.get();
+      counter.add(first, 0, first.length);
+      select(counter, 3);
+      counter.clear();
+      counter.add(second, 0, second.length);
+      final int[][] selected = select(counter, 3);
+      assertArrayEquals(expected[0], selected[0], counter.getClass().getSimpleName());
+      assertArrayEquals(expected[1], selected[1], counter.getClass().getSimpleName());
+    }
+  }
+
+  @Test
+  public void mergedHashCountersMatchOneCounter() {
+    final int[] pixels = randomPixels(100000, 20000, 3);
+    final HashColorCounter left = new HashColorCounter();
+    final HashColorCounter right = new HashColorCounter();
+    left.add(pixels, 0, 30000);
+    right.add(pixels, 30000, pixels.length - 30000);
+    left.addAll(right);
+    final int[][] expected = reference(pixels, 4);
+    final int[][] selected = select(left, 4);
+    assertArrayEquals(expected[0], selected[0]);
+    assertArrayEquals(expected[1], selected[1]);
+  }
+}
@@ -0,0 +1,69 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+// Checks that ContentDeduplicator keeps the images used most recently,
+// and counts its hits and misses.
+public class ContentDeduplicatorTest {
+  @Test
+  public void evictsTheLeastRecentlyUsed() {
+    final ContentDeduplicator dedup = new ContentDeduplicator(2);
+    dedup.put(1, new int[] {1, 0, 0});
+    dedup.put(2, new int[] {2, 0, 0});
+    // 1 is now used more recently than 2.
+    assertArrayEquals(new int[] {1, 0, 0}, dedup.lookup(1));
+    dedup.put(3, new int[] {3, 0, 0});
+    assertEquals(2, dedup.size());
+    assertNull(dedup.lookup(2));
+    assertArrayEquals(new int[] {1, 0, 0}, dedup.lookup(1));
+    assertArrayEquals(new int[] {3, 0, 0}, dedup.lookup(3));
+
+    // New images keep being added however many came before.
+    for (long content_hash = 4; content_hash < 1000; ++content_hash) {
+      dedup.put(content_hash, new int[] {(int) content_hash, 0, 0});
+    }
+    assertEquals(2, dedup.size());
+    assertArrayEquals(new int[] {999, 0, 0}, dedup.lookup(999));
+  }
+
+  @Test
+  public void keepsACopyOfTheColors() {
+    final ContentDeduplicator dedup = new ContentDeduplicator(10);
+    final int[] max_colors = {1, 2, 3};
+    dedup.put(7, max_colors);
+    max_colors[0] = 9;
+    assertArrayEquals(new int[] {1, 2, 3}, dedup.lookup(7));
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    final ContentDeduplicator dedup = new ContentDeduplicator(10);
+    assertEquals(0, dedup.hitRatio());
+    assertNull(dedup.lookup(1));
+    dedup.put(1, new int[] {1, 0, 0});
+    dedup.lookup(1);
+    dedup.lookup(1);
+    dedup.lookup(2);
+    assertEquals(2, dedup.hits());
+    assertEquals(2, dedup.misses());
+    assertEquals(0.5, dedup.hitRatio());
+  }
+
+  @Test
+  public void hashDependsOnEveryByte() {
+    final byte[] encoded = "a body of more than eight bytes".getBytes(StandardCharsets.US_ASCII);
+    final long hash = ContentDeduplicator.hash(encoded);
+    assertEquals(hash, ContentDeduplicator.hash(encoded.clone()));
+    for (int i = 0; i < encoded.length; ++i) {
+      final byte[] changed = encoded.clone();
+      changed[i] ^= 1;
+      assertNotEquals(hash, ContentDeduplicator.hash(changed), "Byte " + i);
+    }
+  }
+}
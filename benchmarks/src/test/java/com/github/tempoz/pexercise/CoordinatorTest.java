@@ -0,0 +1,246 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+// Runs a Coordinator on a local port against workers speaking its
+// protocol directly, so that each can be made to stall or disconnect.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+public class CoordinatorTest {
+  @TempDir
+  Path dir;
+
+  private int port;
+  private Thread coordinator_thread;
+
+  // A worker that sends requests only when told to.
+  private class Worker implements Closeable {
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+    final long lease_timeout_ms;
+    long id;
+    List<String> urls;
+
+    Worker() throws IOException, InterruptedException {
+      Socket connected = null;
+      for (int attempt = 0; connected == null; ++attempt) {
+        try {
+          connected = new Socket("localhost", port);
+        } catch (IOException e) {
+          if (attempt == 100) {
+            throw e;
+          }
+          Thread.sleep(50);
+        }
+      }
+      socket = connected;
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      lease_timeout_ms = in.readLong();
+    }
+
+    // Asks for a batch once, returning the reply.
+    byte lease() throws IOException {
+      out.writeByte(Coordinator.LEASE);
+      out.flush();
+      final byte reply = in.readByte();
+      if (reply == Coordinator.BATCH) {
+        id = in.readLong();
+        final int count = in.readInt();
+        urls = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+          urls.add(in.readUTF());
+        }
+      }
+      return reply;
+    }
+
+    // Asks for a batch until one is leased, or there are none left.
+    byte leaseWaiting() throws IOException, InterruptedException {
+      while (true) {
+        final byte reply = lease();
+        if (reply != Coordinator.WAIT) {
+          return reply;
+        }
+        Thread.sleep(Coordinator.WAIT_MS);
+      }
+    }
+
+    // Returns a row for each URL of the batch last leased, failing those
+    // starting with "fail".
+    void results() throws IOException {
+      out.writeByte(Coordinator.RESULTS);
+      out.writeLong(id);
+      out.writeInt(urls.size());
+      for (String url : urls) {
+        Coordinator.writeRow(out, url.startsWith("fail") ? ResultRow.failed(url)
+          : ResultRow.exact(url, new int[] {0x112233, 0x445566, 0x778899}, 3));
+      }
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  private Path start(List<String> urls, int lease_size, int lease_timeout_s) throws IOException {
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    final Path input = dir.resolve("input.txt");
+    final Path output = dir.resolve("output.csv");
+    Files.write(input, urls);
+    final Options options = new Options();
+    options.input = input.toString();
+    options.output = output.toString();
+    options.listen = port;
+    options.lease_size = lease_size;
+    options.lease_timeout_s = lease_timeout_s;
+    coordinator_thread = new Thread(() -> {
+      try {
+        new Coordinator(options).run();
+      } catch (IOException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    coordinator_thread.start();
+    return output;
+  }
+
+  private static List<String> written(Path output) throws IOException {
+    final ArrayList<String> urls = new ArrayList<>();
+    for (String line : Files.readAllLines(output)) {
+      urls.add(line.substring(0, line.indexOf(',')));
+    }
+    Collections.sort(urls);
+    return urls;
+  }
+
+  @Test
+  public void everyBatchIsWrittenOnce() throws Exception {
+    final Path output = start(List.of("a", "b", "fail1", "c", "d"), 2, 1);
+    try (Worker first = new Worker(); Worker second = new Worker()) {
+      assertEquals(1000, first.lease_timeout_ms);
+      assertEquals(Coordinator.BATCH, first.leaseWaiting());
+      assertEquals(Coordinator.BATCH, second.leaseWaiting());
+      second.results();
+      first.results();
+      assertEquals(Coordinator.BATCH, first.leaseWaiting());
+      first.results();
+      assertEquals(Coordinator.DONE, first.leaseWaiting());
+    }
+    coordinator_thread.join();
+    assertEquals(List.of("a", "b", "c", "d"), written(output));
+  }
+
+  @Test
+  public void expiredLeaseIsReassigned() throws Exception {
+    final Path output = start(List.of("a", "b", "c", "d"), 2, 1);
+    try (Worker stalled = new Worker(); Worker live = new Worker()) {
+      assertEquals(Coordinator.BATCH, stalled.leaseWaiting());
+      final long stalled_id = stalled.id;
+      assertEquals(Coordinator.BATCH, live.leaseWaiting());
+      live.results();
+      // Leased again once the stalled worker's lease expires.
+      final long start = System.nanoTime();
+      assertEquals(Coordinator.BATCH, live.leaseWaiting());
+      assertEquals(stalled_id, live.id);
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+      live.results();
+      // The stalled worker finishing late writes nothing twice.
+      stalled.results();
+      assertEquals(Coordinator.DONE, live.leaseWaiting());
+    }
+    coordinator_thread.join();
+    assertEquals(List.of("a", "b", "c", "d"), written(output));
+  }
+
+  @Test
+  public void heartbeatsKeepLeases() throws Exception {
+    final Path output = start(List.of("a", "b", "c", "d"), 2, 1);
+    try (Worker slow = new Worker(); Worker other = new Worker()) {
+      assertEquals(Coordinator.BATCH, slow.leaseWaiting());
+      assertEquals(Coordinator.BATCH, other.leaseWaiting());
+      other.results();
+      // Well past the lease timeout, with a heartbeat every third of it.
+      for (int i = 0; i < 8; ++i) {
+        Thread.sleep(slow.lease_timeout_ms / 3);
+        slow.out.writeByte(Coordinator.HEARTBEAT);
+        slow.out.flush();
+        assertEquals(Coordinator.WAIT, other.lease());
+      }
+      slow.results();
+      assertEquals(Coordinator.DONE, other.leaseWaiting());
+    }
+    coordinator_thread.join();
+    assertEquals(List.of("a", "b", "c", "d"), written(output));
+  }
+
+  @Test
+  public void disconnectedWorkersLeasesAreReassigned() throws Exception {
+    // Leases that never expire during the test, so that only the
+    // disconnect can free them.
+    final Path output = start(List.of("a", "b", "c", "d"), 2, 600);
+    try (Worker live = new Worker()) {
+      final Worker lost = new Worker();
+      assertEquals(Coordinator.BATCH, lost.leaseWaiting());
+      final long lost_id = lost.id;
+      lost.close();
+      final ArrayList<Long> ids = new ArrayList<>();
+      for (int i = 0; i < 2; ++i) {
+        assertEquals(Coordinator.BATCH, live.leaseWaiting());
+        ids.add(live.id);
+        live.results();
+      }
+      assertTrue(ids.contains(lost_id));
+      assertEquals(Coordinator.DONE, live.leaseWaiting());
+    }
+    coordinator_thread.join();
+    assertEquals(List.of("a", "b", "c", "d"), written(output));
+  }
+
+  @Test
+  public void clientReturnsRowsAndKeepsSlowLeases() throws Exception {
+    final Path output = start(List.of("a", "b", "c", "fail1"), 2, 1);
+    try (CoordinatorClient client = CoordinatorClient.connect("localhost:" + port);
+        Worker other = new Worker()) {
+      final List<String> first = client.lease();
+      assertNotNull(first);
+      assertEquals(Coordinator.BATCH, other.leaseWaiting());
+      other.results();
+      // The client's heartbeats keep its lease past the timeout.
+      Thread.sleep(2 * other.lease_timeout_ms);
+      assertEquals(Coordinator.WAIT, other.lease());
+      for (String url : first) {
+        client.finish(url.startsWith("fail") ? ResultRow.failed(url)
+          : ResultRow.exact(url, new int[] {1, 2, 3}, 3));
+      }
+      assertNull(client.lease());
+    }
+    coordinator_thread.join();
+    assertEquals(List.of("a", "b", "c"), written(output));
+  }
+}
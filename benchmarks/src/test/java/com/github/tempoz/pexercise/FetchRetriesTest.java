@@ -0,0 +1,115 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class FetchRetriesTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+  // Later than any retry is due.
+  private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+  private static FetchRetries retries(int max_retries, int backoff_ms, int deadline_ms) {
+    final Options options = new Options();
+    options.fetch_retries = max_retries;
+    options.retry_backoff_ms = backoff_ms;
+    options.fetch_deadline_ms = deadline_ms;
+    return new FetchRetries(options);
+  }
+
+  private static boolean timedOut(FetchRetries retries, String image_url) {
+    return retries.retry(image_url, PipelineListener.Failure.TIMED_OUT, 0, 0);
+  }
+
+  @Test
+  public void onlyFailuresThatMayNotLastAreRetryable() {
+    assertTrue(FetchRetries.isRetryable(PipelineListener.Failure.TIMED_OUT, 0));
+    assertTrue(FetchRetries.isRetryable(PipelineListener.Failure.FETCH_ERROR, 0));
+    assertTrue(FetchRetries.isRetryable(PipelineListener.Failure.THROTTLED, 429));
+    for (int status : new int[] {408, 500, 502, 504}) {
+      assertTrue(FetchRetries.isRetryable(PipelineListener.Failure.HTTP_STATUS, status), "" + status);
+    }
+    for (int status : new int[] {400, 403, 410, 501}) {
+      assertFalse(FetchRetries.isRetryable(PipelineListener.Failure.HTTP_STATUS, status), "" + status);
+    }
+    assertFalse(FetchRetries.isRetryable(PipelineListener.Failure.NOT_FOUND, 404));
+    assertFalse(FetchRetries.isRetryable(PipelineListener.Failure.DECODE_ERROR, 0));
+    assertFalse(FetchRetries.isRetryable(PipelineListener.Failure.INVALID_URL, 0));
+    assertFalse(FetchRetries.isRetryable(PipelineListener.Failure.UNRECOGNIZED_IMAGE, 0));
+  }
+
+  @Test
+  public void nonRetryableFailuresAreNotQueued() {
+    final FetchRetries retries = retries(3, 100, 60 * 1000);
+    assertFalse(retries.retry("a", PipelineListener.Failure.NOT_FOUND, 404, 0));
+    assertEquals(-1, retries.nextDueIn(System.nanoTime()));
+    assertNull(retries.report());
+  }
+
+  @Test
+  public void backoffDoublesWithJitterUpToTheMaximum() {
+    final FetchRetries retries = retries(10, 1000, 24 * 60 * 60 * 1000);
+    long ceiling_ms = 1000;
+    for (int i = 0; i < 10; ++i) {
+      final long before = System.nanoTime();
+      assertTrue(timedOut(retries, "a"));
+      final long after = System.nanoTime();
+      // Between half the ceiling and the ceiling.
+      assertTrue(retries.nextDueIn(before) >= ceiling_ms / 2 * MS, "Retry " + i);
+      assertTrue(retries.nextDueIn(after) <= ceiling_ms * MS, "Retry " + i);
+      assertEquals("a", retries.poll(after + HOUR));
+      ceiling_ms = Math.min(30 * 1000, 2 * ceiling_ms);
+    }
+  }
+
+  @Test
+  public void givesUpAfterMaxRetries() {
+    final FetchRetries retries = retries(2, 100, 60 * 1000);
+    for (int i = 0; i < 2; ++i) {
+      assertTrue(timedOut(retries, "a"));
+      retries.finished("a");
+      assertEquals("a", retries.poll(System.nanoTime() + HOUR));
+    }
+    assertFalse(timedOut(retries, "a"));
+    retries.finished("a");
+    assertNotNull(retries.report());
+
+    // Counted afresh once it has finished without a retry.
+    assertTrue(timedOut(retries, "a"));
+  }
+
+  @Test
+  public void noRetryPastTheDeadline() {
+    // The shortest backoff, half of 1000 ms, is past the deadline.
+    final FetchRetries retries = retries(3, 1000, 400);
+    final long remaining = retries.remainingNanos("a");
+    assertTrue(remaining > 0 && remaining <= 400 * MS);
+    assertFalse(timedOut(retries, "a"));
+    assertEquals(-1, retries.nextDueIn(System.nanoTime()));
+  }
+
+  @Test
+  public void retriesComeBackOnceDueInOrder() {
+    final FetchRetries retries = retries(3, 1000, 60 * 1000);
+    assertTrue(timedOut(retries, "a"));
+    assertTrue(timedOut(retries, "b"));
+    assertTrue(timedOut(retries, "b"));
+    final long now = System.nanoTime();
+    assertNull(retries.poll(now));
+    final long due_in = retries.nextDueIn(now);
+    assertTrue(due_in >= 500 * MS && due_in <= 1000 * MS);
+    final String first = retries.poll(now + due_in);
+    assertNotNull(first);
+    assertNull(retries.poll(now + due_in));
+    // The second retry of b waits longer than both the first ones.
+    assertEquals(first.equals("a") ? "b" : "a", retries.poll(now + HOUR));
+    assertEquals("b", retries.poll(now + HOUR));
+    assertNull(retries.poll(now + HOUR));
+    assertEquals(-1, retries.nextDueIn(now));
+  }
+}
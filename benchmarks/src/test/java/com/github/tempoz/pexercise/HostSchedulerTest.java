@@ -0,0 +1,218 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Runs a HostScheduler's threads, standing in for the fetch stage by
+// taking the URLs it schedules and finishing them with whatever status
+// a test picks.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+public class HostSchedulerTest {
+  private final BlockingQueue<String> image_urls = new ArrayBlockingQueue<>(100);
+  private BlockingQueue<String> scheduled_urls = new LinkedBlockingQueue<>();
+  private HostScheduler scheduler;
+
+  private static String url(String host, int i) {
+    return "http://" + host + ".example/" + i;
+  }
+
+  private void start(Options options) {
+    scheduler = new HostScheduler(image_urls, scheduled_urls, options, null);
+    for (Runnable runnable : List.of(scheduler.feeder(), scheduler)) {
+      final Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  // The next URL scheduled, or null if there is none within ms.
+  private String poll(long ms) throws InterruptedException {
+    return scheduled_urls.poll(ms, TimeUnit.MILLISECONDS);
+  }
+
+  private List<String> take(int count) throws InterruptedException {
+    final ArrayList<String> urls = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      urls.add(scheduled_urls.take());
+    }
+    return urls;
+  }
+
+  @Test
+  public void hostsTakeTurns() throws InterruptedException {
+    // Nothing is handed on until taken, so the host queues fill first.
+    scheduled_urls = new SynchronousQueue<>();
+    start(new Options());
+    for (int i = 1; i <= 4; ++i) {
+      image_urls.put(url("a", i));
+    }
+    for (int i = 1; i <= 3; ++i) {
+      image_urls.put(url("b", i));
+    }
+    Thread.sleep(200);
+    // The first may have been taken before the others were queued, and
+    // after it each host has 3 left.
+    final List<String> scheduled = take(7).subList(1, 7);
+    for (int i = 1; i < scheduled.size(); ++i) {
+      assertTrue(scheduled.get(i).startsWith("http://a") != scheduled.get(i - 1).startsWith("http://a"),
+        scheduled.toString());
+    }
+  }
+
+  @Test
+  public void hostsKeepWithinTheirConnectionLimit() throws InterruptedException {
+    final Options options = new Options();
+    options.max_per_host = 2;
+    start(options);
+    for (int i = 1; i <= 4; ++i) {
+      image_urls.put(url("a", i));
+    }
+    assertEquals(List.of(url("a", 1), url("a", 2)), take(2));
+    assertNull(poll(200));
+    scheduler.finished(url("a", 1), 200);
+    assertEquals(url("a", 3), poll(5000));
+    assertNull(poll(200));
+    image_urls.put(url("b", 1));
+    assertEquals(url("b", 1), poll(5000));
+  }
+
+  @Test
+  public void throttlingHalvesTheLimitAndBacksOff() throws InterruptedException {
+    final Options options = new Options();
+    options.max_per_host = 4;
+    start(options);
+    for (int i = 1; i <= 9; ++i) {
+      image_urls.put(url("a", i));
+    }
+    assertEquals(List.of(url("a", 1), url("a", 2), url("a", 3), url("a", 4)), take(4));
+    assertNull(poll(200));
+
+    // Down to 2 connections, after a pause of a second.
+    long throttled = System.nanoTime();
+    scheduler.finished(url("a", 1), 429);
+    scheduler.finished(url("a", 2), 0);
+    scheduler.finished(url("a", 3), 0);
+    assertEquals(url("a", 5), poll(5000));
+    assertTrue(System.nanoTime() - throttled >= TimeUnit.MILLISECONDS.toNanos(900));
+    assertNull(poll(200));
+
+    // Throttled again, down to 1 connection, and for twice as long.
+    throttled = System.nanoTime();
+    scheduler.finished(url("a", 4), 503);
+    scheduler.finished(url("a", 5), 0);
+    assertEquals(url("a", 6), poll(5000));
+    assertTrue(System.nanoTime() - throttled >= TimeUnit.MILLISECONDS.toNanos(1900));
+    assertNull(poll(200));
+
+    // Each success adds 1/allowed connections, so 1 takes it to 2.
+    scheduler.finished(url("a", 6), 200);
+    assertEquals(List.of(url("a", 7), url("a", 8)), take(2));
+    assertNull(poll(200));
+  }
+
+  @Test
+  public void throttlingOfOneHostLeavesOthers() throws InterruptedException {
+    final Options options = new Options();
+    options.max_per_host = 1;
+    start(options);
+    image_urls.put(url("a", 1));
+    image_urls.put(url("a", 2));
+    assertEquals(url("a", 1), poll(5000));
+    scheduler.finished(url("a", 1), 429);
+    image_urls.put(url("b", 1));
+    image_urls.put(url("b", 2));
+    assertEquals(url("b", 1), poll(500));
+    scheduler.finished(url("b", 1), 200);
+    assertEquals(url("b", 2), poll(500));
+  }
+
+  @Test
+  public void rateLimitSpacesRequests() throws InterruptedException {
+    final Options options = new Options();
+    options.host_limits = "a.example=10/4";
+    start(options);
+    for (int i = 1; i <= 5; ++i) {
+      image_urls.put(url("a", i));
+    }
+    // A burst of 4, then one every 250 ms.
+    take(4);
+    final long start = System.nanoTime();
+    assertEquals(url("a", 5), poll(5000));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+  }
+
+  @Test
+  public void withoutHostSchedulingNothingIsLimited() throws InterruptedException {
+    final Options options = new Options();
+    options.host_scheduling = false;
+    options.max_per_host = 1;
+    start(options);
+    for (int i = 1; i <= 5; ++i) {
+      image_urls.put(url("a", i));
+    }
+    take(5);
+    scheduler.finished(url("a", 1), 429);
+    image_urls.put(url("a", 6));
+    assertEquals(url("a", 6), poll(500));
+  }
+
+  @Test
+  public void poisonPillFollowsTheLastFetch() throws InterruptedException {
+    start(new Options());
+    image_urls.put(url("a", 1));
+    image_urls.put("");
+    assertEquals(url("a", 1), poll(5000));
+    assertNull(poll(200));
+    scheduler.finished(url("a", 1), 200);
+    assertEquals("", poll(5000));
+  }
+
+  @Test
+  public void occupancyCountsURLsQueuedForHosts() throws InterruptedException {
+    final Options options = new Options();
+    options.max_per_host = 1;
+    start(options);
+    assertEquals(0.0, scheduler.occupancy());
+    for (int i = 1; i <= 51; ++i) {
+      image_urls.put(url("a", i));
+    }
+    assertEquals(url("a", 1), poll(5000));
+    // Whether waiting in image_urls or for their host, so once the
+    // feeder has taken them as well.
+    Thread.sleep(200);
+    assertEquals(0.5, scheduler.occupancy());
+  }
+
+  @Test
+  public void parseLimitsTakesDefaultRate() {
+    final Map<String, HostScheduler.Limit> limits =
+      HostScheduler.parseLimits("a.example=2,b.example=3/0.5", new HostScheduler.Limit(16, 10));
+    assertEquals(2, limits.get("a.example").connections);
+    assertEquals(10, limits.get("a.example").rate);
+    assertEquals(3, limits.get("b.example").connections);
+    assertEquals(0.5, limits.get("b.example").rate);
+    assertTrue(HostScheduler.parseLimits(null, new HostScheduler.Limit(16, 0)).isEmpty());
+  }
+
+  @Test
+  public void parseLimitsRejectsMalformed() {
+    final HostScheduler.Limit default_limit = new HostScheduler.Limit(16, 0);
+    for (String limits : new String[] {"a.example", "=2", "a.example=0", "a.example=x", "a.example=2/-1",
+        "a.example=2/NaN"}) {
+      assertThrows(IllegalArgumentException.class, () -> HostScheduler.parseLimits(limits, default_limit), limits);
+    }
+  }
+}
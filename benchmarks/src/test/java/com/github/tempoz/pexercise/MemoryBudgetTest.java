@@ -0,0 +1,87 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Checks what the fetchers hold of the budget before and after reading
+// a body.
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+public class MemoryBudgetTest {
+  private static byte[] png(int width, int height) throws IOException {
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY), "png", encoded);
+    return encoded.toByteArray();
+  }
+
+  @Test
+  public void bodyAcquiresItsLengthUpToTheBudget() throws InterruptedException {
+    final MemoryBudget budget = new MemoryBudget(1L << 30);
+    assertEquals(1000, budget.acquireForBody(1000));
+    assertEquals(MemoryBudget.UNKNOWN_BODY_BYTES, budget.acquireForBody(-1));
+    assertEquals(1000 + MemoryBudget.UNKNOWN_BODY_BYTES, budget.usedBytes());
+
+    final MemoryBudget small = new MemoryBudget(100);
+    assertEquals(100, small.acquireForBody(1L << 40));
+    assertEquals(100, small.usedBytes());
+  }
+
+  @Test
+  public void readBodyHoldsWhatItTakes() throws Exception {
+    final byte[] encoded = png(100, 50);
+    final MemoryBudget budget = new MemoryBudget(1L << 30);
+
+    long held = budget.acquireForBody(-1);
+    held = budget.acquireFor(held, encoded, true, false, 0);
+    assertEquals(encoded.length, held);
+    assertEquals(held, budget.usedBytes());
+    budget.release(held);
+
+    // Gray, so a byte per pixel.
+    held = budget.acquireFor(budget.acquireForBody(10), encoded, false, false, 0);
+    assertEquals(encoded.length + 100 * 50, held);
+    assertEquals(held, budget.usedBytes());
+    budget.release(held);
+
+    // Not an image, so only its encoded size.
+    final byte[] garbage = new byte[64];
+    held = budget.acquireFor(budget.acquireForBody(-1), garbage, false, false, 0);
+    assertEquals(garbage.length, held);
+    budget.release(held);
+    assertEquals(0, budget.usedBytes());
+  }
+
+  @Test
+  public void growingReleasesWhatItHoldsBeforeWaiting() throws Exception {
+    final byte[] encoded = png(100, 100);
+    final MemoryBudget budget = new MemoryBudget(encoded.length + 100 * 100);
+    final long first = budget.acquireForBody(encoded.length);
+    final long second = budget.acquireForBody(10);
+    // Needs more than is left while the second holds its body, so it waits
+    // holding nothing, leaving the second room to grow, or here shrink.
+    final long[] grown = new long[1];
+    final Thread waiting = new Thread(() -> {
+      try {
+        grown[0] = budget.acquireFor(first, encoded, false, false, 0);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    waiting.start();
+    while (budget.usedBytes() != second) {
+      Thread.sleep(10);
+    }
+    final long shrunk = budget.acquireFor(second, new byte[5], true, false, 0);
+    assertEquals(5, shrunk);
+    budget.release(shrunk);
+    waiting.join();
+    assertEquals(encoded.length + 100 * 100, grown[0]);
+    assertEquals(grown[0], budget.usedBytes());
+  }
+}
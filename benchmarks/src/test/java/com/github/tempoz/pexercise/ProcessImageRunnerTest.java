@@ -0,0 +1,64 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.github.tempoz.pexercise.benchmarks.SyntheticImages;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import org.junit.jupiter.api.Test;
+
+// Checks that a runner reused across images of different types counts
+// each as a fresh one would, and allocates nothing once warmed up.
+public class ProcessImageRunnerTest {
+  // Types read straight from their DataBuffer, one of each reader.
+  private static final String[] TYPES = {"INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY",
+    "BYTE_INDEXED"};
+
+  private static ProcessImageRunner runner() {
+    return new ProcessImageRunner(new ArrayBlockingQueue<Pair<String, FetchedImage>>(1),
+      new ArrayBlockingQueue<ResultRow>(1));
+  }
+
+  private static BufferedImage[] images() {
+    final BufferedImage[] images = new BufferedImage[TYPES.length];
+    for (int i = 0; i < TYPES.length; ++i) {
+      images[i] = SyntheticImages.create(200, 150, 1000, SyntheticImages.imageType(TYPES[i]), i);
+    }
+    return images;
+  }
+
+  @Test
+  public void reusedRunnerCountsLikeAFreshOne() {
+    final ProcessImageRunner reused = runner();
+    final BufferedImage[] images = images();
+    for (int round = 0; round < 2; ++round) {
+      for (int i = 0; i < images.length; ++i) {
+        final int[] expected = runner().processImage("", images[i]).clone();
+        assertArrayEquals(expected, reused.processImage("", images[i]), TYPES[i]);
+      }
+    }
+  }
+
+  @Test
+  public void processImageAllocatesNothingOnceWarmedUp() {
+    assumeTrue(AllocationMeter.isSupported());
+    final ProcessImageRunner runner = runner();
+    final BufferedImage[] images = images();
+    for (int round = 0; round < 20; ++round) {
+      for (BufferedImage image : images) {
+        runner.processImage("", image);
+      }
+    }
+    final long before = AllocationMeter.allocatedBytes();
+    for (int round = 0; round < 100; ++round) {
+      for (BufferedImage image : images) {
+        runner.processImage("", image);
+      }
+    }
+    final long allocated = AllocationMeter.allocatedBytes() - before;
+    // Room for the odd object the JVM allocates on the thread's behalf.
+    assertTrue(allocated < 4096, "Allocated " + allocated + " bytes");
+  }
+}
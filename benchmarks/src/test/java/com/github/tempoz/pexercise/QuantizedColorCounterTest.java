@@ -0,0 +1,97 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+// Checks QuantizedColorCounter against a plain count of the colors each
+// pixel quantizes to, see ColorCounterTest.
+public class QuantizedColorCounterTest {
+  private static final int[][] BITS = {{5, 6, 5}, {4, 4, 4}, {8, 4, 4}, {3, 2, 3}, {1, 1, 1}};
+
+  // The high bits of channel, repeated down to fill 8 bits.
+  private static int quantize(int channel, int bits) {
+    final int value = channel >>> (8 - bits);
+    int expanded = 0;
+    for (int shift = 8 - bits; shift > -bits; shift -= bits) {
+      expanded |= shift >= 0 ? value << shift : value >>> -shift;
+    }
+    return expanded & 0xff;
+  }
+
+  private static int quantize(int pixel, int[] bits) {
+    return quantize(pixel >>> 16 & 0xff, bits[0]) << 16 | quantize(pixel >>> 8 & 0xff, bits[1]) << 8 |
+      quantize(pixel & 0xff, bits[2]);
+  }
+
+  private static int[][] counted(int[] bits, int[] pixels, int k) {
+    final QuantizedColorCounter counter = new QuantizedColorCounter(bits);
+    counter.add(pixels, 0, pixels.length);
+    return ColorCounterTest.select(counter, k);
+  }
+
+  @Test
+  public void matchesCountOfQuantizedColors() {
+    for (int[] bits : BITS) {
+      for (int colors : new int[] {1, 5, 300, 100000}) {
+        final int[] pixels = ColorCounterTest.randomPixels(100000, colors, colors);
+        final int[] quantized = Arrays.stream(pixels).map(pixel -> quantize(pixel, bits)).toArray();
+        for (int k : new int[] {1, 3, 8}) {
+          final int[][] expected = ColorCounterTest.reference(quantized, k);
+          final int[][] selected = counted(bits, pixels, k);
+          final String message = Arrays.toString(bits) + " with " + colors + " colors, k = " + k;
+          assertArrayEquals(expected[0], selected[0], message);
+          assertArrayEquals(expected[1], selected[1], message);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void channelsExpandToFullRange() {
+    final int[] pixels =
+      {0x000000, 0xffffff, 0x808080, 0x808080, 0x808080, 0x7f7f7f, 0x7f7f7f, 0x7f7f7f, 0x7f7f7f};
+    // 0x80 keeps 10000 of 5 bits, which expands to 10000100, and 100000
+    // of 6, to 10000010.
+    assertArrayEquals(new int[][] {{0x7b7d7b, 0x848284, 0x000000, 0xffffff}, {4, 3, 1, 1}},
+      counted(new int[] {5, 6, 5}, pixels, 4));
+    assertArrayEquals(new int[][] {{0x000000, 0xffffff}, {5, 4}}, counted(new int[] {1, 1, 1}, pixels, 2));
+    // 8 bits are kept as they are.
+    assertArrayEquals(new int[][] {{0x7f7777, 0x808888, 0x000000, 0xffffff}, {4, 3, 1, 1}},
+      counted(new int[] {8, 4, 4}, pixels, 4));
+  }
+
+  @Test
+  public void tiesGoToTheLowerColor() {
+    final int[] pixels = {0x00ff00, 0xff0000, 0x0000ff, 0xffffff, 0x000000};
+    assertArrayEquals(new int[][] {{0x000000, 0x0000ff, 0x00ff00}, {1, 1, 1}},
+      counted(new int[] {4, 4, 4}, pixels, 3));
+  }
+
+  @Test
+  public void unusedColumnsAreEmpty() {
+    assertArrayEquals(new int[][] {{0xffffff, 0, 0}, {2, 0, 0}},
+      counted(new int[] {5, 6, 5}, new int[] {0xffffffff, 0x00ffffff}, 3));
+  }
+
+  @Test
+  public void clearForgetsCounts() {
+    final QuantizedColorCounter counter = new QuantizedColorCounter(new int[] {4, 4, 4});
+    counter.add(new int[] {0x112233, 0x112233}, 0, 2);
+    counter.clear();
+    counter.add(new int[] {0x445566, 0x112233, 0x445566}, 1, 2);
+    assertArrayEquals(new int[][] {{0x112233, 0x445566}, {1, 1}}, ColorCounterTest.select(counter, 2));
+  }
+
+  @Test
+  public void parseBitsTakesThreeChannels() {
+    assertArrayEquals(new int[] {5, 6, 5}, QuantizedColorCounter.parseBits("5,6,5"));
+    assertArrayEquals(new int[] {4, 4, 4}, QuantizedColorCounter.parseBits("4, 4 ,4"));
+    assertArrayEquals(new int[] {8, 4, 4}, QuantizedColorCounter.parseBits("8,4,4"));
+    for (String bits : new String[] {"5,6", "5,6,5,1", "0,4,4", "9,1,1", "8,8,1", "a,4,4", ""}) {
+      assertThrows(IllegalArgumentException.class, () -> QuantizedColorCounter.parseBits(bits), bits);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class ReorderWindowTest {
+  private static ResultRow row(String image_url) {
+    return ResultRow.exact(image_url, new int[] {1, 2, 3}, 3);
+  }
+
+  private static List<String> urls(List<ResultRow> rows) {
+    final ArrayList<String> urls = new ArrayList<>();
+    for (ResultRow row : rows) {
+      urls.add(row.image_url);
+    }
+    return urls;
+  }
+
+  @Test
+  public void rowsComeOutInInputOrder() throws InterruptedException {
+    final ReorderWindow window = new ReorderWindow(8);
+    for (String url : List.of("a", "b", "c", "d")) {
+      window.assign(url);
+    }
+    final ArrayList<ResultRow> ready = new ArrayList<>();
+    window.finish(row("c"), ready);
+    window.finish(row("b"), ready);
+    assertTrue(ready.isEmpty());
+    window.finish(row("a"), ready);
+    assertEquals(List.of("a", "b", "c"), urls(ready));
+    window.finish(row("d"), ready);
+    assertEquals(List.of("a", "b", "c", "d"), urls(ready));
+    assertEquals(3, window.peakHeld());
+  }
+
+  @Test
+  public void failuresFreeTheirPlaceWithoutARow() throws InterruptedException {
+    final ReorderWindow window = new ReorderWindow(8);
+    for (String url : List.of("a", "b", "c")) {
+      window.assign(url);
+    }
+    final ArrayList<ResultRow> ready = new ArrayList<>();
+    window.finish(row("c"), ready);
+    window.finish(ResultRow.failed("a"), ready);
+    assertTrue(ready.isEmpty());
+    window.finish(ResultRow.failed("b"), ready);
+    assertEquals(List.of("c"), urls(ready));
+  }
+
+  @Test
+  public void repeatedURLsAreMatchedInOrder() throws InterruptedException {
+    final ReorderWindow window = new ReorderWindow(8);
+    for (String url : List.of("a", "b", "a")) {
+      window.assign(url);
+    }
+    final ArrayList<ResultRow> ready = new ArrayList<>();
+    final ResultRow first = row("a");
+    final ResultRow second = row("a");
+    window.finish(first, ready);
+    assertEquals(1, ready.size());
+    window.finish(second, ready);
+    assertEquals(1, ready.size());
+    window.finish(row("b"), ready);
+    assertEquals(List.of("a", "b", "a"), urls(ready));
+    assertSame(first, ready.get(0));
+    assertSame(second, ready.get(2));
+  }
+
+  @Test
+  public void unknownURLIsWrittenStraightAway() {
+    final ReorderWindow window = new ReorderWindow(8);
+    final ArrayList<ResultRow> ready = new ArrayList<>();
+    window.finish(row("x"), ready);
+    assertEquals(List.of("x"), urls(ready));
+    window.finish(ResultRow.failed("y"), ready);
+    assertEquals(List.of("x"), urls(ready));
+  }
+
+  @Test
+  public void drainSkipsUnfinished() throws InterruptedException {
+    final ReorderWindow window = new ReorderWindow(8);
+    for (String url : List.of("a", "b", "c")) {
+      window.assign(url);
+    }
+    final ArrayList<ResultRow> ready = new ArrayList<>();
+    window.finish(row("c"), ready);
+    assertTrue(ready.isEmpty());
+    window.drain(ready);
+    assertEquals(List.of("c"), urls(ready));
+  }
+
+  @Test
+  public void assignWaitsForRoomInTheWindow() throws InterruptedException {
+    final ReorderWindow window = new ReorderWindow(2);
+    window.assign("a");
+    window.assign("b");
+    final CountDownLatch assigned = new CountDownLatch(1);
+    final Thread reader = new Thread(() -> {
+      try {
+        window.assign("c");
+        assigned.countDown();
+      } catch (InterruptedException e) {
+        // Fails the test by never counting down.
+      }
+    });
+    reader.start();
+    assertFalse(assigned.await(200, TimeUnit.MILLISECONDS));
+
+    final ArrayList<ResultRow> ready = new ArrayList<>();
+    // Finishing b alone doesn't move the window past a.
+    window.finish(row("b"), ready);
+    assertFalse(assigned.await(200, TimeUnit.MILLISECONDS));
+    window.finish(row("a"), ready);
+    assertTrue(assigned.await(5, TimeUnit.SECONDS));
+    reader.join();
+
+    window.finish(row("c"), ready);
+    assertEquals(List.of("a", "b", "c"), urls(ready));
+  }
+}
@@ -0,0 +1,199 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ResultCacheTest {
+  private static final ResultCache.Validators VALIDATORS = new ResultCache.Validators("\"v1\"", null, 1000, -1);
+
+  @TempDir
+  Path dir;
+
+  private static ResultCache.Validators fromHeaders(Map<String, String> headers) {
+    return ResultCache.Validators.fromHeaders(headers::get, 5000);
+  }
+
+  private ResultCache open(Path path, int max_entries) throws IOException {
+    return ResultCache.open(path, max_entries, 3, "exactly");
+  }
+
+  @Test
+  public void entriesSurviveClose() throws IOException {
+    final Path path = dir.resolve("cache");
+    try (ResultCache cache = open(path, 10)) {
+      cache.put("a", new int[] {1, 2, 3}, VALIDATORS);
+      cache.put("b", new int[] {4, 5, 6}, VALIDATORS);
+      cache.put("a", new int[] {7, 8, 9}, VALIDATORS);
+    }
+    try (ResultCache cache = open(path, 10)) {
+      assertArrayEquals(new int[] {7, 8, 9}, cache.lookup("a").colors);
+      assertArrayEquals(new int[] {4, 5, 6}, cache.lookup("b").colors);
+      assertEquals("\"v1\"", cache.lookup("a").validators.etag);
+      assertNull(cache.lookup("c"));
+    }
+  }
+
+  @Test
+  public void entriesSurviveCrash() throws IOException {
+    final Path path = dir.resolve("cache");
+    // Never closed, as when the run dies.
+    final ResultCache crashed = open(path, 10);
+    crashed.put("a", new int[] {1, 2, 3}, VALIDATORS);
+    try (ResultCache cache = open(path, 10)) {
+      assertArrayEquals(new int[] {1, 2, 3}, cache.lookup("a").colors);
+    }
+  }
+
+  @Test
+  public void tornRecordDoesNotHideLaterOnes() throws IOException {
+    final Path path = dir.resolve("cache");
+    final ResultCache crashed = open(path, 10);
+    crashed.put("a", new int[] {1, 2, 3}, VALIDATORS);
+    crashed.put("b", new int[] {4, 5, 6}, VALIDATORS);
+    // Cut the last record short, as a crash while appending it would.
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 5);
+    }
+
+    final ResultCache recovered = open(path, 10);
+    assertNotNull(recovered.lookup("a"));
+    assertNull(recovered.lookup("b"));
+    recovered.put("c", new int[] {7, 8, 9}, VALIDATORS);
+
+    try (ResultCache cache = open(path, 10)) {
+      assertArrayEquals(new int[] {1, 2, 3}, cache.lookup("a").colors);
+      assertArrayEquals(new int[] {7, 8, 9}, cache.lookup("c").colors);
+    }
+  }
+
+  @Test
+  public void unreadableFileIsReplaced() throws IOException {
+    final Path path = dir.resolve("cache");
+    Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    try (ResultCache cache = open(path, 10)) {
+      assertNull(cache.lookup("a"));
+      cache.put("a", new int[] {1, 2, 3}, VALIDATORS);
+    }
+    try (ResultCache cache = open(path, 10)) {
+      assertNotNull(cache.lookup("a"));
+    }
+  }
+
+  @Test
+  public void fileCountedOtherwiseIsDiscarded() throws IOException {
+    final Path path = dir.resolve("cache");
+    try (ResultCache cache = open(path, 10)) {
+      cache.put("a", new int[] {1, 2, 3}, VALIDATORS);
+    }
+    try (ResultCache cache = ResultCache.open(path, 10, 3, "quantized to 4,4,4")) {
+      assertNull(cache.lookup("a"));
+    }
+    try (ResultCache cache = ResultCache.open(path, 10, 5, "quantized to 4,4,4")) {
+      assertNull(cache.lookup("a"));
+      cache.put("a", new int[] {1, 2, 3, 4, 5}, VALIDATORS);
+    }
+    try (ResultCache cache = ResultCache.open(path, 10, 5, "quantized to 4,4,4")) {
+      assertArrayEquals(new int[] {1, 2, 3, 4, 5}, cache.lookup("a").colors);
+    }
+  }
+
+  @Test
+  public void leastRecentlyUsedIsEvicted() throws IOException {
+    final Path path = dir.resolve("cache");
+    try (ResultCache cache = open(path, 2)) {
+      cache.put("a", new int[] {1, 2, 3}, VALIDATORS);
+      cache.put("b", new int[] {4, 5, 6}, VALIDATORS);
+      cache.lookup("a");
+      cache.put("c", new int[] {7, 8, 9}, VALIDATORS);
+      assertNull(cache.lookup("b"));
+    }
+    try (ResultCache cache = open(path, 2)) {
+      assertNotNull(cache.lookup("a"));
+      assertNull(cache.lookup("b"));
+      assertNotNull(cache.lookup("c"));
+    }
+  }
+
+  @Test
+  public void fileStaysBoundedWithoutClose() throws IOException {
+    final Path path = dir.resolve("cache");
+    final ResultCache cache = open(path, 10);
+    long largest = 0;
+    for (int i = 0; i < 1000; ++i) {
+      cache.put("https://example.com/" + (i % 50), new int[] {i, i, i}, VALIDATORS);
+      largest = Math.max(largest, Files.size(path));
+    }
+    // Each record is well under 100 bytes, and there are never more than
+    // twice max_entries.
+    assertTrue(largest < 2 * 10 * 100, "File grew to " + largest + " bytes");
+    try (ResultCache reopened = open(path, 10)) {
+      assertArrayEquals(new int[] {999, 999, 999}, reopened.lookup("https://example.com/49").colors);
+    }
+  }
+
+  @Test
+  public void validatorsFromHeaders() {
+    final ResultCache.Validators validators =
+      fromHeaders(Map.of("ETag", "\"abc\"", "Last-Modified", "Mon, 01 Jan 2024 00:00:00 GMT",
+          "Cache-Control", "public, max-age=60"));
+    assertEquals("\"abc\"", validators.etag);
+    assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", validators.last_modified);
+    assertEquals(60 * 1000, validators.max_age);
+    assertTrue(validators.isFresh(5000 + 59 * 1000));
+    assertFalse(validators.isFresh(5000 + 60 * 1000));
+  }
+
+  @Test
+  public void validatorsWithoutMaxAgeAreAlwaysRevalidated() {
+    final ResultCache.Validators validators = fromHeaders(Map.of("ETag", "\"abc\""));
+    assertEquals(-1, validators.max_age);
+    assertFalse(validators.isFresh(5000));
+  }
+
+  @Test
+  public void noCacheOverridesMaxAge() {
+    final ResultCache.Validators validators =
+      fromHeaders(Map.of("ETag", "\"abc\"", "Cache-Control", "max-age=60, no-cache"));
+    assertEquals(0, validators.max_age);
+    assertFalse(validators.isFresh(5000));
+  }
+
+  @Test
+  public void responsesThatCantBeReusedAreNotStored() {
+    assertNull(fromHeaders(Map.of("ETag", "\"abc\"", "Cache-Control", "no-store")));
+    assertNull(fromHeaders(Map.of()));
+    assertNull(fromHeaders(Map.of("Cache-Control", "no-cache")));
+    assertNotNull(fromHeaders(Map.of("Cache-Control", "max-age=10")));
+  }
+
+  @Test
+  public void malformedMaxAgeIsIgnored() {
+    final ResultCache.Validators validators =
+      fromHeaders(Map.of("Last-Modified", "Mon, 01 Jan 2024 00:00:00 GMT", "Cache-Control", "max-age=soon"));
+    assertEquals(-1, validators.max_age);
+  }
+
+  @Test
+  public void revalidationKeepsValidatorsLeftOut() {
+    final ResultCache.Validators stored = new ResultCache.Validators("\"abc\"", "then", 1000, 60 * 1000);
+    final ResultCache.Validators revalidated =
+      stored.revalidated(new ResultCache.Validators(null, "now", 9000, 30 * 1000));
+    assertEquals("\"abc\"", revalidated.etag);
+    assertEquals("now", revalidated.last_modified);
+    assertEquals(9000, revalidated.fetched_at);
+    assertEquals(30 * 1000, revalidated.max_age);
+  }
+}
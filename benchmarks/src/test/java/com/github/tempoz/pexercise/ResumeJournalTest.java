@@ -0,0 +1,116 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ResumeJournalTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  public void committedRowsAreSkippedOnResume() throws IOException {
+    final Path path = dir.resolve("journal");
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertEquals(0, journal.doneCount());
+      journal.record("a");
+      journal.record("b");
+      journal.commit(100);
+      journal.record("c");
+      journal.commit(150);
+    }
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertEquals(3, journal.doneCount());
+      assertEquals(150, journal.committedLength());
+      assertTrue(journal.skip("a"));
+      assertFalse(journal.skip("a"));
+      assertTrue(journal.skip("c"));
+      assertFalse(journal.skip("d"));
+    }
+  }
+
+  @Test
+  public void repeatedURLsAreSkippedAsOftenAsDone() throws IOException {
+    final Path path = dir.resolve("journal");
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      journal.record("a");
+      journal.record("a");
+      journal.commit(10);
+    }
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertTrue(journal.skip("a"));
+      assertTrue(journal.skip("a"));
+      assertFalse(journal.skip("a"));
+    }
+  }
+
+  @Test
+  public void uncommittedRowsAreDoneAgain() throws IOException {
+    final Path path = dir.resolve("journal");
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      journal.record("a");
+      journal.commit(10);
+      journal.record("b");
+      assertTrue(journal.hasUncommitted());
+    }
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertEquals(1, journal.doneCount());
+      assertEquals(10, journal.committedLength());
+      assertFalse(journal.skip("b"));
+    }
+  }
+
+  @Test
+  public void tornGroupIsDropped() throws IOException {
+    final Path path = dir.resolve("journal");
+    // Never closed, as when the run dies.
+    final ResumeJournal crashed = ResumeJournal.open(path);
+    crashed.record("a");
+    crashed.commit(10);
+    crashed.record("b");
+    crashed.record("c");
+    crashed.commit(30);
+    // Cut the last group short, as a crash while committing it would.
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 2);
+    }
+
+    final ResumeJournal resumed = ResumeJournal.open(path);
+    assertEquals(1, resumed.doneCount());
+    assertEquals(10, resumed.committedLength());
+    resumed.record("d");
+    resumed.commit(20);
+
+    // The group committed after the torn one is read as well.
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertEquals(2, journal.doneCount());
+      assertEquals(20, journal.committedLength());
+      assertTrue(journal.skip("a"));
+      assertFalse(journal.skip("b"));
+      assertTrue(journal.skip("d"));
+    }
+  }
+
+  @Test
+  public void unreadableJournalIsTreatedAsEmpty() throws IOException {
+    final Path path = dir.resolve("journal");
+    Files.write(path, new byte[] {9, 9, 9, 9, 9, 9});
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertEquals(0, journal.doneCount());
+      assertEquals(0, journal.committedLength());
+      journal.record("a");
+      journal.commit(5);
+    }
+    try (ResumeJournal journal = ResumeJournal.open(path)) {
+      assertEquals(1, journal.doneCount());
+    }
+  }
+}
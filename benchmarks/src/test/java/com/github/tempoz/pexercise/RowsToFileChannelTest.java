@@ -0,0 +1,65 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Checks that rows are written as ResultRow.toString encoded in UTF-8,
+// and that both line readers read URLs in UTF-8 back as they were.
+public class RowsToFileChannelTest {
+  private static final List<String> URLS = List.of("https://example.com/a.png",
+    "https://example.com/café.png", "https://例え.jp/画像.jpg", "https://example.com/🎨.gif");
+
+  @TempDir
+  Path dir;
+
+  private static List<String> read(Iterable<CharSequence> lines) {
+    final ArrayList<String> read = new ArrayList<>();
+    for (CharSequence line : lines) {
+      read.add(line.toString());
+    }
+    return read;
+  }
+
+  @Test
+  public void urlsAreWrittenAsUtf8() throws IOException {
+    final Path path = dir.resolve("output.csv");
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    final ArrayList<String> urls = new ArrayList<>(URLS);
+    // Unpaired, so written as '?', as String.getBytes would.
+    urls.add("https://example.com/broken\ud83c.gif");
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+      // A small buffer, so that characters are split across flushes.
+      final RowsToFileChannel out = new RowsToFileChannel(file, 7);
+      for (String url : urls) {
+        final ResultRow row = ResultRow.approximate(url, new int[] {0x123456, 0xabcdef, 0}, 3, 0.875);
+        out.put(row);
+        expected.writeBytes((row + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+      }
+      out.flush();
+    }
+    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(path));
+  }
+
+  @Test
+  public void linesAreReadAsUtf8() throws IOException {
+    final Path path = dir.resolve("input.txt");
+    Files.write(path, URLS, StandardCharsets.UTF_8);
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      // Blocks of 5 bytes, so that characters are split across them.
+      assertEquals(URLS, read(new LinesFromFileChannel(file, 5)));
+      assertEquals(URLS, read(new LinesFromMappedFile(file)));
+    }
+  }
+}
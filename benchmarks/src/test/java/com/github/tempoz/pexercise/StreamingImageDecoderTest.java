@@ -0,0 +1,140 @@
+package com.github.tempoz.pexercise;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.github.tempoz.pexercise.benchmarks.SyntheticImages;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.junit.jupiter.api.Test;
+
+// Checks that decoding as the pixels are counted gives the counts of
+// decoding with ImageIO.read and counting after, and that rows are
+// decoded in order where the reader allows, falling back to bands of
+// rows where it doesn't.
+public class StreamingImageDecoderTest {
+  // Odd sizes, so that bands and subsampling don't divide them evenly.
+  private static final int WIDTH = 203;
+  private static final int HEIGHT = 157;
+  // Small, so that the fallback decodes several bands.
+  private static final int BAND_PIXELS = 2000;
+  private static final int K = 8;
+
+  private static byte[] encode(String format, int type, boolean progressive) throws IOException {
+    final BufferedImage image = SyntheticImages.create(WIDTH, HEIGHT, 40, type, type);
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+    final ImageWriteParam param = writer.getDefaultWriteParam();
+    // Interlaced for PNG and GIF, where the GIF writer interlaces unless
+    // told not to.
+    if (param.canWriteProgressive()) {
+      param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+    }
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try (ImageOutputStream output = ImageIO.createImageOutputStream(encoded)) {
+      writer.setOutput(output);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return encoded.toByteArray();
+  }
+
+  // Every stride-th pixel of every stride-th row of encoded, decoded with
+  // ImageIO.read.
+  private static int[] referencePixels(byte[] encoded, int stride) throws IOException {
+    final BufferedImage image = ImageIO.read(new ByteArrayInputStream(encoded));
+    final int sampled_width = (image.getWidth() + stride - 1) / stride;
+    final int sampled_height = (image.getHeight() + stride - 1) / stride;
+    final int[] pixels = new int[sampled_width * sampled_height];
+    int i = 0;
+    for (int y = 0; y < image.getHeight(); y += stride) {
+      for (int x = 0; x < image.getWidth(); x += stride) {
+        pixels[i++] = image.getRGB(x, y);
+      }
+    }
+    return pixels;
+  }
+
+  // Checks the counts of decoding encoded as it is counted, returning
+  // whether it was decoded in bands.
+  private static boolean checkCounts(byte[] encoded, int stride, String message) throws IOException {
+    final int[] pixels = referencePixels(encoded, stride);
+    final HashColorCounter expected = new HashColorCounter();
+    expected.add(pixels, 0, pixels.length);
+    final HashColorCounter counted = new HashColorCounter();
+    try (var decoder = StreamingImageDecoder.open(encoded, BAND_PIXELS)) {
+      decoder.setSourceSubsampling(stride);
+      assertEquals(pixels.length, decoder.getSampledPixelCount(), message);
+      decoder.decodeInto(counted);
+      assertEquals(expected.size(), counted.size(), message);
+      final int[][] reference = ColorCounterTest.reference(pixels, K);
+      final int[][] selected = ColorCounterTest.select(counted, K);
+      assertArrayEquals(reference[0], selected[0], message);
+      assertArrayEquals(reference[1], selected[1], message);
+      return decoder.decodedInBands();
+    }
+  }
+
+  private static void check(String format, int type, boolean progressive, boolean in_bands)
+      throws IOException {
+    final byte[] encoded = encode(format, type, progressive);
+    for (int stride : new int[] {1, 3}) {
+      final String message = format + " of type " + type + (progressive ? ", progressive" : "") +
+        ", stride " + stride;
+      assertEquals(in_bands, checkCounts(encoded, stride, message), message);
+    }
+  }
+
+  @Test
+  public void baselineJpegIsDecodedInRows() throws IOException {
+    check("jpeg", BufferedImage.TYPE_3BYTE_BGR, false, false);
+    check("jpeg", BufferedImage.TYPE_BYTE_GRAY, false, false);
+  }
+
+  @Test
+  public void progressiveJpegIsDecodedInRows() throws IOException {
+    check("jpeg", BufferedImage.TYPE_3BYTE_BGR, true, false);
+  }
+
+  @Test
+  public void pngIsDecodedInRows() throws IOException {
+    check("png", BufferedImage.TYPE_INT_RGB, false, false);
+    check("png", BufferedImage.TYPE_INT_ARGB, false, false);
+    check("png", BufferedImage.TYPE_BYTE_GRAY, false, false);
+    check("png", BufferedImage.TYPE_BYTE_INDEXED, false, false);
+  }
+
+  @Test
+  public void interlacedPngIsDecodedInBands() throws IOException {
+    check("png", BufferedImage.TYPE_INT_RGB, true, true);
+    check("png", BufferedImage.TYPE_BYTE_INDEXED, true, true);
+  }
+
+  @Test
+  public void gifIsDecodedInRows() throws IOException {
+    check("gif", BufferedImage.TYPE_BYTE_INDEXED, false, false);
+  }
+
+  @Test
+  public void interlacedGifIsDecodedInBands() throws IOException {
+    check("gif", BufferedImage.TYPE_BYTE_INDEXED, true, true);
+  }
+
+  @Test
+  public void otherFormatsAreDecodedInBands() throws IOException {
+    check("bmp", BufferedImage.TYPE_3BYTE_BGR, false, true);
+  }
+
+  @Test
+  public void unrecognizedImageOpensNothing() throws IOException {
+    assertNull(StreamingImageDecoder.open(new byte[64], BAND_PIXELS));
+  }
+}
@@ -0,0 +1,35 @@
+package com.github.tempoz.pexercise;
+
+import java.lang.management.ManagementFactory;
+
+// Measures the bytes allocated on the heap by the current thread, where
+// the JVM supports it (HotSpot and its derivatives).
+public class AllocationMeter {
+  private static final com.sun.management.ThreadMXBean thread_bean = threadBean();
+
+  private static com.sun.management.ThreadMXBean threadBean() {
+    var bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    var sun_bean = (com.sun.management.ThreadMXBean) bean;
+    if (!sun_bean.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    sun_bean.setThreadAllocatedMemoryEnabled(true);
+    return sun_bean;
+  }
+
+  public static boolean isSupported() {
+    return thread_bean != null;
+  }
+
+  // Total bytes allocated by the current thread so far, or -1 if not
+  // supported. Only differences between two calls are meaningful.
+  public static long allocatedBytes() {
+    if (thread_bean == null) {
+      return -1;
+    }
+    return thread_bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
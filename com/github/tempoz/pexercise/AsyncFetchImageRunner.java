@@ -0,0 +1,377 @@
+package com.github.tempoz.pexercise;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+// Fetches images with asynchronous requests on a shared HttpClient,
+// which multiplexes requests over HTTP/2 connections to https hosts that
+// support it, unless options.http2 is off, and keeps HTTP/1.1
+// connections alive between requests. Plain http is always fetched over
+// HTTP/1.1, as the client would otherwise ask each host to upgrade to
+// HTTP/2 in the clear. A single runner takes URLs from the queue and
+// sends requests, so the number of requests in flight is limited by
+// FetchPermits rather than by threads.
+public class AsyncFetchImageRunner implements Runnable {
+  private BlockingQueue<String> image_urls;
+  private BlockingQueue<Pair<String, FetchedImage>> images;
+  private PipelineListener listener;
+
+  // For https and http URLs.
+  private final HttpClient client;
+  private final HttpClient plain_client;
+  private final ExecutorService executor;
+  // Cancels the requests still in flight at their deadlines.
+  private final ScheduledThreadPoolExecutor deadlines;
+
+  private final FetchPermits permits;
+  // Null if URLs aren't scheduled by host.
+  private final HostScheduler scheduler;
+  // Null if results aren't cached.
+  private final ResultCache cache;
+  // Null if images aren't deduplicated by content.
+  private final ContentDeduplicator dedup;
+  // Null if memory held by images isn't bounded.
+  private final MemoryBudget budget;
+  private final boolean streaming;
+  private final boolean approximate;
+  private final int sample_pixels;
+  private final long deadline_nanos;
+
+  // Responses are decoded and queued on executor, which should have as
+  // many threads as decoding should be allowed to use. The clients run
+  // on threads of their own, so that waiting for the budget or for room
+  // in the image queue never holds up their connections. Results in cache
+  // are used without fetching while fresh, and revalidated with
+  // conditional requests once stale. Images already in dedup are not
+  // decoded again. Each image holds its size of budget until processed.
+  // image_urls are handed on by scheduler, unless it is null, which
+  // limits the requests to each host in place of the permits if it
+  // schedules by host, and retries those that fail in ways that may not
+  // last.
+  public AsyncFetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      ExecutorService executor, Options options, ResultCache cache, ContentDeduplicator dedup, MemoryBudget budget,
+      HostScheduler scheduler, PipelineListener listener) {
+    this.image_urls = image_urls;
+    this.images = images;
+    this.listener = listener;
+    this.executor = executor;
+    this.client = newClient(options.http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1,
+      options.connect_timeout_ms);
+    this.plain_client = newClient(HttpClient.Version.HTTP_1_1, options.connect_timeout_ms);
+    this.deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+      final Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.deadlines.setRemoveOnCancelPolicy(true);
+    this.permits = new FetchPermits(options.max_in_flight,
+      scheduler != null && options.host_scheduling ? options.max_in_flight : options.max_per_host);
+    this.scheduler = scheduler;
+    this.cache = cache;
+    this.dedup = dedup;
+    this.budget = budget;
+    this.streaming = options.streaming;
+    this.approximate = options.approximate;
+    this.sample_pixels = options.sample_pixels;
+    this.deadline_nanos = TimeUnit.MILLISECONDS.toNanos(options.fetch_deadline_ms);
+  }
+
+  public AsyncFetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      ExecutorService executor, Options options, PipelineListener listener) {
+    this(image_urls, images, executor, options, null, null, null, null, listener);
+  }
+
+  private static HttpClient newClient(HttpClient.Version version, int connect_timeout_ms) {
+    return HttpClient.newBuilder()
+      .version(version)
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(Duration.ofMillis(connect_timeout_ms))
+      .build();
+  }
+
+  private void finished(String image_url, int status) {
+    if (scheduler != null) {
+      scheduler.finished(image_url, status);
+    }
+  }
+
+  // Reports that the fetch of image_url sent at sent_at failed with
+  // failure, unless scheduler is to retry it.
+  private void failed(String image_url, PipelineListener.Failure failure, int status, long sent_at) {
+    final long attempt_nanos = System.nanoTime() - sent_at;
+    if (scheduler != null && scheduler.retry(image_url, failure, status, attempt_nanos)) {
+      listener.fetchRetried(image_url, failure, attempt_nanos);
+      return;
+    }
+    listener.urlFailed(image_url, failure);
+  }
+
+  // Sends the request for image_url, returning false if none was sent,
+  // in which case it is finished.
+  private boolean fetch(String image_url) throws InterruptedException {
+    final ResultCache.Entry cached = cache == null ? null : cache.lookup(image_url);
+    if (cached != null && cached.validators.isFresh(System.currentTimeMillis())) {
+      queue(image_url, FetchedImage.cached(cached.colors));
+      return false;
+    }
+
+    final URI uri;
+    try {
+      uri = new URI(image_url);
+      if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) {
+        throw new URISyntaxException(image_url, "Not an http or https URL");
+      }
+    } catch (URISyntaxException e) {
+      System.err.println(image_url + " is not a valid URL.");
+      e.printStackTrace();
+      listener.urlFailed(image_url, PipelineListener.Failure.INVALID_URL);
+      return false;
+    }
+
+    final String host = uri.getHost() == null ? "" : uri.getHost();
+    permits.acquire(host);
+
+    // The response has to come by the deadline of the URL.
+    final long timeout_nanos = scheduler == null ? deadline_nanos :
+      Math.min(deadline_nanos, scheduler.remainingNanos(image_url));
+    final HttpRequest request;
+    try {
+      var builder = HttpRequest.newBuilder(uri).GET().timeout(Duration.ofNanos(Math.max(1000000, timeout_nanos)));
+      if (cached != null && cached.validators.etag != null) {
+        builder.header("If-None-Match", cached.validators.etag);
+      }
+      if (cached != null && cached.validators.last_modified != null) {
+        builder.header("If-Modified-Since", cached.validators.last_modified);
+      }
+      request = builder.build();
+    } catch (IllegalArgumentException e) {
+      permits.release(host);
+      System.err.println(image_url + " is not a valid URL.");
+      e.printStackTrace();
+      listener.urlFailed(image_url, PipelineListener.Failure.INVALID_URL);
+      return false;
+    }
+
+    // The body is read as soon as the response comes, so what it takes is
+    // acquired before sending, and corrected once it is read.
+    final long held;
+    try {
+      held = budget == null ? 0 : budget.acquireForBody(-1);
+    } catch (InterruptedException e) {
+      permits.release(host);
+      throw e;
+    }
+
+    final long sent_at = System.nanoTime();
+    final CompletableFuture<HttpResponse<byte[]>> pending =
+      (uri.getScheme().equals("https") ? client : plain_client)
+        .sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+    // The timeout of the request covers only the wait for the response
+    // headers, so the body is cut off at the deadline as well.
+    final ScheduledFuture<?> deadline = deadlines.schedule(() -> pending.cancel(true), timeout_nanos,
+      TimeUnit.NANOSECONDS);
+    pending.whenCompleteAsync((response, error) -> {
+      deadline.cancel(false);
+      try {
+        if (!handleResponse(image_url, cached, sent_at, held, response, error) && budget != null) {
+          budget.release(held);
+        }
+      } finally {
+        permits.release(host);
+        finished(image_url, response == null ? 0 : response.statusCode());
+      }
+    }, executor);
+    return true;
+  }
+
+  // Handles the response to the request for image_url, sent holding held
+  // bytes of the budget, returning whether it took them over, and
+  // otherwise leaving them to be released.
+  private boolean handleResponse(String image_url, ResultCache.Entry cached, long sent_at, long held,
+      HttpResponse<byte[]> response, Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    if (error instanceof HttpTimeoutException || error instanceof CancellationException) {
+      System.err.println("Timed out fetching " + image_url + ": " + error.getMessage());
+      failed(image_url, PipelineListener.Failure.TIMED_OUT, 0, sent_at);
+      return false;
+    }
+    if (error != null) {
+      System.err.println("Encountered error fetching " + image_url);
+      error.printStackTrace();
+      failed(image_url, PipelineListener.Failure.FETCH_ERROR, 0, sent_at);
+      return false;
+    }
+    if (response.statusCode() == 404 || response.statusCode() == 410) {
+      System.err.println("URL " + image_url + " does not exist.");
+      failed(image_url, PipelineListener.Failure.NOT_FOUND, response.statusCode(), sent_at);
+      return false;
+    }
+    final ResultCache.Validators validators = cache == null ? null : ResultCache.Validators.fromHeaders(
+        name -> response.headers().firstValue(name).orElse(null), System.currentTimeMillis());
+    if (response.statusCode() == 304 && cached != null) {
+      queue(image_url, FetchedImage.cached(cached.colors).withValidators(cached.validators.revalidated(validators)));
+      return false;
+    }
+    if (response.statusCode() == 429 || response.statusCode() == 503) {
+      System.err.println("Throttled with HTTP status " + response.statusCode() + " fetching " + image_url);
+      failed(image_url, PipelineListener.Failure.THROTTLED, response.statusCode(), sent_at);
+      return false;
+    }
+    if (response.statusCode() != 200) {
+      System.err.println("Encountered HTTP status " + response.statusCode() + " fetching " + image_url);
+      failed(image_url, PipelineListener.Failure.HTTP_STATUS, response.statusCode(), sent_at);
+      return false;
+    }
+    listener.imageFetched(image_url, response.body().length, System.nanoTime() - sent_at);
+
+    Long content_hash = null;
+    if (dedup != null) {
+      content_hash = ContentDeduplicator.hash(response.body());
+      final int[] deduplicated = dedup.lookup(content_hash);
+      if (deduplicated != null) {
+        queue(image_url, FetchedImage.cached(deduplicated).withValidators(validators));
+        return false;
+      }
+    }
+
+    long budgeted = 0;
+    if (budget != null) {
+      try {
+        budgeted = budget.acquireFor(held, response.body(), streaming, approximate, sample_pixels);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted waiting for memory to decode " + image_url);
+        e.printStackTrace();
+        listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+        // Nothing is held once acquiring is interrupted.
+        return true;
+      }
+    }
+
+    FetchedImage fetched;
+    if (streaming) {
+      // Left encoded, to be decoded as it is processed.
+      fetched = FetchedImage.encoded(response.body()).withValidators(validators).withContentHash(content_hash);
+    } else {
+      final long decode_start = System.nanoTime();
+      try {
+        if (approximate) {
+          fetched = Sampling.read(new ByteArrayInputStream(response.body()), sample_pixels);
+        } else {
+          final BufferedImage image = ImageIO.read(new ByteArrayInputStream(response.body()));
+          fetched = image == null ? null : FetchedImage.decoded(image);
+        }
+      } catch (IOException | RuntimeException e) {
+        if (budget != null) {
+          budget.release(budgeted);
+        }
+        System.err.println("Encountered error decoding " + image_url);
+        e.printStackTrace();
+        failed(image_url, PipelineListener.Failure.DECODE_ERROR, response.statusCode(), sent_at);
+        return true;
+      }
+      if (fetched == null) {
+        if (budget != null) {
+          budget.release(budgeted);
+        }
+        System.err.println("Reading " + image_url + " returned a null image.");
+        failed(image_url, PipelineListener.Failure.UNRECOGNIZED_IMAGE, response.statusCode(), sent_at);
+        return true;
+      }
+      listener.imageDecoded(image_url, System.nanoTime() - decode_start);
+      // Only the decoded image is held from here on.
+      if (budget != null) {
+        budget.release(response.body().length);
+        budgeted -= response.body().length;
+      }
+      fetched = fetched.withValidators(validators).withContentHash(content_hash);
+    }
+
+    queue(image_url, fetched.withBudget(budget, budgeted));
+    return true;
+  }
+
+  private void queue(String image_url, FetchedImage fetched) {
+    try {
+      images.put(new Pair<String, FetchedImage>(image_url, fetched));
+      listener.imageQueued(image_url);
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted when putting image retrieved from " +
+          image_url);
+      e.printStackTrace();
+      fetched.releaseBudget();
+      listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+    }
+  }
+
+  @Override
+  public void run() {
+    String image_url;
+    while (true) {
+      try {
+        image_url = image_urls.take();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted when taking image_url from queue.");
+        e.printStackTrace();
+        continue;
+      }
+
+      // "" is the poison pill
+      if (image_url.isEmpty()) {
+        while (true) {
+          try {
+            image_urls.put(image_url);
+            break;
+          } catch (InterruptedException e) {
+            System.err.println("Interrupted when re-inserting the poison pill. Retrying...");
+            e.printStackTrace();
+          }
+        }
+        // Wait for the requests in flight, so that all images are
+        // queued by the time this returns.
+        while (true) {
+          try {
+            permits.awaitIdle();
+            break;
+          } catch (InterruptedException e) {
+            System.err.println("Interrupted waiting for requests in flight. Retrying...");
+            e.printStackTrace();
+          }
+        }
+        deadlines.shutdown();
+        return;
+      }
+
+      boolean sent = false;
+      try {
+        sent = fetch(image_url);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted when sending request for " + image_url);
+        e.printStackTrace();
+        listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+      }
+      if (!sent) {
+        finished(image_url, 0);
+      }
+    }
+  }
+}
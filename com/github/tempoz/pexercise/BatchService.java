@@ -0,0 +1,267 @@
+package com.github.tempoz.pexercise;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// The input and output of a pipeline kept running as a service, so that
+// each batch of URLs submitted is processed by warm threads in a warm
+// JVM rather than paying for a start of its own. Batches come either
+// from POST requests to /colors on the loopback interface, with a URL
+// per line of the body, or from stdin, separated by blank lines. The
+// rows of each batch are streamed back as they come out of the
+// pipeline, in the output's format, and the response ends, or on stdin
+// a blank line follows, once every URL has a row or failed. Failed URLs
+// get no row, as in the output.
+//
+// URLs are put straight into the pipeline's URL queue, so a batch waits
+// there while the pipeline is busy. Rows, and failures, come back
+// through ReturnResultRunner, and are matched to the batches of their
+// URL in the order submitted, see ReorderWindow.
+public class BatchService implements Runnable, ReturnResultRunner.Receiver {
+  // A batch being processed, whose rows are queued for the thread that
+  // submitted it to send on.
+  private static class Batch {
+    final LinkedBlockingQueue<ResultRow> rows = new LinkedBlockingQueue<>();
+    int remaining;
+
+    Batch(int count) {
+      this.remaining = count;
+    }
+  }
+
+  private final Options options;
+  private final BlockingQueue<String> image_urls;
+  private final PipelineListener listener;
+
+  // The batches of the occurrences of each URL submitted without a row
+  // yet, in the order submitted.
+  private final HashMap<String, ArrayDeque<Batch>> pending = new HashMap<>();
+  // Batches being submitted or sent, which stopping waits for.
+  private int in_flight = 0;
+  private boolean stopping = false;
+
+  public BatchService(Options options, BlockingQueue<String> image_urls, PipelineListener listener) {
+    this.options = options;
+    this.image_urls = image_urls;
+    this.listener = listener;
+  }
+
+  // Registers a batch of urls and queues them for the pipeline, or
+  // returns null if the service is stopping.
+  private Batch submit(List<String> urls) {
+    final Batch batch = new Batch(urls.size());
+    synchronized (this) {
+      if (stopping) {
+        return null;
+      }
+      ++in_flight;
+      for (String url : urls) {
+        pending.computeIfAbsent(url, key -> new ArrayDeque<>()).addLast(batch);
+      }
+    }
+    if (urls.isEmpty()) {
+      batch.rows.add(ResultRow.POISON);
+    }
+    for (String url : urls) {
+      listener.urlQueued(url);
+      try {
+        image_urls.put(url);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted putting " +
+                            url +
+                            " into the image_urls queue.");
+        e.printStackTrace();
+        listener.urlFailed(url, PipelineListener.Failure.INTERRUPTED);
+      }
+    }
+    return batch;
+  }
+
+  // Sends the rows of batch to out as they come, until it is complete.
+  private void send(Batch batch, OutputStream out) throws IOException {
+    final byte[] line_separator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    try {
+      while (true) {
+        ResultRow row;
+        try {
+          row = batch.rows.take();
+        } catch (InterruptedException e) {
+          System.err.println("Interrupted waiting for the rows of a batch. Retrying...");
+          e.printStackTrace();
+          continue;
+        }
+        if (row == ResultRow.POISON) {
+          return;
+        }
+        out.write(row.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(line_separator);
+        // Sent as they come unless more are ready.
+        if (batch.rows.isEmpty()) {
+          out.flush();
+        }
+      }
+    } finally {
+      synchronized (this) {
+        if (--in_flight == 0) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  // Adds row, or the failure it stands for, to the oldest batch of its
+  // URL without one, completing the batch if it was the last.
+  @Override
+  public synchronized void finish(ResultRow row) {
+    final ArrayDeque<Batch> url_batches = pending.get(row.image_url);
+    if (url_batches == null) {
+      System.err.println("No batch of " + row.image_url + " to send its row to. Dropping it.");
+      return;
+    }
+    final Batch batch = url_batches.removeFirst();
+    if (url_batches.isEmpty()) {
+      pending.remove(row.image_url);
+    }
+    if (!row.isFailure()) {
+      batch.rows.add(row);
+    }
+    if (--batch.remaining == 0) {
+      batch.rows.add(ResultRow.POISON);
+    }
+  }
+
+  // Stops taking batches, and waits for those submitted to be sent.
+  public synchronized void stop() throws InterruptedException {
+    stopping = true;
+    notifyAll();
+    while (in_flight > 0) {
+      wait();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      final ArrayList<String> urls = new ArrayList<>();
+      try (var body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+          StandardCharsets.UTF_8))) {
+        for (String line = body.readLine(); line != null; line = body.readLine()) {
+          if (!line.isEmpty()) {
+            urls.add(line);
+          }
+        }
+      }
+      final Batch batch = submit(urls);
+      if (batch == null) {
+        exchange.sendResponseHeaders(503, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", "text/csv");
+      // Streamed, as the length isn't known until the last row.
+      exchange.sendResponseHeaders(200, 0);
+      send(batch, exchange.getResponseBody());
+    }
+  }
+
+  private void serveHttp() throws IOException, InterruptedException {
+    final HttpServer server = HttpServer.create(
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), options.serve_port), 0);
+    // Each request waits on its thread for its rows.
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/colors", exchange -> {
+      try {
+        handle(exchange);
+      } catch (IOException e) {
+        System.err.println("Failed to serve a batch.");
+        e.printStackTrace();
+      }
+    });
+    server.start();
+    System.out.println("Serving on http://" + server.getAddress().getHostString() + ":" +
+        server.getAddress().getPort() + "/colors");
+
+    // Stopped by a signal, once the batches submitted are sent.
+    final Thread stop_thread = new Thread(() -> {
+      try {
+        stop();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted waiting for batches to be sent.");
+        e.printStackTrace();
+      }
+    });
+    Runtime.getRuntime().addShutdownHook(stop_thread);
+    synchronized (this) {
+      while (!stopping || in_flight > 0) {
+        wait();
+      }
+    }
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  private void serveStdin() throws IOException {
+    final PrintStream out = System.out;
+    final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    final ArrayList<String> urls = new ArrayList<>();
+    while (true) {
+      final String line = in.readLine();
+      if (line != null && !line.isEmpty()) {
+        urls.add(line);
+        continue;
+      }
+      if (!urls.isEmpty()) {
+        final Batch batch = submit(urls);
+        if (batch == null) {
+          System.err.println("Stopping, so not serving a batch of " + urls.size() + " URLs.");
+          return;
+        }
+        send(batch, out);
+        out.println();
+        out.flush();
+        urls.clear();
+      }
+      if (line == null) {
+        return;
+      }
+    }
+  }
+
+  // Serves batches until stopped, by a signal or the end of stdin.
+  @Override
+  public void run() {
+    try {
+      if (options.serve == Options.ServeMode.STDIN) {
+        serveStdin();
+      } else {
+        serveHttp();
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to serve batches.");
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted serving batches.");
+      e.printStackTrace();
+    }
+  }
+}
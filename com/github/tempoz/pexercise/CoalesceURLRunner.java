@@ -0,0 +1,190 @@
+package com.github.tempoz.pexercise;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+// Fetches and processes each distinct URL once per run, however many
+// times it appears in the input. Takes URLs from the input and queues
+// only the first occurrence of each for fetching. Later occurrences
+// while it is in flight wait for its result, which the process threads
+// then queue once per occurrence, see complete, and those arriving after
+// it is done are answered from a bounded LRU of completed results. Every
+// line of the input still gets its row. With max_results 0 no results
+// are kept, and only occurrences in flight are merged, as a service
+// would otherwise answer a URL from a batch long past.
+public class CoalesceURLRunner implements Runnable {
+  private BlockingQueue<String> input_urls;
+  private BlockingQueue<String> image_urls;
+  private BlockingQueue<ResultRow> results;
+  private final PipelineListener listener;
+  private final PipelineListener propagating;
+
+  // Returned by claim for an occurrence waiting on the first.
+  private static final ResultRow WAITING = ResultRow.exact("", new int[0], 0);
+
+  // Occurrences waiting on each URL in flight, besides the first.
+  private final HashMap<String, Integer> in_flight = new HashMap<>();
+  // Result rows, in access order so the eldest is the least recently
+  // used.
+  private final LinkedHashMap<String, ResultRow> completed;
+  private final int max_results;
+
+  // Results are queued to results directly for URLs already completed.
+  // listener receives the events of every occurrence.
+  public CoalesceURLRunner(BlockingQueue<String> input_urls, BlockingQueue<String> image_urls,
+      BlockingQueue<ResultRow> results, int max_results, PipelineListener listener) {
+    this.input_urls = input_urls;
+    this.image_urls = image_urls;
+    this.results = results;
+    this.max_results = max_results;
+    this.completed = new LinkedHashMap<String, ResultRow>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ResultRow> eldest) {
+        return size() > max_results;
+      }
+    };
+    this.listener = listener;
+    this.propagating = new PipelineListener() {
+      @Override
+      public void urlQueued(String image_url) {
+        listener.urlQueued(image_url);
+      }
+
+      @Override
+      public void imageQueued(String image_url) {
+        listener.imageQueued(image_url);
+      }
+
+      @Override
+      public void resultQueued(String image_url) {
+        listener.resultQueued(image_url);
+      }
+
+      // The occurrences waiting on image_url fail with it.
+      @Override
+      public void urlFailed(String image_url) {
+        listener.urlFailed(image_url);
+        for (int waiting = fail(image_url); waiting > 0; --waiting) {
+          listener.urlFailed(image_url);
+        }
+      }
+
+      @Override
+      public void urlFailed(String image_url, Failure failure) {
+        listener.urlFailed(image_url, failure);
+        for (int waiting = fail(image_url); waiting > 0; --waiting) {
+          listener.urlFailed(image_url, failure);
+        }
+      }
+
+      @Override
+      public void fetchRetried(String image_url, Failure failure, long nanos) {
+        listener.fetchRetried(image_url, failure, nanos);
+      }
+
+      @Override
+      public void imageFetched(String image_url, long bytes, long nanos) {
+        listener.imageFetched(image_url, bytes, nanos);
+      }
+
+      @Override
+      public void imageDecoded(String image_url, long nanos) {
+        listener.imageDecoded(image_url, nanos);
+      }
+
+      @Override
+      public void imageCounted(String image_url, long pixels, long nanos) {
+        listener.imageCounted(image_url, pixels, nanos);
+      }
+    };
+  }
+
+  // Listener for the later stages, which also fails the occurrences
+  // waiting on a URL that fails.
+  public PipelineListener listener() {
+    return propagating;
+  }
+
+  // Records result as the row of image_url, returning the number of
+  // further occurrences to queue it for.
+  public synchronized int complete(String image_url, ResultRow result) {
+    if (max_results > 0) {
+      completed.put(image_url, result);
+    }
+    final Integer waiting = in_flight.remove(image_url);
+    return waiting == null ? 0 : waiting;
+  }
+
+  // Forgets image_url, so that a later occurrence fetches it again,
+  // returning the number of occurrences that were waiting on it.
+  private synchronized int fail(String image_url) {
+    final Integer waiting = in_flight.remove(image_url);
+    return waiting == null ? 0 : waiting;
+  }
+
+  // Returns the row of image_url if it is completed, and otherwise
+  // whether this occurrence should be fetched, WAITING if not.
+  private synchronized ResultRow claim(String image_url) {
+    final ResultRow result = completed.get(image_url);
+    if (result != null) {
+      return result;
+    }
+    final Integer waiting = in_flight.get(image_url);
+    if (waiting != null) {
+      in_flight.put(image_url, waiting + 1);
+      return WAITING;
+    }
+    in_flight.put(image_url, 0);
+    return null;
+  }
+
+  @Override
+  public void run() {
+    String image_url;
+    while (true) {
+      try {
+        image_url = input_urls.take();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted when taking image_url from queue.");
+        e.printStackTrace();
+        continue;
+      }
+
+      // "" is the poison pill
+      if (image_url.isEmpty()) {
+        while (true) {
+          try {
+            input_urls.put(image_url);
+            break;
+          } catch (InterruptedException e) {
+            System.err.println("Interrupted when re-inserting the poison pill. Retrying...");
+            e.printStackTrace();
+          }
+        }
+        return;
+      }
+
+      final ResultRow result = claim(image_url);
+      if (result == null) {
+        try {
+          image_urls.put(image_url);
+        } catch (InterruptedException e) {
+          System.err.println("Interrupted putting " + image_url + " into the image_urls queue.");
+          e.printStackTrace();
+          propagating.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+        }
+      } else if (result != WAITING) {
+        try {
+          results.put(result);
+          listener.resultQueued(image_url);
+        } catch (InterruptedException e) {
+          System.err.println("Interrupted putting " + result + " into the result queue.");
+          e.printStackTrace();
+          listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+        }
+      }
+    }
+  }
+}
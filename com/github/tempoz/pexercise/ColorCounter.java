@@ -0,0 +1,37 @@
+package com.github.tempoz.pexercise;
+
+// Counts occurrences of 24-bit RGB colors so that the most common ones
+// can be selected. Implementations keep their working memory between
+// images, so each ProcessImageRunner holds its own instances.
+public interface ColorCounter {
+
+  // Counts length ARGB pixels of pixels starting at offset.
+  // The alpha byte is ignored.
+  void add(int[] pixels, int offset, int length);
+
+  // Fills max_colors and max_counts with the most common colors counted
+  // since the last clear, in descending order of count, breaking ties in
+  // favor of the lower color value. Slots beyond the number of distinct
+  // colors are left with a count of 0. Both arrays must be zeroed and of
+  // the same length.
+  void selectMostCommon(int[] max_colors, int[] max_counts);
+
+  // Forgets all counted colors so the counter can be reused.
+  void clear();
+
+  // Inserts color into max_colors / max_counts if it is among the most
+  // common colors offered so far. Shared by all implementations so that
+  // they agree on ordering and tie-breaking.
+  static void offer(int[] max_colors, int[] max_counts, int color, int count) {
+    int i = max_counts.length - 1;
+    if (count < max_counts[i] || count == max_counts[i] && (count == 0 || color > max_colors[i])) {
+      return;
+    }
+    for (; i > 0 && (count > max_counts[i - 1] || count == max_counts[i - 1] && color < max_colors[i - 1]); --i) {
+      max_counts[i] = max_counts[i - 1];
+      max_colors[i] = max_colors[i - 1];
+    }
+    max_counts[i] = count;
+    max_colors[i] = color;
+  }
+}
@@ -0,0 +1,105 @@
+package com.github.tempoz.pexercise;
+
+// Picks the ColorCounter engine to use for each image, either the one
+// forced by the options or one chosen by the size and palette of the
+// image, unless colors are quantized, which one engine does for every
+// image. Engines are created on first use and kept, so a selector
+// belongs to a single ProcessImageRunner.
+public class ColorCounterSelector {
+  // Images with at most this many pixels are counted in a hash table,
+  // which stays small enough to be cache-resident.
+  static final int HASH_MAX_PIXELS = 1 << 18;
+  // Images with at least this many pixels are counted in a dense array.
+  // At this size, the 64MB array is comparable to the decoded image
+  // itself and beats bucketing by avoiding the second pass.
+  static final int DENSE_MIN_PIXELS = 1 << 23;
+  // Images known to have at most this many colors are counted in a
+  // hash table whatever their size.
+  static final int HASH_MAX_PALETTE = 1 << 12;
+
+  private final Options.CounterEngine engine;
+  // Bits kept of red, green and blue, or null to count exact colors.
+  private final int[] quantize_bits;
+
+  private RadixColorCounter radix;
+  private HashColorCounter hash;
+  private DenseColorCounter dense;
+  private QuantizedColorCounter quantized;
+
+  public ColorCounterSelector(Options.CounterEngine engine, int[] quantize_bits) {
+    this.engine = engine;
+    this.quantize_bits = quantize_bits;
+  }
+
+  public ColorCounterSelector(Options.CounterEngine engine) {
+    this(engine, null);
+  }
+
+  public static Options.CounterEngine chooseEngine(int pixel_count, int palette_size) {
+    if (palette_size >= 0 && palette_size <= HASH_MAX_PALETTE) {
+      return Options.CounterEngine.HASH;
+    }
+    if (pixel_count <= HASH_MAX_PIXELS) {
+      return Options.CounterEngine.HASH;
+    }
+    if (pixel_count >= DENSE_MIN_PIXELS) {
+      return Options.CounterEngine.DENSE;
+    }
+    return Options.CounterEngine.RADIX;
+  }
+
+  // Like chooseEngine, but for images counted as they are decoded, where
+  // the radix engine would hold a copy of every pixel, defeating the
+  // point of streaming. The hash engine takes its place.
+  public static Options.CounterEngine chooseStreamingEngine(int pixel_count, int palette_size) {
+    var chosen = chooseEngine(pixel_count, palette_size);
+    return chosen == Options.CounterEngine.RADIX ? Options.CounterEngine.HASH : chosen;
+  }
+
+  // Returns a cleared counter for the given image.
+  public ColorCounter forImage(PixelsFromImage pixels) {
+    if (quantize_bits != null) {
+      return quantized();
+    }
+    return forEngine(engine == Options.CounterEngine.AUTO
+      ? chooseEngine(pixels.getPixelCount(), pixels.getPaletteSize())
+      : engine);
+  }
+
+  // Returns a cleared counter for the image being decoded.
+  public ColorCounter forImage(StreamingImageDecoder decoder) {
+    if (quantize_bits != null) {
+      return quantized();
+    }
+    return forEngine(engine == Options.CounterEngine.AUTO
+      ? chooseStreamingEngine(decoder.getSampledPixelCount(), decoder.getPaletteSize())
+      : engine);
+  }
+
+  private ColorCounter quantized() {
+    if (quantized == null) {
+      quantized = new QuantizedColorCounter(quantize_bits);
+    }
+    return quantized;
+  }
+
+  private ColorCounter forEngine(Options.CounterEngine chosen) {
+    switch (chosen) {
+      case HASH:
+        if (hash == null) {
+          hash = new HashColorCounter();
+        }
+        return hash;
+      case DENSE:
+        if (dense == null) {
+          dense = new DenseColorCounter();
+        }
+        return dense;
+      default:
+        if (radix == null) {
+          radix = new RadixColorCounter();
+        }
+        return radix;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.github.tempoz.pexercise;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Colors of the images processed so far in this run, keyed by a hash of
+// their encoded bytes, so that the same image under different URLs, such
+// as CDN mirrors, query-string variants and http and https forms, is
+// decoded and counted once. The fetchers hash each response and look it
+// up before queueing it, and the process threads add the colors of each
+// image that missed. Only max_entries images are kept, evicting the
+// least recently used, so that a service that runs for days keeps
+// deduplicating the images it sees now rather than those of its first
+// batches.
+public class ContentDeduplicator {
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long C1 = 0x87C37B91114253D5L;
+  private static final long C2 = 0x4CF5AD432745937FL;
+
+  // Colors by content hash, in access order so the eldest is the least
+  // recently used.
+  private final LinkedHashMap<Long, int[]> colors;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public ContentDeduplicator(int max_entries) {
+    this.colors = new LinkedHashMap<Long, int[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+        return size() > max_entries;
+      }
+    };
+  }
+
+  // 64-bit hash of encoded, a single lane of MurmurHash3's mixing over
+  // 8 bytes at a time, seeded with the length. Images have few enough
+  // distinct contents per run that a collision is vanishingly unlikely.
+  public static long hash(byte[] encoded) {
+    long h = encoded.length * C2;
+    int i = 0;
+    for (; i + 8 <= encoded.length; i += 8) {
+      h ^= mix((long) LONGS.get(encoded, i));
+      h = Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+    }
+    long tail = 0;
+    for (int shift = 0; i < encoded.length; ++i, shift += 8) {
+      tail |= (encoded[i] & 0xFFL) << shift;
+    }
+    h ^= mix(tail);
+    // MurmurHash3's finalizer
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static long mix(long k) {
+    return Long.rotateLeft(k * C1, 31) * C2;
+  }
+
+  // Returns the colors of the image with content_hash, or null if it
+  // hasn't been processed, counting a hit or miss.
+  public int[] lookup(long content_hash) {
+    final int[] found;
+    synchronized (colors) {
+      found = colors.get(content_hash);
+    }
+    (found == null ? misses : hits).increment();
+    return found;
+  }
+
+  public void put(long content_hash, int[] max_colors) {
+    final int[] copy = max_colors.clone();
+    synchronized (colors) {
+      colors.putIfAbsent(content_hash, copy);
+    }
+  }
+
+  // Number of images kept.
+  public int size() {
+    synchronized (colors) {
+      return colors.size();
+    }
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  // Fraction of lookups that were hits, 0 if there were none.
+  public double hitRatio() {
+    final long hit_count = hits.sum();
+    final long lookups = hit_count + misses.sum();
+    return lookups == 0 ? 0 : (double) hit_count / lookups;
+  }
+}
@@ -0,0 +1,339 @@
+package com.github.tempoz.pexercise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Scales a run across processes: reads the input, leases batches of its
+// URLs to workers running the pipeline, see CoordinatorClient, and
+// merges the rows they return into the output. Every request from a
+// worker renews its leases, and workers send a heartbeat every third of
+// the lease timeout, so that a worker that is slow to finish a batch
+// keeps it, while the leases of a worker that hasn't been heard from
+// within the lease timeout, or that disconnects, are leased again.
+// Whichever worker returns a batch first has its rows written, so a
+// batch is written exactly once however many workers end up processing
+// it.
+//
+// Workers connect over TCP, and are sent the lease timeout in
+// milliseconds. They then send requests, to which the coordinator only
+// replies to LEASE, and never waits to:
+//   LEASE                        -> BATCH id count url*, WAIT or DONE
+//   RESULTS id count row*
+//   HEARTBEAT
+// where a row is the URL, the number of colors or -1 for a failure, the
+// colors and the confidence, NaN if exact. WAIT means every batch read
+// so far is leased, and to ask again after WAIT_MS, as one may expire.
+// DONE means every batch is written.
+public class Coordinator {
+  public static final byte LEASE = 'L';
+  public static final byte RESULTS = 'R';
+  public static final byte BATCH = 'B';
+  public static final byte WAIT = 'W';
+  public static final byte DONE = 'E';
+  public static final byte HEARTBEAT = 'H';
+  public static final long WAIT_MS = 100;
+
+  // Batches read ahead of the workers.
+  private static final int READ_AHEAD = 16;
+
+  private static class Batch {
+    final long id;
+    final List<String> urls;
+    // Worker leasing it and when the lease expires, or null if not
+    // leased.
+    String worker = null;
+    long deadline;
+
+    Batch(long id, List<String> urls) {
+      this.id = id;
+      this.urls = urls;
+    }
+  }
+
+  // Stands for there being no batches left to lease.
+  private static final Batch DONE_BATCH = new Batch(-1, List.of());
+
+  private final Options options;
+  private final long lease_nanos;
+
+  // Batches not yet written, by id, and those of them not leased, in
+  // the order to lease them.
+  private final HashMap<Long, Batch> unfinished = new HashMap<>();
+  private final ArrayDeque<Batch> unleased = new ArrayDeque<>();
+  private boolean input_done = false;
+  private int workers = 0;
+
+  private RowsToFileChannel out_channel;
+  private long rows = 0;
+  private long failures = 0;
+  private long reassigned = 0;
+
+  public Coordinator(Options options) {
+    this.options = options;
+    this.lease_nanos = TimeUnit.SECONDS.toNanos(options.lease_timeout_s);
+  }
+
+  public static void writeRow(DataOutputStream out, ResultRow row) throws IOException {
+    out.writeUTF(row.image_url);
+    if (row.isFailure()) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(row.columns);
+    for (int i = 0; i < row.columns; ++i) {
+      out.writeInt(row.colors[i]);
+    }
+    out.writeDouble(row.confidence);
+  }
+
+  public static ResultRow readRow(DataInputStream in) throws IOException {
+    final String image_url = in.readUTF();
+    final int columns = in.readInt();
+    if (columns < 0) {
+      return ResultRow.failed(image_url);
+    }
+    final int[] colors = new int[columns];
+    for (int i = 0; i < columns; ++i) {
+      colors[i] = in.readInt();
+    }
+    final double confidence = in.readDouble();
+    return Double.isNaN(confidence) ? ResultRow.exact(image_url, colors, columns)
+      : ResultRow.approximate(image_url, colors, columns, confidence);
+  }
+
+  // Runs until every URL of the input has its row written or failed.
+  public void run() throws IOException, InterruptedException {
+    if (options.ordered) {
+      System.err.println(
+        "Writing rows as their batches are returned, as the coordinator doesn't order them.");
+    }
+    final FileChannel output = FileChannel.open(FileSystems.getDefault().getPath(options.output),
+      StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    out_channel = new RowsToFileChannel(output);
+
+    final ServerSocket server = new ServerSocket(options.listen);
+    System.out.println("Listening for workers on port " + server.getLocalPort() + ".");
+    final Thread accept_thread = new Thread(() -> {
+      while (true) {
+        final Socket socket;
+        try {
+          socket = server.accept();
+        } catch (IOException e) {
+          // Closed once done.
+          return;
+        }
+        final Thread serve_thread = new Thread(() -> serve(socket));
+        serve_thread.setDaemon(true);
+        serve_thread.start();
+      }
+    });
+    accept_thread.setDaemon(true);
+    accept_thread.start();
+
+    long next_id = 0;
+    try (FileChannel input = FileChannel.open(FileSystems.getDefault().getPath(options.input),
+        StandardOpenOption.READ)) {
+      ArrayList<String> urls = new ArrayList<>(options.lease_size);
+      for (CharSequence line : new LinesFromFileChannel(input)) {
+        if (line.length() == 0) {
+          continue;
+        }
+        urls.add(line.toString());
+        if (urls.size() == options.lease_size) {
+          offer(new Batch(next_id++, urls));
+          urls = new ArrayList<>(options.lease_size);
+        }
+      }
+      if (!urls.isEmpty()) {
+        offer(new Batch(next_id++, urls));
+      }
+    }
+
+    synchronized (this) {
+      input_done = true;
+      while (!unfinished.isEmpty()) {
+        reassignExpired();
+        wait(WAIT_MS);
+      }
+      // Give the workers waiting for a batch the chance to hear that
+      // there are none left.
+      final long deadline = System.nanoTime() + lease_nanos;
+      while (workers > 0 && System.nanoTime() < deadline) {
+        wait(WAIT_MS);
+      }
+      server.close();
+      out_channel.flush();
+      output.close();
+    }
+    System.out.println(String.format(
+        "Wrote %d rows of %d batches, %d URLs failed, %d leases reassigned.",
+        rows, next_id, failures, reassigned));
+  }
+
+  // Queues batch to be leased, once the workers are within READ_AHEAD
+  // batches of the input read.
+  private synchronized void offer(Batch batch) throws InterruptedException {
+    while (unleased.size() >= READ_AHEAD) {
+      reassignExpired();
+      wait(WAIT_MS);
+    }
+    unfinished.put(batch.id, batch);
+    unleased.addLast(batch);
+  }
+
+  private void reassign(Batch batch) {
+    batch.worker = null;
+    unleased.addFirst(batch);
+    ++reassigned;
+  }
+
+  // Extends the leases of worker, as it is still making progress.
+  private void renew(String worker) {
+    final long deadline = System.nanoTime() + lease_nanos;
+    for (Batch batch : unfinished.values()) {
+      if (worker.equals(batch.worker)) {
+        batch.deadline = deadline;
+      }
+    }
+  }
+
+  private void reassignExpired() {
+    final long now = System.nanoTime();
+    for (Batch batch : unfinished.values()) {
+      if (batch.worker != null && now - batch.deadline > 0) {
+        System.err.println("Lease of batch " + batch.id + " by " + batch.worker +
+            " expired. Reassigning it.");
+        reassign(batch);
+      }
+    }
+  }
+
+  // The next batch to lease to worker, null if there is none now, or
+  // DONE_BATCH if there will be none.
+  private synchronized Batch lease(String worker) {
+    renew(worker);
+    reassignExpired();
+    while (!unleased.isEmpty()) {
+      final Batch batch = unleased.removeFirst();
+      // Returned by an earlier lease while waiting to be leased again.
+      if (!unfinished.containsKey(batch.id)) {
+        continue;
+      }
+      batch.worker = worker;
+      batch.deadline = System.nanoTime() + lease_nanos;
+      notifyAll();
+      return batch;
+    }
+    return input_done && unfinished.isEmpty() ? DONE_BATCH : null;
+  }
+
+  // Writes the rows of batch id, unless another worker returned them
+  // first.
+  private synchronized void merge(String worker, long id, List<ResultRow> batch_rows) {
+    renew(worker);
+    final Batch batch = unfinished.remove(id);
+    if (batch == null) {
+      System.err.println("Dropping batch " + id + " from " + worker +
+          ", as it was already written.");
+      return;
+    }
+    for (ResultRow row : batch_rows) {
+      if (row.isFailure()) {
+        ++failures;
+        continue;
+      }
+      try {
+        out_channel.put(row);
+        ++rows;
+      } catch (IOException e) {
+        System.err.println("Failed to write " + row + "to file.");
+        e.printStackTrace();
+      }
+    }
+    notifyAll();
+  }
+
+  private synchronized void heartbeat(String worker) {
+    renew(worker);
+  }
+
+  // Leases of worker are leased again once it disconnects.
+  private synchronized void release(String worker) {
+    int released = 0;
+    for (Batch batch : unfinished.values()) {
+      if (worker.equals(batch.worker)) {
+        reassign(batch);
+        ++released;
+      }
+    }
+    if (released > 0) {
+      System.err.println("Lost worker " + worker + ". Reassigning its " + released + " leases.");
+    }
+    --workers;
+    notifyAll();
+  }
+
+  private void serve(Socket socket) {
+    final String worker = socket.getRemoteSocketAddress().toString();
+    synchronized (this) {
+      ++workers;
+    }
+    try (socket;
+        var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      out.writeLong(TimeUnit.NANOSECONDS.toMillis(lease_nanos));
+      out.flush();
+      while (true) {
+        final byte request = in.readByte();
+        if (request == LEASE) {
+          final Batch batch = lease(worker);
+          if (batch == null) {
+            out.writeByte(WAIT);
+          } else if (batch == DONE_BATCH) {
+            out.writeByte(DONE);
+          } else {
+            out.writeByte(BATCH);
+            out.writeLong(batch.id);
+            out.writeInt(batch.urls.size());
+            for (String url : batch.urls) {
+              out.writeUTF(url);
+            }
+          }
+          out.flush();
+        } else if (request == RESULTS) {
+          final long id = in.readLong();
+          final int count = in.readInt();
+          final ArrayList<ResultRow> batch_rows = new ArrayList<>(count);
+          for (int i = 0; i < count; ++i) {
+            batch_rows.add(readRow(in));
+          }
+          merge(worker, id, batch_rows);
+        } else if (request == HEARTBEAT) {
+          heartbeat(worker);
+        } else {
+          throw new IOException("Unknown request " + request);
+        }
+      }
+    } catch (EOFException e) {
+      // Disconnected.
+    } catch (IOException e) {
+      System.err.println("Failed to serve worker " + worker + ".");
+      e.printStackTrace();
+    }
+    release(worker);
+  }
+}
@@ -0,0 +1,187 @@
+package com.github.tempoz.pexercise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// A worker's connection to a Coordinator, keeping track of the batches
+// it has leased. LeaseURLRunner leases batches and queues their URLs,
+// and ReturnResultRunner hands the rows, and failures, that come out of
+// the pipeline back here, which returns each batch once every one of
+// its URLs has one. A heartbeat thread renews the leases every third of
+// the coordinator's lease timeout, so that batches that are slow to
+// process aren't leased again to other workers.
+public class CoordinatorClient implements Closeable, ReturnResultRunner.Receiver {
+  private static final int CONNECT_ATTEMPTS = 30;
+  private static final long CONNECT_RETRY_MS = 1000;
+
+  private static class Lease {
+    final long id;
+    final ArrayList<ResultRow> rows;
+    int remaining;
+
+    Lease(long id, int count) {
+      this.id = id;
+      this.rows = new ArrayList<>(count);
+      this.remaining = count;
+    }
+  }
+
+  private final Socket socket;
+  private final DataInputStream in;
+  // Written by both runners and the heartbeat thread, so locked.
+  private final DataOutputStream out;
+  private final long heartbeat_ms;
+  private final Thread heartbeat_thread;
+  private volatile boolean closed = false;
+
+  // Leases whose rows haven't all come out, by id.
+  private final HashMap<Long, Lease> leases = new HashMap<>();
+  // The leases of the occurrences of each URL leased without a row yet,
+  // in the order leased. As every occurrence of a URL gets the same row,
+  // rows are matched to them in that order, see ReorderWindow.
+  private final HashMap<String, ArrayDeque<Lease>> pending = new HashMap<>();
+
+  private CoordinatorClient(Socket socket) throws IOException {
+    this.socket = socket;
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    this.heartbeat_ms = Math.max(1, in.readLong() / 3);
+    this.heartbeat_thread = new Thread(this::heartbeat);
+    heartbeat_thread.setDaemon(true);
+  }
+
+  private void heartbeat() {
+    while (!closed) {
+      try {
+        Thread.sleep(heartbeat_ms);
+      } catch (InterruptedException e) {
+        // Closed.
+        continue;
+      }
+      try {
+        synchronized (out) {
+          out.writeByte(Coordinator.HEARTBEAT);
+          out.flush();
+        }
+      } catch (IOException e) {
+        if (!closed) {
+          System.err.println("Failed to send a heartbeat to the coordinator.");
+          e.printStackTrace();
+        }
+        return;
+      }
+    }
+  }
+
+  // Connects to the coordinator at address, host:port, retrying for a
+  // while in case it has yet to start.
+  public static CoordinatorClient connect(String address) throws IOException, InterruptedException {
+    final int colon = address.lastIndexOf(':');
+    final String host = address.substring(0, colon);
+    final int port = Integer.parseInt(address.substring(colon + 1));
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        final CoordinatorClient client = new CoordinatorClient(new Socket(host, port));
+        client.heartbeat_thread.start();
+        return client;
+      } catch (IOException e) {
+        if (attempt == CONNECT_ATTEMPTS) {
+          throw e;
+        }
+        System.err.println("Failed to connect to coordinator " + address + ". Retrying...");
+        Thread.sleep(CONNECT_RETRY_MS);
+      }
+    }
+  }
+
+  // Waits until fewer than max leases are outstanding.
+  public synchronized void awaitRoom(int max) throws InterruptedException {
+    while (leases.size() >= max) {
+      wait();
+    }
+  }
+
+  // Leases the next batch and returns its URLs, waiting while every
+  // batch is leased, or returns null once there are none left. Only one
+  // thread may lease at a time.
+  public List<String> lease() throws IOException, InterruptedException {
+    while (true) {
+      synchronized (out) {
+        out.writeByte(Coordinator.LEASE);
+        out.flush();
+      }
+      final byte reply = in.readByte();
+      if (reply == Coordinator.DONE) {
+        return null;
+      }
+      if (reply == Coordinator.WAIT) {
+        Thread.sleep(Coordinator.WAIT_MS);
+        continue;
+      }
+      if (reply != Coordinator.BATCH) {
+        throw new IOException("Unknown reply " + reply);
+      }
+      final long id = in.readLong();
+      final int count = in.readInt();
+      final ArrayList<String> urls = new ArrayList<>(count);
+      for (int i = 0; i < count; ++i) {
+        urls.add(in.readUTF());
+      }
+      synchronized (this) {
+        final Lease lease = new Lease(id, count);
+        leases.put(id, lease);
+        for (String url : urls) {
+          pending.computeIfAbsent(url, key -> new ArrayDeque<>()).addLast(lease);
+        }
+      }
+      return urls;
+    }
+  }
+
+  // Adds row, or the failure it stands for, to the oldest lease of its
+  // URL without one, returning that lease to the coordinator once it is
+  // complete.
+  @Override
+  public synchronized void finish(ResultRow row) throws IOException {
+    final ArrayDeque<Lease> url_leases = pending.get(row.image_url);
+    if (url_leases == null) {
+      System.err.println("No lease of " + row.image_url + " to return its row with. Dropping it.");
+      return;
+    }
+    final Lease lease = url_leases.removeFirst();
+    if (url_leases.isEmpty()) {
+      pending.remove(row.image_url);
+    }
+    lease.rows.add(row);
+    if (--lease.remaining > 0) {
+      return;
+    }
+    leases.remove(lease.id);
+    notifyAll();
+    synchronized (out) {
+      out.writeByte(Coordinator.RESULTS);
+      out.writeLong(lease.id);
+      out.writeInt(lease.rows.size());
+      for (ResultRow lease_row : lease.rows) {
+        Coordinator.writeRow(out, lease_row);
+      }
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    heartbeat_thread.interrupt();
+    socket.close();
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.tempoz.pexercise;
+
+import java.util.Arrays;
+
+// Counts colors in an array with an entry for every 24-bit color, so
+// each pixel costs a single increment. The array takes 64MB, so this is
+// only worth it for very large images. Only the entries touched by an
+// image are reset afterwards, through a list of the colors seen.
+public class DenseColorCounter implements ColorCounter {
+  private final int[] counts = new int[1 << 24];
+
+  // Colors with a non-zero count, in order of first occurrence.
+  private int[] touched = new int[1 << 16];
+  private int touched_size = 0;
+
+  @Override
+  public void add(int[] pixels, int offset, int length) {
+    for (int i = offset; i < offset + length; ++i) {
+      final int color = pixels[i] & 0xffffff;
+      if (counts[color]++ == 0) {
+        if (touched_size == touched.length) {
+          touched = Arrays.copyOf(touched, touched.length * 2);
+        }
+        touched[touched_size++] = color;
+      }
+    }
+  }
+
+  @Override
+  public void selectMostCommon(int[] max_colors, int[] max_counts) {
+    for (int i = 0; i < touched_size; ++i) {
+      ColorCounter.offer(max_colors, max_counts, touched[i], counts[touched[i]]);
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < touched_size; ++i) {
+      counts[touched[i]] = 0;
+    }
+    touched_size = 0;
+  }
+}
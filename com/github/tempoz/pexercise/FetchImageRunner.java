@@ -1,27 +1,135 @@
 package com.github.tempoz.pexercise;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
-public class FetchImageRunner implements Runnable {
+public class FetchImageRunner implements WorkerPool.Worker {
   private BlockingQueue<String> image_urls;
-  private BlockingQueue<Pair<String, BufferedImage>> images;
+  private BlockingQueue<Pair<String, FetchedImage>> images;
+  private PipelineListener listener;
+  private final ResultCache cache;
+  private final ContentDeduplicator dedup;
+  private final MemoryBudget budget;
+  // Null if URLs aren't scheduled by host.
+  private final HostScheduler scheduler;
+  private final boolean streaming;
+  private final boolean approximate;
+  private final int sample_pixels;
+  private final int connect_timeout_ms;
+  private final int read_timeout_ms;
+  private final long deadline_nanos;
 
-  public FetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, BufferedImage>> images) {
+  private volatile boolean retiring = false;
+  // Time spent on finished items, and when the current one started, 0
+  // if there is none.
+  private volatile long busy_nanos = 0;
+  private volatile long busy_since = 0;
+
+  // Results in cache are used without fetching while fresh, and
+  // revalidated with conditional requests once stale. Images already in
+  // dedup are not queued for decoding. Each image holds its size of
+  // budget until processed. image_urls are handed on by scheduler, which
+  // is told as each is finished and retries those that fail in ways that
+  // may not last. Any of them may be null.
+  public FetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      Options options, ResultCache cache, ContentDeduplicator dedup, MemoryBudget budget,
+      HostScheduler scheduler, PipelineListener listener) {
     this.image_urls = image_urls;
     this.images = images;
+    this.listener = listener;
+    this.cache = cache;
+    this.dedup = dedup;
+    this.budget = budget;
+    this.scheduler = scheduler;
+    this.streaming = options.streaming;
+    this.approximate = options.approximate;
+    this.sample_pixels = options.sample_pixels;
+    this.connect_timeout_ms = options.connect_timeout_ms;
+    this.read_timeout_ms = options.read_timeout_ms;
+    this.deadline_nanos = TimeUnit.MILLISECONDS.toNanos(options.fetch_deadline_ms);
+  }
+
+  public FetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      Options options, PipelineListener listener) {
+    this(image_urls, images, options, null, null, null, null, listener);
+  }
+
+  public FetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      PipelineListener listener) {
+    this(image_urls, images, new Options(), listener);
+  }
+
+  public FetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images) {
+    this(image_urls, images, PipelineListener.NONE);
   }
 
-  private static URLConnection connectionFromURL(String url) throws IOException {
+  // Throws SocketTimeoutException from reads past deadline_at, so that
+  // an image trickling in can't hold a fetch thread past its deadline
+  // any more than a stalled one can.
+  private static class DeadlineInputStream extends FilterInputStream {
+    private final long deadline_at;
+
+    DeadlineInputStream(InputStream input, long deadline_at) {
+      super(input);
+      this.deadline_at = deadline_at;
+    }
+
+    private void check() throws SocketTimeoutException {
+      if (System.nanoTime() - deadline_at >= 0) {
+        throw new SocketTimeoutException("Deadline passed");
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      check();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      check();
+      return super.read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      check();
+      return super.skip(count);
+    }
+  }
+
+  // timeout_ms, or less if deadline_at is sooner.
+  private static int timeoutMs(int timeout_ms, long deadline_at) {
+    return (int) Math.max(1, Math.min(timeout_ms,
+      TimeUnit.NANOSECONDS.toMillis(deadline_at - System.nanoTime())));
+  }
+
+  private void setTimeouts(URLConnection connection, long deadline_at) {
+    connection.setConnectTimeout(timeoutMs(connect_timeout_ms, deadline_at));
+    connection.setReadTimeout(timeoutMs(read_timeout_ms, deadline_at));
+  }
+
+  // Opens a connection to url, conditional on the image having changed
+  // since cached if it isn't null, timing out by deadline_at.
+  private URLConnection connectionFromURL(String url, ResultCache.Entry cached, long deadline_at)
+      throws IOException {
     URLConnection connection = new URL(url).openConnection();
+    setTimeouts(connection, deadline_at);
+    setConditionalHeaders(connection, cached);
     // Handle http -> https redirects
     if (connection.getURL().getProtocol().equals("http") && connection instanceof HttpURLConnection) {
       var http_connection = (HttpURLConnection)connection;
@@ -37,6 +145,8 @@ public class FetchImageRunner implements Runnable {
         }
         if (redirect_url != null && redirect_url.getProtocol().equals("https")) {
           connection = redirect_url.openConnection();
+          setTimeouts(connection, deadline_at);
+          setConditionalHeaders(connection, cached);
         }
       }
     }
@@ -44,17 +154,227 @@ public class FetchImageRunner implements Runnable {
     return connection;
   }
 
+  private static void setConditionalHeaders(URLConnection connection, ResultCache.Entry cached) {
+    if (cached == null) {
+      return;
+    }
+    if (cached.validators.etag != null) {
+      connection.setRequestProperty("If-None-Match", cached.validators.etag);
+    }
+    if (cached.validators.last_modified != null) {
+      connection.setRequestProperty("If-Modified-Since", cached.validators.last_modified);
+    }
+  }
+
+  private static boolean isNotModified(URLConnection connection) throws IOException {
+    return connection instanceof HttpURLConnection &&
+        ((HttpURLConnection)connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+  }
+
+  // Decodes the image at image_url from encoded, returning null if no
+  // ImageReader recognizes it.
+  private FetchedImage decode(String image_url, byte[] encoded) throws IOException {
+    FetchedImage image;
+    final InputStream input = new ByteArrayInputStream(encoded);
+    try {
+      if (approximate) {
+        image = Sampling.read(input, sample_pixels);
+      } else {
+        final BufferedImage decoded = ImageIO.read(input);
+        image = decoded == null ? null : FetchedImage.decoded(decoded);
+      }
+    } catch (NullPointerException e) {
+      System.err.println("Null pointer Exception when reading " + image_url + " . Failing...");
+      image = null;
+    }
+    return image;
+  }
+
+  // HTTP status of the response on connection, or 0 if there was none.
+  private static int statusOf(URLConnection connection) {
+    if (!(connection instanceof HttpURLConnection)) {
+      return 0;
+    }
+    try {
+      return ((HttpURLConnection)connection).getResponseCode();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  // Reports that the fetch of image_url started at attempt_start failed
+  // with failure, unless scheduler is to retry it.
+  private void failed(String image_url, PipelineListener.Failure failure, int status, long attempt_start) {
+    final long attempt_nanos = System.nanoTime() - attempt_start;
+    if (scheduler != null && scheduler.retry(image_url, failure, status, attempt_nanos)) {
+      listener.fetchRetried(image_url, failure, attempt_nanos);
+      return;
+    }
+    listener.urlFailed(image_url, failure);
+  }
+
+  // Fetches the image at image_url and queues it for processing,
+  // returning the HTTP status of the response, or 0 if there was none.
+  public int fetchAndQueue(String image_url) {
+    Pair<String, FetchedImage> labeled_image;
+    URLConnection connection = null;
+    // Bytes of budget held until they are handed on with the image.
+    long held = 0;
+    final long attempt_start = System.nanoTime();
+    final long deadline_at = attempt_start + (scheduler == null ? deadline_nanos :
+      Math.min(deadline_nanos, scheduler.remainingNanos(image_url)));
+    try {
+      final ResultCache.Entry cached = cache == null ? null : cache.lookup(image_url);
+      if (cached != null && cached.validators.isFresh(System.currentTimeMillis())) {
+        labeled_image = new Pair<String, FetchedImage>(image_url, FetchedImage.cached(cached.colors));
+      } else {
+        final long fetch_start = System.nanoTime();
+        connection = connectionFromURL(image_url, cached, deadline_at);
+        final ResultCache.Validators validators = cache == null ? null :
+            ResultCache.Validators.fromHeaders(connection::getHeaderField, System.currentTimeMillis());
+        FetchedImage image;
+        if (cached != null && isNotModified(connection)) {
+          connection.getInputStream().close();
+          image = FetchedImage.cached(cached.colors).withValidators(cached.validators.revalidated(validators));
+        } else {
+          // Read in full, having acquired what the body takes first, as it
+          // is kept encoded, hashed or measured before decoding.
+          if (budget != null) {
+            held = budget.acquireForBody(connection.getContentLengthLong());
+          }
+          final byte[] encoded;
+          try (var input = new DeadlineInputStream(connection.getInputStream(), deadline_at)) {
+            encoded = input.readAllBytes();
+          }
+          listener.imageFetched(image_url, encoded.length, System.nanoTime() - fetch_start);
+          Long content_hash = null;
+          int[] deduplicated = null;
+          if (dedup != null) {
+            content_hash = ContentDeduplicator.hash(encoded);
+            deduplicated = dedup.lookup(content_hash);
+          }
+          if (deduplicated != null) {
+            image = FetchedImage.cached(deduplicated).withValidators(validators);
+          } else {
+            if (budget != null) {
+              held = budget.acquireFor(held, encoded, streaming, approximate, sample_pixels);
+            }
+            if (streaming) {
+              // Left encoded, to be decoded as it is processed.
+              image = FetchedImage.encoded(encoded);
+            } else {
+              final long decode_start = System.nanoTime();
+              image = decode(image_url, encoded);
+              if (image == null) {
+                System.err.println("Reading " + image_url + " returned a null image.");
+                failed(image_url, PipelineListener.Failure.UNRECOGNIZED_IMAGE, statusOf(connection), attempt_start);
+                return statusOf(connection);
+              }
+              listener.imageDecoded(image_url, System.nanoTime() - decode_start);
+              // Only the decoded image is held from here on.
+              if (budget != null) {
+                budget.release(encoded.length);
+                held -= encoded.length;
+              }
+            }
+            image = image.withValidators(validators).withContentHash(content_hash).withBudget(budget, held);
+            held = 0;
+          }
+        }
+
+        labeled_image = new Pair<String, FetchedImage>(
+          image_url,
+          image
+        );
+      }
+    } catch (MalformedURLException e) {
+      System.err.println(image_url + " is not a valid URL.");
+      e.printStackTrace();
+      failed(image_url, PipelineListener.Failure.INVALID_URL, 0, attempt_start);
+      return statusOf(connection);
+    } catch (FileNotFoundException e) {
+      System.err.println("URL " + image_url + " does not exist.");
+      failed(image_url, PipelineListener.Failure.NOT_FOUND, statusOf(connection), attempt_start);
+      return statusOf(connection);
+    } catch (SocketTimeoutException e) {
+      System.err.println("Timed out fetching " + image_url + ": " + e.getMessage());
+      failed(image_url, PipelineListener.Failure.TIMED_OUT, 0, attempt_start);
+      return 0;
+    } catch (IOException e) {
+      final int status = statusOf(connection);
+      if (status == 429 || status == 503) {
+        System.err.println("Throttled with HTTP status " + status + " fetching " + image_url);
+        failed(image_url, PipelineListener.Failure.THROTTLED, status, attempt_start);
+        return status;
+      }
+      if (status >= 400) {
+        System.err.println("Encountered HTTP status " + status + " fetching " + image_url);
+        failed(image_url, PipelineListener.Failure.HTTP_STATUS, status, attempt_start);
+        return status;
+      }
+      System.err.println("Encountered error fetching " + image_url);
+      e.printStackTrace();
+      failed(image_url, PipelineListener.Failure.FETCH_ERROR, status, attempt_start);
+      return status;
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted waiting for memory to decode " + image_url);
+      e.printStackTrace();
+      // Nothing is held once acquiring is interrupted.
+      held = 0;
+      listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+      return statusOf(connection);
+    } finally {
+      // Not handed on, as it failed or was deduplicated.
+      if (held != 0) {
+        budget.release(held);
+      }
+    }
+
+    try {
+      images.put(labeled_image);
+      listener.imageQueued(image_url);
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted when putting image retrieved from " +
+          image_url);
+      e.printStackTrace();
+      labeled_image.value.releaseBudget();
+      listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+    }
+    return statusOf(connection);
+  }
+
+  @Override
+  public void retire() {
+    retiring = true;
+  }
+
+  @Override
+  public long busyNanos() {
+    final long since = busy_since;
+    return busy_nanos + (since == 0 ? 0 : System.nanoTime() - since);
+  }
+
   @Override
   public void run() {
     String image_url;
     while (true) {
+      if (busy_since != 0) {
+        busy_nanos += System.nanoTime() - busy_since;
+        busy_since = 0;
+      }
+      if (retiring) {
+        return;
+      }
       try {
-        image_url = image_urls.take();
+        image_url = image_urls.poll(WorkerPool.RETIRE_CHECK_MS, TimeUnit.MILLISECONDS);
       } catch (InterruptedException e) {
         System.err.println("Interrupted when taking image_url from queue.");
         e.printStackTrace();
         continue;
       }
+      if (image_url == null) {
+        continue;
+      }
 
       // "" is the poison pill
       if (image_url.isEmpty()) {
@@ -69,55 +389,11 @@ public class FetchImageRunner implements Runnable {
         }
         return;
       }
-      Pair<String, BufferedImage> labeled_image;
-      try {
-        BufferedImage image;
-        for (int retries = 0; ; ++retries) {
-            var connection = connectionFromURL(image_url);
-          try {
-            image = ImageIO.read(connection.getInputStream());
-          } catch (NullPointerException e) {
-            if (retries < 5) {
-              System.err.println("Null pointer Exception when reading " + image_url + " . Retrying...");
-              connection.getInputStream().close();
-              continue;
-            } else {
-              System.err.println("Null pointer Exception when reading " + image_url + " . Failing...");
-              image = null;
-            }
-          }
-          connection.getInputStream().close();
-          break;
-        }
-
-        if (image == null) {
-          System.err.println("Reading " + image_url + " returned a null image.");
-          continue;
-        }
-
-        labeled_image = new Pair<String, BufferedImage>(
-          image_url,
-          image
-        );
-      } catch (MalformedURLException e) {
-        System.err.println(image_url + " is not a valid URL.");
-        e.printStackTrace();
-        continue;
-      } catch (FileNotFoundException e) {
-        System.err.println("URL " + image_url + " does not exist.");
-        continue;
-      } catch (IOException e) {
-        System.err.println("Encountered error fetching " + image_url);
-        e.printStackTrace();
-        continue;
-      }
 
-      try {
-        images.put(labeled_image);
-      } catch (InterruptedException e) {
-        System.err.println("Interrupted when putting image retrieved from " +
-            image_url);
-        e.printStackTrace();
+      busy_since = System.nanoTime();
+      final int status = fetchAndQueue(image_url);
+      if (scheduler != null) {
+        scheduler.finished(image_url, status);
       }
     }
   }
@@ -0,0 +1,59 @@
+package com.github.tempoz.pexercise;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+// Limits the number of fetches in flight, both in total and to any one
+// host, for fetch stages whose concurrency isn't bounded by a fixed
+// number of threads.
+public class FetchPermits {
+  private final int max_in_flight;
+  private final int max_per_host;
+  private final Semaphore in_flight;
+  private final ConcurrentHashMap<String, Semaphore> in_flight_by_host = new ConcurrentHashMap<>();
+
+  public FetchPermits(int max_in_flight, int max_per_host) {
+    this.max_in_flight = max_in_flight;
+    this.max_per_host = max_per_host;
+    this.in_flight = new Semaphore(max_in_flight);
+  }
+
+  // Host of image_url, or "" if it can't be parsed, in which case the
+  // fetch will fail on its own soon enough.
+  public static String hostOf(String image_url) {
+    try {
+      final String host = new URI(image_url).getHost();
+      return host == null ? "" : host;
+    } catch (URISyntaxException e) {
+      return "";
+    }
+  }
+
+  private Semaphore hostPermits(String host) {
+    return in_flight_by_host.computeIfAbsent(host, h -> new Semaphore(max_per_host));
+  }
+
+  // Blocks until a fetch from host may start.
+  public void acquire(String host) throws InterruptedException {
+    in_flight.acquire();
+    try {
+      hostPermits(host).acquire();
+    } catch (InterruptedException e) {
+      in_flight.release();
+      throw e;
+    }
+  }
+
+  public void release(String host) {
+    hostPermits(host).release();
+    in_flight.release();
+  }
+
+  // Blocks until no fetches are in flight.
+  public void awaitIdle() throws InterruptedException {
+    in_flight.acquire(max_in_flight);
+    in_flight.release(max_in_flight);
+  }
+}
@@ -0,0 +1,156 @@
+package com.github.tempoz.pexercise;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Retries fetches that failed in ways that may not last: timeouts,
+// errors fetching, throttling and server errors. A retry waits in a
+// delay queue, from which HostScheduler hands it back to the fetch stage
+// once it is due, rather than on the fetch thread, which goes on to
+// other URLs meanwhile. Each retry of a URL waits about twice as long as
+// the one before, from backoff_ms up to MAX_BACKOFF_MS, less up to half
+// of that at random, so that URLs that failed together don't all come
+// back together. A URL is retried at most max_retries times, and not
+// past its deadline, which starts with its first fetch.
+public class FetchRetries {
+  private static final long MAX_BACKOFF_MS = 30 * 1000;
+
+  private static class Attempts {
+    final long started_at;
+    int retries = 0;
+    // Whether a retry is waiting in the delay queue.
+    boolean waiting = false;
+
+    Attempts(long started_at) {
+      this.started_at = started_at;
+    }
+  }
+
+  private static class Retry {
+    final String image_url;
+    final long due_at;
+
+    Retry(String image_url, long due_at) {
+      this.image_url = image_url;
+      this.due_at = due_at;
+    }
+  }
+
+  private final int max_retries;
+  private final long backoff_ms;
+  private final long deadline_nanos;
+
+  // URLs being fetched, or waiting to be again.
+  private final HashMap<String, Attempts> attempts = new HashMap<>();
+  private final PriorityQueue<Retry> delayed = new PriorityQueue<>((a, b) -> Long.signum(a.due_at - b.due_at));
+
+  private long retried = 0;
+  private long timed_out = 0;
+  private long gave_up = 0;
+  private long lost_nanos = 0;
+
+  public FetchRetries(Options options) {
+    this.max_retries = options.fetch_retries;
+    this.backoff_ms = options.retry_backoff_ms;
+    this.deadline_nanos = TimeUnit.MILLISECONDS.toNanos(options.fetch_deadline_ms);
+  }
+
+  // Whether a fetch that failed with failure, and HTTP status if it got
+  // one, may succeed if tried again.
+  public static boolean isRetryable(PipelineListener.Failure failure, int status) {
+    switch (failure) {
+      case TIMED_OUT:
+      case FETCH_ERROR:
+      case THROTTLED:
+        return true;
+      case HTTP_STATUS:
+        return status == 408 || status == 500 || status == 502 || status == 504;
+      default:
+        return false;
+    }
+  }
+
+  // Nanoseconds left until the deadline of image_url, starting it if
+  // this is its first fetch.
+  public synchronized long remainingNanos(String image_url) {
+    final long now = System.nanoTime();
+    final Attempts url_attempts = attempts.computeIfAbsent(image_url, key -> new Attempts(now));
+    return url_attempts.started_at + deadline_nanos - now;
+  }
+
+  // Called when a fetch of image_url failed with failure after
+  // attempt_nanos. Queues it to be retried, returning true, if that may
+  // help and it has retries and time left.
+  public synchronized boolean retry(String image_url, PipelineListener.Failure failure, int status,
+      long attempt_nanos) {
+    lost_nanos += attempt_nanos;
+    if (failure == PipelineListener.Failure.TIMED_OUT) {
+      ++timed_out;
+    }
+    if (!isRetryable(failure, status)) {
+      return false;
+    }
+    final long now = System.nanoTime();
+    final Attempts url_attempts = attempts.computeIfAbsent(image_url, key -> new Attempts(now));
+    if (url_attempts.retries >= max_retries) {
+      ++gave_up;
+      return false;
+    }
+    final long ceiling_ms = Math.min(MAX_BACKOFF_MS, backoff_ms << Math.min(20, url_attempts.retries));
+    final long delay_ms = ceiling_ms - ThreadLocalRandom.current().nextLong(ceiling_ms / 2 + 1);
+    final long due_at = now + TimeUnit.MILLISECONDS.toNanos(delay_ms);
+    if (due_at - (url_attempts.started_at + deadline_nanos) >= 0) {
+      ++gave_up;
+      return false;
+    }
+    ++url_attempts.retries;
+    url_attempts.waiting = true;
+    delayed.add(new Retry(image_url, due_at));
+    ++retried;
+    System.err.println(String.format("Failed to fetch %s (%s). Retrying in %d ms, retry %d of %d...", image_url,
+        failure, delay_ms, url_attempts.retries, max_retries));
+    return true;
+  }
+
+  // Called once a fetch of image_url has finished, whether or not it is
+  // to be retried.
+  public synchronized void finished(String image_url) {
+    final Attempts url_attempts = attempts.get(image_url);
+    if (url_attempts != null && !url_attempts.waiting) {
+      attempts.remove(image_url);
+    }
+  }
+
+  // A URL whose retry is due by now, or null if none is.
+  public synchronized String poll(long now) {
+    final Retry next = delayed.peek();
+    if (next == null || now - next.due_at < 0) {
+      return null;
+    }
+    delayed.remove();
+    final Attempts url_attempts = attempts.get(next.image_url);
+    if (url_attempts != null) {
+      url_attempts.waiting = false;
+    }
+    return next.image_url;
+  }
+
+  // Nanoseconds until the next retry is due, at least 1, or -1 if there
+  // are none waiting.
+  public synchronized long nextDueIn(long now) {
+    final Retry next = delayed.peek();
+    return next == null ? -1 : Math.max(1, next.due_at - now);
+  }
+
+  // What the retries came to, or null if there were none.
+  public synchronized String report() {
+    if (retried == 0 && timed_out == 0) {
+      return null;
+    }
+    return String.format(Locale.ROOT, "Retried %d fetches and gave up on %d URLs. %d fetches timed out, and" +
+        " %.1f s went to fetches that failed.", retried, gave_up, timed_out, lost_nanos / 1e9);
+  }
+}
@@ -0,0 +1,75 @@
+package com.github.tempoz.pexercise;
+
+import java.awt.image.BufferedImage;
+
+// An image as queued for processing: decoded, or still encoded when
+// streaming, in which case it is decoded as it is counted, see
+// StreamingImageDecoder, or already processed in an earlier run and
+// taken from the ResultCache. Exactly one of the three is set.
+public class FetchedImage {
+  public final BufferedImage image;
+  public final byte[] encoded;
+  public final int[] cached_colors;
+  // Subsampling stride image was decoded with, see Sampling.
+  public final int sample_stride;
+  // Validators of the response, to store the result in the ResultCache
+  // with, or null if it shouldn't be stored.
+  public final ResultCache.Validators validators;
+  // Hash of the encoded image, to add its result to the
+  // ContentDeduplicator with, or null if it shouldn't be added.
+  public final Long content_hash;
+  // What this image holds of the MemoryBudget, if any, released once it
+  // is processed.
+  private final MemoryBudget budget;
+  private final long budgeted_bytes;
+
+  private FetchedImage(BufferedImage image, byte[] encoded, int[] cached_colors, int sample_stride,
+      ResultCache.Validators validators, Long content_hash, MemoryBudget budget, long budgeted_bytes) {
+    this.image = image;
+    this.encoded = encoded;
+    this.cached_colors = cached_colors;
+    this.sample_stride = sample_stride;
+    this.validators = validators;
+    this.content_hash = content_hash;
+    this.budget = budget;
+    this.budgeted_bytes = budgeted_bytes;
+  }
+
+  public static FetchedImage decoded(BufferedImage image) {
+    return new FetchedImage(image, null, null, 1, null, null, null, 0);
+  }
+
+  public static FetchedImage sampled(BufferedImage image, int sample_stride) {
+    return new FetchedImage(image, null, null, sample_stride, null, null, null, 0);
+  }
+
+  public static FetchedImage encoded(byte[] encoded) {
+    return new FetchedImage(null, encoded, null, 1, null, null, null, 0);
+  }
+
+  public static FetchedImage cached(int[] colors) {
+    return new FetchedImage(null, null, colors, 1, null, null, null, 0);
+  }
+
+  public FetchedImage withValidators(ResultCache.Validators validators) {
+    return new FetchedImage(image, encoded, cached_colors, sample_stride, validators, content_hash, budget,
+        budgeted_bytes);
+  }
+
+  public FetchedImage withContentHash(Long content_hash) {
+    return new FetchedImage(image, encoded, cached_colors, sample_stride, validators, content_hash, budget,
+        budgeted_bytes);
+  }
+
+  public FetchedImage withBudget(MemoryBudget budget, long budgeted_bytes) {
+    return new FetchedImage(image, encoded, cached_colors, sample_stride, validators, content_hash, budget,
+        budgeted_bytes);
+  }
+
+  // Releases what this image holds of the MemoryBudget.
+  public void releaseBudget() {
+    if (budget != null) {
+      budget.release(budgeted_bytes);
+    }
+  }
+}
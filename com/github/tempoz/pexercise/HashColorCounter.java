@@ -0,0 +1,138 @@
+package com.github.tempoz.pexercise;
+
+import java.util.Arrays;
+
+// Counts colors in an open-addressing hash table of primitive ints,
+// avoiding the boxing and per-entry objects of a HashMap. Best suited
+// to small images and images with few distinct colors, where the table
+// stays small enough to remain in cache.
+public class HashColorCounter implements ColorCounter {
+  // Colors are 24-bit, so no valid key is negative.
+  private static final int EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 1 << 10;
+  // Tables grown past this by a large image are dropped on clear, so
+  // that later small images don't pay to reset them.
+  private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+  // Keys and counts are kept in separate arrays, indexed by slot.
+  // The capacity is always a power of two and kept at least twice
+  // the number of keys.
+  private int[] keys = newKeys(INITIAL_CAPACITY);
+  private int[] counts = new int[INITIAL_CAPACITY];
+  private int shift = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+  private int size = 0;
+
+  private static int[] newKeys(int capacity) {
+    final int[] keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    return keys;
+  }
+
+  // Fibonacci hashing: the top bits of the product depend on all the
+  // bits of the color, so similar colors spread across the table.
+  private int slot(int color) {
+    return (color * 0x9E3779B9) >>> shift;
+  }
+
+  private void grow() {
+    final int[] old_keys = keys;
+    final int[] old_counts = counts;
+    keys = newKeys(old_keys.length * 2);
+    counts = new int[old_keys.length * 2];
+    --shift;
+    final int mask = keys.length - 1;
+    for (int i = 0; i < old_keys.length; ++i) {
+      if (old_keys[i] != EMPTY) {
+        int slot = slot(old_keys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = slot + 1 & mask;
+        }
+        keys[slot] = old_keys[i];
+        counts[slot] = old_counts[i];
+      }
+    }
+  }
+
+  @Override
+  public void add(int[] pixels, int offset, int length) {
+    int mask = keys.length - 1;
+    for (int i = offset; i < offset + length; ++i) {
+      final int color = pixels[i] & 0xffffff;
+      int slot = slot(color);
+      while (true) {
+        final int key = keys[slot];
+        if (key == color) {
+          ++counts[slot];
+          break;
+        }
+        if (key == EMPTY) {
+          keys[slot] = color;
+          counts[slot] = 1;
+          if (++size * 2 > keys.length) {
+            grow();
+            mask = keys.length - 1;
+          }
+          break;
+        }
+        slot = slot + 1 & mask;
+      }
+    }
+  }
+
+  // Adds count occurrences of color.
+  private void add(int color, int count) {
+    final int mask = keys.length - 1;
+    int slot = slot(color);
+    while (true) {
+      final int key = keys[slot];
+      if (key == color) {
+        counts[slot] += count;
+        return;
+      }
+      if (key == EMPTY) {
+        keys[slot] = color;
+        counts[slot] = count;
+        if (++size * 2 > keys.length) {
+          grow();
+        }
+        return;
+      }
+      slot = slot + 1 & mask;
+    }
+  }
+
+  // Adds all colors counted by other to this counter.
+  public void addAll(HashColorCounter other) {
+    for (int i = 0; i < other.keys.length; ++i) {
+      if (other.keys[i] != EMPTY) {
+        add(other.keys[i], other.counts[i]);
+      }
+    }
+  }
+
+  // Number of distinct colors counted.
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void selectMostCommon(int[] max_colors, int[] max_counts) {
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != EMPTY) {
+        ColorCounter.offer(max_colors, max_counts, keys[i], counts[i]);
+      }
+    }
+  }
+
+  @Override
+  public void clear() {
+    if (keys.length > MAX_RETAINED_CAPACITY) {
+      keys = newKeys(INITIAL_CAPACITY);
+      counts = new int[INITIAL_CAPACITY];
+      shift = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+    } else {
+      Arrays.fill(keys, EMPTY);
+    }
+    size = 0;
+  }
+}
@@ -0,0 +1,323 @@
+package com.github.tempoz.pexercise;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Schedules fetches by host, so that a slow or rate-limiting host holds
+// up only its own URLs. URLs taken from the URL queue wait in a queue
+// per host, and are handed to the fetch stage a host at a time, round
+// robin across the hosts that are ready: those with fewer fetches in
+// flight than their connection limit, a token from their token bucket
+// if they have a rate, and not backing off. The fetch stage reports
+// each URL finished, with its HTTP status, see finished.
+//
+// A 429 or 503 halves the connection limit of its host and stops its
+// fetches for a backoff that doubles, up to MAX_BACKOFF_MS, while it
+// keeps being throttled. Each success then adds to the limit, as TCP
+// does its window, until it is back to the host's cap.
+//
+// Fetches that fail in ways that may not last come back through the
+// host queues once their retries are due, see FetchRetries. Without
+// scheduling by host, every URL goes through a single queue with no
+// limits, in the order it comes.
+//
+// The feeder thread, see feeder, fills the host queues and the run
+// thread hands URLs on, waiting while the fetch stage is busy, and
+// hands on the poison pill once every URL has finished.
+public class HostScheduler implements Runnable {
+  private static final long MIN_BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+  // Connections and requests per second allowed to a host, 0 for no
+  // limit on the rate.
+  public static class Limit {
+    public final int connections;
+    public final double rate;
+
+    public Limit(int connections, double rate) {
+      this.connections = connections;
+      this.rate = rate;
+    }
+  }
+
+  private static class Host {
+    final String name;
+    final Limit limit;
+    final ArrayDeque<String> queued = new ArrayDeque<>();
+    int in_flight = 0;
+    // Connections currently allowed, adapted to throttling.
+    double allowed;
+    double tokens;
+    long refilled_at;
+    long backoff_ms = 0;
+    long backoff_until;
+    // Whether it is in the ring of hosts with URLs queued.
+    boolean ringed = false;
+
+    Host(String name, Limit limit, long now) {
+      this.name = name;
+      this.limit = limit;
+      this.allowed = limit.connections;
+      this.tokens = Math.max(1, limit.rate);
+      this.refilled_at = now;
+      this.backoff_until = now;
+    }
+
+    void refill(long now) {
+      if (limit.rate > 0) {
+        tokens = Math.min(Math.max(1, limit.rate), tokens + (now - refilled_at) * limit.rate / 1e9);
+      }
+      refilled_at = now;
+    }
+
+    // Nanoseconds until it may be ready, 0 if it is, or -1 if it waits
+    // on a fetch finishing.
+    long readyIn(long now) {
+      if (now - backoff_until < 0) {
+        return backoff_until - now;
+      }
+      if (in_flight >= Math.max(1, (int) allowed)) {
+        return -1;
+      }
+      refill(now);
+      if (limit.rate > 0 && tokens < 1) {
+        return Math.max(1, (long) ((1 - tokens) * 1e9 / limit.rate));
+      }
+      return 0;
+    }
+  }
+
+  private final BlockingQueue<String> image_urls;
+  private final BlockingQueue<String> scheduled_urls;
+  // Null if fetches aren't retried.
+  private final FetchRetries retries;
+  private final boolean by_host;
+  private final Limit default_limit;
+  private final Map<String, Limit> host_limits;
+  private final int max_backlog;
+
+  private final HashMap<String, Host> hosts = new HashMap<>();
+  // Hosts with URLs queued, in the order they take turns.
+  private final ArrayDeque<Host> ring = new ArrayDeque<>();
+  private int backlog = 0;
+  private int in_flight = 0;
+  private boolean closed = false;
+
+  // Takes URLs from image_urls and puts them in scheduled_urls for the
+  // fetch stage, which should hold few, as a URL counts as in flight
+  // from when it is put there. retries may be null.
+  public HostScheduler(BlockingQueue<String> image_urls, BlockingQueue<String> scheduled_urls, Options options,
+      FetchRetries retries) {
+    this.image_urls = image_urls;
+    this.scheduled_urls = scheduled_urls;
+    this.retries = retries;
+    this.by_host = options.host_scheduling;
+    this.default_limit = by_host ? new Limit(options.max_per_host, options.host_rate) :
+      new Limit(Integer.MAX_VALUE, 0);
+    this.host_limits = by_host ? parseLimits(options.host_limits, default_limit) : new HashMap<>();
+    this.max_backlog = options.host_backlog;
+  }
+
+  // Parses limits given as host=connections[/rate],..., where rate is
+  // in requests per second, taking what isn't given from default_limit.
+  public static Map<String, Limit> parseLimits(String limits, Limit default_limit) {
+    final HashMap<String, Limit> parsed = new HashMap<>();
+    if (limits == null || limits.isEmpty()) {
+      return parsed;
+    }
+    for (String entry : limits.split(",")) {
+      final int equals = entry.indexOf('=');
+      if (equals <= 0) {
+        throw new IllegalArgumentException("Malformed host limit " + entry);
+      }
+      final String[] values = entry.substring(equals + 1).split("/", 2);
+      try {
+        final int connections = Integer.parseInt(values[0]);
+        final double rate = values.length > 1 ? Double.parseDouble(values[1]) : default_limit.rate;
+        if (connections <= 0 || !(rate >= 0)) {
+          throw new NumberFormatException();
+        }
+        parsed.put(entry.substring(0, equals), new Limit(connections, rate));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Malformed host limit " + entry);
+      }
+    }
+    return parsed;
+  }
+
+  private Host host(String image_url, long now) {
+    return hosts.computeIfAbsent(by_host ? FetchPermits.hostOf(image_url) : "",
+      key -> new Host(key, host_limits.getOrDefault(key, default_limit), now));
+  }
+
+  private void enqueue(String image_url, long now) {
+    final Host host = host(image_url, now);
+    host.queued.addLast(image_url);
+    ++backlog;
+    if (!host.ringed) {
+      host.ringed = true;
+      ring.addLast(host);
+    }
+  }
+
+  // Takes URLs into the host queues, waiting while max_backlog are
+  // queued, until the poison pill.
+  public Runnable feeder() {
+    return () -> {
+      while (true) {
+        final String image_url;
+        try {
+          image_url = image_urls.take();
+        } catch (InterruptedException e) {
+          System.err.println("Interrupted when taking image_url from queue.");
+          e.printStackTrace();
+          continue;
+        }
+        synchronized (this) {
+          // "" is the poison pill
+          if (image_url.isEmpty()) {
+            closed = true;
+            notifyAll();
+            return;
+          }
+          while (backlog >= max_backlog) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              System.err.println("Interrupted waiting for room in the host queues. Retrying...");
+              e.printStackTrace();
+            }
+          }
+          enqueue(image_url, System.nanoTime());
+          notifyAll();
+        }
+      }
+    };
+  }
+
+  // The next URL of the next ready host, waiting for one, or "" once
+  // every URL has finished without a retry.
+  private synchronized String next() throws InterruptedException {
+    while (true) {
+      final long now = System.nanoTime();
+      long wait_nanos = -1;
+      if (retries != null) {
+        for (String image_url = retries.poll(now); image_url != null; image_url = retries.poll(now)) {
+          enqueue(image_url, now);
+        }
+        wait_nanos = retries.nextDueIn(now);
+      }
+      if (ring.isEmpty() && closed && in_flight == 0 && wait_nanos < 0) {
+        return "";
+      }
+      for (int turns = ring.size(); turns > 0; --turns) {
+        final Host host = ring.removeFirst();
+        final long ready_in = host.readyIn(now);
+        if (ready_in != 0) {
+          ring.addLast(host);
+          if (ready_in > 0 && (wait_nanos < 0 || ready_in < wait_nanos)) {
+            wait_nanos = ready_in;
+          }
+          continue;
+        }
+        final String image_url = host.queued.removeFirst();
+        --backlog;
+        ++host.in_flight;
+        ++in_flight;
+        if (host.limit.rate > 0) {
+          host.tokens -= 1;
+        }
+        if (host.queued.isEmpty()) {
+          host.ringed = false;
+        } else {
+          ring.addLast(host);
+        }
+        notifyAll();
+        return image_url;
+      }
+      if (wait_nanos < 0) {
+        wait();
+      } else {
+        TimeUnit.NANOSECONDS.timedWait(this, wait_nanos);
+      }
+    }
+  }
+
+  // URLs waiting in image_urls or queued for hosts, the backlog of the
+  // fetch stage, as scheduled_urls never holds more than a few, as a
+  // fraction of the capacity of image_urls, up to 1.
+  public synchronized double occupancy() {
+    final int queued = image_urls.size();
+    return Math.min(1, (double) (queued + backlog) / (queued + image_urls.remainingCapacity()));
+  }
+
+  // Nanoseconds left until the deadline of image_url, or Long.MAX_VALUE
+  // if it has none, see FetchRetries.
+  public long remainingNanos(String image_url) {
+    return retries == null ? Long.MAX_VALUE : retries.remainingNanos(image_url);
+  }
+
+  // Called by the fetch stage when a fetch of image_url failed with
+  // failure, and HTTP status if it got one, after attempt_nanos, before
+  // finished. Returns true if it is to be retried, and so hasn't failed.
+  public boolean retry(String image_url, PipelineListener.Failure failure, int status, long attempt_nanos) {
+    return retries != null && retries.retry(image_url, failure, status, attempt_nanos);
+  }
+
+  // Called by the fetch stage once a URL it took is fetched or failed,
+  // with the HTTP status it got, or 0 if there was none.
+  public synchronized void finished(String image_url, int status) {
+    final long now = System.nanoTime();
+    final Host host = host(image_url, now);
+    --host.in_flight;
+    --in_flight;
+    if (retries != null) {
+      retries.finished(image_url);
+    }
+    if (by_host && (status == 429 || status == 503)) {
+      // Throttles of fetches sent before the backoff are already
+      // accounted for.
+      if (now - host.backoff_until >= 0) {
+        host.allowed = Math.max(1, host.allowed / 2);
+        host.backoff_ms = Math.min(MAX_BACKOFF_MS, Math.max(MIN_BACKOFF_MS, 2 * host.backoff_ms));
+        host.backoff_until = now + TimeUnit.MILLISECONDS.toNanos(host.backoff_ms);
+        System.err.println(String.format("Host %s throttled with status %d. Pausing for %d ms, then allowing %d" +
+            " connections.", host.name, status, host.backoff_ms, Math.max(1, (int) host.allowed)));
+      }
+    } else if (by_host && status >= 200 && status < 400) {
+      host.allowed = Math.min(host.limit.connections, host.allowed + 1 / host.allowed);
+      host.backoff_ms = 0;
+    }
+    notifyAll();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      String image_url;
+      try {
+        image_url = next();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted waiting for a host to be ready. Retrying...");
+        e.printStackTrace();
+        continue;
+      }
+      while (true) {
+        try {
+          scheduled_urls.put(image_url);
+          break;
+        } catch (InterruptedException e) {
+          System.err.println("Interrupted putting " + image_url + " into the scheduled_urls queue. Retrying...");
+          e.printStackTrace();
+        }
+      }
+      // "" is the poison pill
+      if (image_url.isEmpty()) {
+        return;
+      }
+    }
+  }
+}
@@ -1,12 +0,0 @@
-package com.github.tempoz.pexercise;
-
-public class IntList {
-  public int value;
-  public IntList next;
-
-  public IntList(int value) {
-    this.value = value;
-    this.next = null;
-  }
-  
-}
@@ -0,0 +1,78 @@
+package com.github.tempoz.pexercise;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+// Counts durations in nanoseconds into log-linear buckets, like
+// HdrHistogram: each power of two is split into 16 buckets of equal
+// width, so percentiles are within 1/16 of the true value while
+// recording is a single atomic increment and the histogram a fixed 960
+// counts, however many durations are recorded.
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  // Values below SUB_BUCKETS have a bucket each. Above that, a value
+  // whose highest bit is bit SUB_BUCKET_BITS + shift falls in the bucket
+  // of its top SUB_BUCKET_BITS + 1 bits, after the 16 of each lower shift.
+  private static int bucket(long nanos) {
+    final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS);
+    return (shift << SUB_BUCKET_BITS) + (int) (nanos >>> shift);
+  }
+
+  // Largest value counted in bucket.
+  private static long highest(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    final long top = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+
+  public void record(long nanos) {
+    nanos = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(nanos));
+    max.accumulate(nanos);
+  }
+
+  public long count() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  // Duration that fraction of the recorded durations are at most, to
+  // within a bucket, or 0 if none are recorded. Durations recorded while
+  // this runs may or may not be counted.
+  public long percentile(double fraction) {
+    final long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highest(i), max());
+      }
+    }
+    return max();
+  }
+}
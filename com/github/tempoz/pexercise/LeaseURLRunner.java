@@ -0,0 +1,62 @@
+package com.github.tempoz.pexercise;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+// The input of a worker: queues the URLs of batches leased from the
+// coordinator, holding up to max_leases at once so that the pipeline
+// has the next batch to start on while finishing the last, until the
+// coordinator has none left.
+public class LeaseURLRunner implements Runnable {
+  CoordinatorClient client;
+  BlockingQueue<String> image_urls;
+  PipelineListener listener;
+  private final int max_leases;
+
+  public LeaseURLRunner(CoordinatorClient client, BlockingQueue<String> image_urls, int max_leases,
+      PipelineListener listener) {
+    this.client = client;
+    this.image_urls = image_urls;
+    this.max_leases = max_leases;
+    this.listener = listener;
+  }
+
+  private void addToImageURLs(String url) {
+    listener.urlQueued(url);
+    try {
+      image_urls.put(url);
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted putting " +
+                          url +
+                          " into the image_urls queue.");
+      e.printStackTrace();
+      listener.urlFailed(url, PipelineListener.Failure.INTERRUPTED);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      final List<String> urls;
+      try {
+        client.awaitRoom(max_leases);
+        urls = client.lease();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted leasing URLs from the coordinator. Retrying...");
+        e.printStackTrace();
+        continue;
+      } catch (IOException e) {
+        System.err.println("Lost the coordinator.");
+        e.printStackTrace();
+        return;
+      }
+      if (urls == null) {
+        return;
+      }
+      for (String url : urls) {
+        addToImageURLs(url);
+      }
+    }
+  }
+}
@@ -3,13 +3,13 @@ package com.github.tempoz.pexercise;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
 
 public class LinesFromFileChannel implements Iterable<CharSequence> {
   private FileChannel file;
   private final int buffer_size;
-  private Charset ascii_charset = Charset.forName("ASCII");
 
   public LinesFromFileChannel(FileChannel file, int buffer_size) {
     this.file = file;
@@ -40,13 +40,15 @@ public class LinesFromFileChannel implements Iterable<CharSequence> {
     ByteBuffer slice = buffer.slice();
     slice.position(start);
     slice.limit(end);
-    return ascii_charset.decode(slice);
+    return StandardCharsets.UTF_8.decode(slice);
   }
 
   private class LinesIterator implements Iterator<CharSequence> {
     private ByteBuffer buffer;
     private int bytes_read;
     private int pos;
+    // Bytes of a line that crosses blocks.
+    private byte[] fragment = new byte[0];
 
     public LinesIterator() {
       this.buffer = ByteBuffer.allocateDirect(buffer_size);
@@ -69,6 +71,16 @@ public class LinesFromFileChannel implements Iterable<CharSequence> {
       } while (bytes_read == 0);
     }
 
+    // Appends bytes [start, end) of the block to fragment, which holds
+    // length, returning the new length.
+    private int appendFragment(int start, int end, int length) {
+      if (fragment.length < length + end - start) {
+        fragment = Arrays.copyOf(fragment, Math.max(length + end - start, 2 * fragment.length));
+      }
+      buffer.get(start, fragment, length, end - start);
+      return length + end - start;
+    }
+
     private void advancePosToNewLine() {
       while (pos < bytes_read && buffer.get(pos) != (byte)'\n') {
         ++pos;
@@ -93,15 +105,17 @@ public class LinesFromFileChannel implements Iterable<CharSequence> {
       int start = pos;
       advancePosToNewLine();
       if (pos == bytes_read) {
-        StringBuilder fragment = new StringBuilder();
+        // Stitched together as bytes and decoded once, as a block may end
+        // partway through a character.
+        int length = 0;
         while (pos == bytes_read) {
-          fragment.append(decodedSubSequence(buffer, start, bytes_read));
+          length = appendFragment(start, bytes_read, length);
           readNextBlock();
           start = 0;
           advancePosToNewLine();
         }
-        fragment.append(decodedSubSequence(buffer, 0, pos));
-        next_line = strippedLine(fragment);
+        length = appendFragment(0, pos, length);
+        next_line = strippedLine(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(fragment, 0, length)));
       } else {
         next_line = strippedLine(decodedSubSequence(buffer, start, pos));
       }
@@ -0,0 +1,194 @@
+package com.github.tempoz.pexercise;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Like LinesFromFileChannel, but over a range of the file mapped into
+// memory, so that no block is copied out to be searched and lines are
+// never stitched together across blocks. Newlines are found eight bytes
+// at a time in the mapping, and each line is copied once, straight into
+// its String. The file is mapped a window at a time, remapped from the
+// start of the line that crosses the end of each window.
+//
+// A file can be split into ranges at line boundaries, see split, and the
+// ranges read in parallel, as the mapping doesn't use the channel's
+// position.
+public class LinesFromMappedFile implements Iterable<CharSequence> {
+  private static final long WINDOW_BYTES = 64L << 20;
+
+  private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private final FileChannel file;
+  private final long start;
+  private final long end;
+  // Offset in the file of the next line, for progress.
+  private volatile long position;
+
+  // Reads the lines starting in [start, end) of file, which should be
+  // the start of a line.
+  public LinesFromMappedFile(FileChannel file, long start, long end) {
+    this.file = file;
+    this.start = start;
+    this.end = end;
+    this.position = start;
+  }
+
+  public LinesFromMappedFile(FileChannel file) throws IOException {
+    this(file, 0, file.size());
+  }
+
+  public long start() {
+    return start;
+  }
+
+  public long end() {
+    return end;
+  }
+
+  // Offset in the file of the next line to be returned.
+  public long position() {
+    return position;
+  }
+
+  // Splits file into up to ranges ranges of about equal size, each
+  // starting at the start of a line, returned as the ranges + 1 offsets
+  // bounding them. Ranges may be empty if lines are long.
+  public static long[] split(FileChannel file, int ranges) throws IOException {
+    final long size = file.size();
+    final long[] bounds = new long[ranges + 1];
+    bounds[ranges] = size;
+    final ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+    for (int i = 1; i < ranges; ++i) {
+      final long target = size / ranges * i;
+      if (target <= bounds[i - 1]) {
+        bounds[i] = bounds[i - 1];
+        continue;
+      }
+      // The range starts after the first newline at or after the byte
+      // before target, so a line starting at target starts the range.
+      bounds[i] = size;
+      long offset = target - 1;
+      search:
+      while (offset < size) {
+        buffer.clear();
+        final int read = file.read(buffer, offset);
+        if (read <= 0) {
+          break;
+        }
+        for (int j = 0; j < read; ++j) {
+          if (buffer.get(j) == (byte)'\n') {
+            bounds[i] = offset + j + 1;
+            break search;
+          }
+        }
+        offset += read;
+      }
+    }
+    return bounds;
+  }
+
+  private class LinesIterator implements Iterator<CharSequence> {
+    private MappedByteBuffer window;
+    // Offset in the file of the start of window.
+    private long window_start;
+    private long pos = start;
+    private byte[] line_bytes = new byte[256];
+
+    // Maps bytes from from, returning false, and ending the range, if it
+    // can't be mapped.
+    private boolean map(long from, long bytes) {
+      try {
+        window = file.map(FileChannel.MapMode.READ_ONLY, from, bytes);
+      } catch (IOException e) {
+        System.err.println("Encountered exception mapping file.");
+        e.printStackTrace();
+        pos = end;
+        return false;
+      }
+      window.order(ByteOrder.LITTLE_ENDIAN);
+      window_start = from;
+      return true;
+    }
+
+    // Index in window of the first newline at or after from, or the
+    // limit of window if there is none.
+    private int nextNewLine(int from) {
+      final int limit = window.limit();
+      int i = from;
+      for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+        // Bytes that were '\n' become 0, and the high bit of the first
+        // zero byte, the lowest as the window is little-endian, is set
+        // in found. Only higher bytes can be set falsely.
+        final long bytes = window.getLong(i) ^ NEWLINES;
+        final long found = (bytes - LOW_BITS) & ~bytes & HIGH_BITS;
+        if (found != 0) {
+          return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+      }
+      while (i < limit && window.get(i) != (byte)'\n') {
+        ++i;
+      }
+      return i;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (window == null && pos < end) {
+        map(pos, Math.min(WINDOW_BYTES, end - pos));
+      }
+      return pos < end;
+    }
+
+    @Override
+    public CharSequence next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      long window_bytes = WINDOW_BYTES;
+      int line_start = (int) (pos - window_start);
+      int newline = nextNewLine(line_start);
+      // The line crosses the end of the window, unless the window ends
+      // at the end of the range, in which case the line has no newline.
+      while (newline == window.limit() && window_start + window.limit() < end) {
+        if (line_start == 0) {
+          // A line longer than the window.
+          window_bytes *= 2;
+        }
+        if (!map(pos, Math.min(window_bytes, end - pos))) {
+          // What was read of the line is all there is.
+          break;
+        }
+        line_start = 0;
+        newline = nextNewLine(0);
+      }
+
+      int line_end = newline;
+      if (line_end > line_start && window.get(line_end - 1) == (byte)'\r') {
+        --line_end;
+      }
+      final int length = line_end - line_start;
+      if (line_bytes.length < length) {
+        line_bytes = new byte[Math.max(length, 2 * line_bytes.length)];
+      }
+      window.get(line_start, line_bytes, 0, length);
+      if (pos < end) {
+        pos = window_start + newline + 1;
+      }
+      position = Math.min(pos, end);
+      return new String(line_bytes, 0, length, StandardCharsets.UTF_8);
+    }
+  }
+
+  @Override
+  public Iterator<CharSequence> iterator() {
+    return new LinesIterator();
+  }
+}
@@ -0,0 +1,130 @@
+package com.github.tempoz.pexercise;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+// Bounds the memory held by images between being fetched and being
+// processed. The fetchers acquire the size of a response body before
+// reading it, then its encoded and decoded size before decoding it, and
+// keep only the decoded size once decoded. The process threads release
+// what is left once the image is counted, see FetchedImage.releaseBudget.
+// Acquirers are admitted in order, and an image larger than the whole
+// budget is admitted once nothing else holds any, so that it is decoded
+// alone.
+public class MemoryBudget {
+  // Bytes acquired for a body whose length isn't known in advance, until
+  // it is read.
+  static final long UNKNOWN_BODY_BYTES = 1 << 20;
+
+  private final long budget_bytes;
+  private long used_bytes = 0;
+  // Acquirers waiting to be admitted, in order.
+  private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+
+  public MemoryBudget(long budget_bytes) {
+    this.budget_bytes = budget_bytes;
+  }
+
+  public synchronized void acquire(long bytes) throws InterruptedException {
+    final Object ticket = new Object();
+    waiting.addLast(ticket);
+    try {
+      while (waiting.peekFirst() != ticket || used_bytes > 0 && used_bytes + bytes > budget_bytes) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      waiting.remove(ticket);
+      notifyAll();
+      throw e;
+    }
+    waiting.removeFirst();
+    used_bytes += bytes;
+    // The next in line may fit as well.
+    notifyAll();
+  }
+
+  public synchronized void release(long bytes) {
+    used_bytes -= bytes;
+    notifyAll();
+  }
+
+  public synchronized long usedBytes() {
+    return used_bytes;
+  }
+
+  // Acquires what a body of content_length bytes takes before it is
+  // read, UNKNOWN_BODY_BYTES if content_length is -1, and no more than the
+  // whole budget however long it claims to be, returning the bytes
+  // acquired.
+  public long acquireForBody(long content_length) throws InterruptedException {
+    final long bytes = Math.min(content_length < 0 ? UNKNOWN_BODY_BYTES : content_length, budget_bytes);
+    acquire(bytes);
+    return bytes;
+  }
+
+  // Replaces the held bytes acquired for the body of encoded with what it
+  // takes once read: its encoded size if it is streamed, and its encoded
+  // and decoded size otherwise, returning the bytes now held. The encoded
+  // size is released once it is decoded. An image whose header can't be
+  // read takes only its encoded size, as it will fail to decode anyway.
+  // Growing releases what is held before waiting, so that bodies waiting
+  // to grow can't hold the budget between them, and nothing is held if
+  // it is interrupted.
+  public long acquireFor(long held, byte[] encoded, boolean streaming, boolean approximate,
+      int sample_pixels) throws InterruptedException {
+    long bytes = encoded.length;
+    if (!streaming) {
+      try {
+        bytes += decodedBytes(encoded, sample_pixels, approximate);
+      } catch (IOException e) {
+        // Fails to decode later.
+      }
+    }
+    if (bytes <= held) {
+      release(held - bytes);
+    } else {
+      release(held);
+      acquire(bytes);
+    }
+    return bytes;
+  }
+
+  // Bytes that encoded will take once decoded, subsampled as Sampling
+  // would if approximate, read from its header: width x height x the
+  // bytes per pixel of the image type its reader decodes to. 0 if no
+  // ImageReader recognizes it.
+  public static long decodedBytes(byte[] encoded, int sample_pixels, boolean approximate) throws IOException {
+    try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+      if (!readers.hasNext()) {
+        return 0;
+      }
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(stream, true, true);
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final int stride = approximate ? Sampling.stride(width, height, sample_pixels) : 1;
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        int bytes_per_pixel = 4;
+        if (types.hasNext()) {
+          final SampleModel sample_model = types.next().getSampleModel(1, 1);
+          bytes_per_pixel = Math.max(1,
+              sample_model.getNumDataElements() * DataBuffer.getDataTypeSize(sample_model.getDataType()) / 8);
+        }
+        return (long) ((width + stride - 1) / stride) * ((height + stride - 1) / stride) * bytes_per_pixel;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.github.tempoz.pexercise;
+
+// Samples PipelineMetrics every second while the pipeline runs, and
+// prints them to stderr every interval_s seconds: as a "metrics" line of
+// JSON for machines if log is set, and as a progress line with an ETA
+// if progress is.
+public class MetricsReporter implements Runnable {
+  public static final long SAMPLE_MS = 1000;
+
+  private final PipelineMetrics metrics;
+  private final int interval_s;
+  private final boolean log;
+  private final boolean progress;
+  private volatile boolean stopped = false;
+
+  public MetricsReporter(PipelineMetrics metrics, int interval_s, boolean log, boolean progress) {
+    this.metrics = metrics;
+    this.interval_s = interval_s;
+    this.log = log;
+    this.progress = progress;
+  }
+
+  private void report() {
+    if (log) {
+      System.err.println("metrics " + metrics.toJson());
+    }
+    if (progress) {
+      System.err.println(metrics.progressLine());
+    }
+  }
+
+  // Stops sampling, and reports a last time with the final numbers.
+  public void stop() {
+    stopped = true;
+    metrics.sample();
+    report();
+  }
+
+  @Override
+  public void run() {
+    long samples = 0;
+    while (!stopped) {
+      try {
+        Thread.sleep(SAMPLE_MS);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted between sampling pipeline metrics.");
+        e.printStackTrace();
+        continue;
+      }
+      if (stopped) {
+        return;
+      }
+      metrics.sample();
+      if (++samples * SAMPLE_MS >= interval_s * 1000L) {
+        samples = 0;
+        report();
+      }
+    }
+  }
+}
@@ -0,0 +1,537 @@
+package com.github.tempoz.pexercise;
+
+// Command-line options, given as --name=value.
+public class Options {
+
+  public enum CounterEngine {
+    // Pick an engine per image, see ColorCounterSelector.
+    AUTO,
+    RADIX,
+    HASH,
+    DENSE,
+  }
+
+  public enum FetchEngine {
+    // Asynchronous requests on a shared HttpClient, see AsyncFetchImageRunner.
+    ASYNC,
+    // A blocking URLConnection per URL on each fetch thread.
+    BLOCKING,
+  }
+
+  public enum InputReader {
+    // Blocks read through the FileChannel by one thread, see
+    // LinesFromFileChannel.
+    CHANNEL,
+    // The file mapped into memory, split into input_threads ranges each
+    // read by its own thread, see LinesFromMappedFile.
+    MAPPED,
+  }
+
+  public enum ServeMode {
+    // Read the input and write the output.
+    NONE,
+    // Take batches of URLs from POST requests on the loopback interface.
+    HTTP,
+    // Take batches of URLs from stdin, separated by blank lines.
+    STDIN,
+  }
+
+  public enum ThreadMode {
+    // Fixed numbers of platform threads per stage.
+    PLATFORM,
+    // Virtual threads for the I/O-bound stages, with a thread per URL
+    // fetched, see PerURLFetchImageRunner.
+    VIRTUAL,
+  }
+
+  public String input = "input.txt";
+  public String output = "output.csv";
+
+  public InputReader input_reader = InputReader.CHANNEL;
+  public int input_threads = 1;
+
+  public ThreadMode threads = ThreadMode.PLATFORM;
+
+  // These were arrived at through experimentation visible in
+  // benchmarks.txt. process_threads of 0 means 4 with platform threads,
+  // and one per core with virtual threads.
+  public int fetch_threads = 8;
+  public int process_threads = 0;
+  public int url_queue = 64;
+  public int image_queue = 16;
+  // Bytes of decoded images the image queue and the decodes feeding it
+  // may hold, see MemoryBudget. 0 means a quarter of the maximum heap.
+  public int image_budget_mb = 0;
+  public int result_queue = 64;
+
+  // Write rows in input order, holding up to reorder_window rows that
+  // finish ahead of an earlier URL, see ReorderWindow. The input is then
+  // read by a single thread.
+  public boolean ordered = false;
+  public int reorder_window = 4096;
+
+  // Grow and shrink the blocking fetch threads and the process threads
+  // with the load, from fetch_threads and process_threads up to the
+  // maximums, see PoolAutoscaler. process_threads_max of 0 means twice
+  // the number of cores.
+  public boolean autoscale = false;
+  public int fetch_threads_max = 64;
+  public int process_threads_max = 0;
+
+  public FetchEngine fetch_engine = FetchEngine.ASYNC;
+  public int max_in_flight = 256;
+  public int max_per_host = 16;
+  // Ask https hosts for HTTP/2 with the async engine. Plain http is
+  // always HTTP/1.1, see AsyncFetchImageRunner.
+  public boolean http2 = true;
+
+  // Hand URLs to the fetch stage round robin across their hosts, up to
+  // max_per_host fetches and host_rate requests per second to each, 0
+  // for no limit on the rate, slowing down hosts that throttle, see
+  // HostScheduler. host_limits overrides these for some hosts, as
+  // host=connections[/rate],... Up to host_backlog URLs wait for their
+  // hosts.
+  public boolean host_scheduling = true;
+  public int host_rate = 0;
+  public String host_limits = null;
+  public int host_backlog = 4096;
+
+  // Fetches give up on connecting after connect_timeout_ms, on a read
+  // that stalls for read_timeout_ms with the blocking engine, and on a
+  // URL fetch_deadline_ms after its first fetch started, retries
+  // included. Fetches that fail in ways that may not last are retried
+  // up to fetch_retries times, after a backoff from retry_backoff_ms
+  // that doubles with each retry, see FetchRetries.
+  public int connect_timeout_ms = 10 * 1000;
+  public int read_timeout_ms = 30 * 1000;
+  public int fetch_deadline_ms = 120 * 1000;
+  public int fetch_retries = 3;
+  public int retry_backoff_ms = 500;
+
+  public CounterEngine counter = CounterEngine.AUTO;
+  public boolean report_allocations = false;
+
+  // Each row has the top_colors most common colors. Colors are counted
+  // exactly unless quantize gives the bits kept of red, green and blue,
+  // as R,G,B, see QuantizedColorCounter.
+  public static final int MAX_TOP_COLORS = 256;
+  public int top_colors = 3;
+  public String quantize = null;
+
+  // Images of at least stripe_min_pixels are counted in stripes on a
+  // pool of stripe_threads threads, see ParallelImageCounter. 0 threads
+  // means one per core, and 1 disables striping.
+  public int stripe_threads = 0;
+  public int stripe_min_pixels = 1 << 22;
+
+  // Queue images still encoded and decode them while counting, so that
+  // no image is ever resident fully decoded. Images that can't be
+  // decoded a row at a time are decoded in bands of stream_band_pixels.
+  public boolean streaming = false;
+  public int stream_band_pixels = 1 << 22;
+
+  // Decode and count only about sample_pixels pixels of each image,
+  // adding an estimated margin of error to each result, see Sampling.
+  public boolean approximate = false;
+  public int sample_pixels = 1 << 18;
+
+  // Fetch and process each distinct URL once per run, keeping up to
+  // coalesce_max_results results to answer repeats, see
+  // CoalesceURLRunner. Off by default, as repeated URLs are then each
+  // fetched again, as the input asks.
+  public boolean coalesce = false;
+  public int coalesce_max_results = 10000;
+
+  // Process each distinct image once per run, recognized by a hash of
+  // its bytes, keeping up to dedup_max_entries, see ContentDeduplicator.
+  // Off by default, like coalesce.
+  public boolean dedup = false;
+  public int dedup_max_entries = 100000;
+
+  // File to keep results in between runs, see ResultCache, or null to
+  // not keep them.
+  public String cache = null;
+  public int cache_max_entries = 100000;
+
+  // File to journal the rows written to, so that an interrupted run
+  // given the same journal resumes where it stopped, see ResumeJournal,
+  // or null to not journal them. Rows are committed to it at most every
+  // journal_commit_ms milliseconds.
+  public String journal = null;
+  public int journal_commit_ms = 1000;
+
+  // Run as a coordinator, leasing batches of lease_size URLs of the input
+  // to workers connecting on port listen and writing the rows they
+  // return, see Coordinator, rather than running the pipeline. Leases
+  // not returned within lease_timeout_s seconds are leased again. 0 to
+  // not coordinate.
+  public int listen = 0;
+  public int lease_size = 1000;
+  public int lease_timeout_s = 60;
+
+  // Run the pipeline as a worker of the coordinator at host:port, on the
+  // URLs it leases rather than the input, holding up to worker_leases
+  // batches at once, see CoordinatorClient. Null to read the input.
+  public String coordinator = null;
+  public int worker_leases = 2;
+
+  // Keep running as a service, taking batches of URLs and streaming
+  // their rows back, over HTTP on serve_port or stdin and stdout, rather
+  // than reading the input and writing the output, see BatchService.
+  public ServeMode serve = ServeMode.NONE;
+  public int serve_port = 7342;
+
+  // Expose PipelineMetrics over JMX, and print them to stderr every
+  // metrics_interval_s seconds as a line of JSON and as progress with an
+  // ETA, see MetricsReporter.
+  public boolean jmx = true;
+  public boolean metrics_log = false;
+  public boolean progress = false;
+  public int metrics_interval_s = 10;
+
+  public static final String USAGE =
+    "Usage: Main [options]\n" +
+    "  --input=PATH                     file to read URLs from (default input.txt)\n" +
+    "  --output=PATH                    file to write results to (default output.csv)\n" +
+    "  --input-reader=channel|mapped    how the input file is read (default channel)\n" +
+    "  --input-threads=N                threads reading ranges of a mapped input file (default 1)\n" +
+    "  --fetch-threads=N                threads fetching and decoding images (default 8)\n" +
+    "  --threads=platform|virtual       threads for the I/O-bound stages (default platform)\n" +
+    "  --process-threads=N              threads processing images\n" +
+    "                                   (default 4, or one per core with virtual threads)\n" +
+    "  --autoscale=true|false           resize the fetch and process threads to the load\n" +
+    "                                   (default false)\n" +
+    "  --fetch-threads-max=N            most blocking fetch threads when autoscaling (default 64)\n" +
+    "  --process-threads-max=N          most process threads when autoscaling\n" +
+    "                                   (default twice the number of cores)\n" +
+    "  --url-queue=N                    capacity of the URL queue (default 64)\n" +
+    "  --image-queue=N                  capacity of the image queue (default 16)\n" +
+    "  --image-budget-mb=N              MB of decoded images queued or being decoded\n" +
+    "                                   (default a quarter of the maximum heap)\n" +
+    "  --result-queue=N                 capacity of the result queue (default 64)\n" +
+    "  --ordered=true|false             write rows in input order (default false)\n" +
+    "  --reorder-window=N               rows held to put them in order (default 4096)\n" +
+    "  --fetch-engine=async|blocking    how images are fetched (default async)\n" +
+    "  --max-in-flight=N                async or virtual thread fetches in flight (default 256)\n" +
+    "  --max-per-host=N                 fetches in flight to each host (default 16)\n" +
+    "  --http2=true|false               async fetches over HTTP/2 to https hosts (default true)\n" +
+    "  --host-scheduling=true|false     fetch round robin across hosts, slowing down those\n" +
+    "                                   that throttle (default true)\n" +
+    "  --host-rate=N                    requests per second to each host (default no limit)\n" +
+    "  --host-limits=HOST=N[/RATE],...  fetches in flight and requests per second to some hosts\n" +
+    "  --host-backlog=N                 URLs waiting for their hosts (default 4096)\n" +
+    "  --connect-timeout-ms=N           milliseconds to connect to a host (default 10000)\n" +
+    "  --read-timeout-ms=N              milliseconds a blocking fetch waits on a read (default 30000)\n" +
+    "  --fetch-deadline-ms=N            milliseconds to fetch a URL in, retries included\n" +
+    "                                   (default 120000)\n" +
+    "  --fetch-retries=N                retries of timeouts, errors and throttling (default 3)\n" +
+    "  --retry-backoff-ms=N             milliseconds before the first retry, doubling after\n" +
+    "                                   (default 500)\n" +
+    "  --counter=auto|radix|hash|dense  color counting engine (default auto)\n" +
+    "  --report-allocations=true|false  print heap bytes allocated per image (default false)\n" +
+    "  --top-colors=N                   most common colors in each row, up to 256 (default 3)\n" +
+    "  --quantize=R,G,B                 count colors with only R, G and B high bits of each\n" +
+    "                                   channel, e.g. 5,6,5 (default exact colors)\n" +
+    "  --stripe-threads=N               threads counting stripes of large images, 1 to disable\n" +
+    "                                   (default one per core)\n" +
+    "  --stripe-min-pixels=N            smallest image counted in stripes (default 4194304)\n" +
+    "  --streaming=true|false           decode images while counting them (default false)\n" +
+    "  --stream-band-pixels=N           pixels decoded at once when streaming images that\n" +
+    "                                   can't be decoded a row at a time (default 4194304)\n" +
+    "  --approximate=true|false         count a subsample of each image and add a margin of\n" +
+    "                                   error column (default false)\n" +
+    "  --sample-pixels=N                pixels counted per image when approximate (default 262144)\n" +
+    "  --coalesce=true|false            fetch each distinct URL once per run (default false)\n" +
+    "  --coalesce-max-results=N         results kept to answer repeated URLs (default 10000)\n" +
+    "  --dedup=true|false               process identical images at different URLs once\n" +
+    "                                   (default false)\n" +
+    "  --dedup-max-entries=N            images remembered for deduplication (default 100000)\n" +
+    "  --cache=PATH                     file to keep results in between runs (default none)\n" +
+    "  --cache-max-entries=N            results kept in the cache (default 100000)\n" +
+    "  --journal=PATH                   file to journal rows written to, to resume an\n" +
+    "                                   interrupted run from (default none)\n" +
+    "  --journal-commit-ms=N            milliseconds between commits to the journal (default 1000)\n" +
+    "  --listen=PORT                    coordinate workers connecting on PORT instead of\n" +
+    "                                   running the pipeline (default none)\n" +
+    "  --lease-size=N                   URLs leased to a worker at once (default 1000)\n" +
+    "  --lease-timeout-s=N              seconds before a lease is leased again (default 60)\n" +
+    "  --coordinator=HOST:PORT          process URLs leased from a coordinator instead of\n" +
+    "                                   reading the input (default none)\n" +
+    "  --worker-leases=N                batches a worker holds at once (default 2)\n" +
+    "  --serve=none|http|stdin          keep running, taking batches of URLs and streaming\n" +
+    "                                   their rows back (default none)\n" +
+    "  --serve-port=N                   port to serve batches on over HTTP (default 7342)\n" +
+    "  --jmx=true|false                 expose pipeline metrics over JMX (default true)\n" +
+    "  --metrics-log=true|false         print pipeline metrics as JSON to stderr (default false)\n" +
+    "  --progress=true|false            print progress and ETA to stderr (default false)\n" +
+    "  --metrics-interval-s=N           seconds between metrics and progress lines (default 10)\n";
+
+  public static Options parse(String[] args) {
+    var options = new Options();
+    for (String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Malformed option " + arg);
+      }
+      final String name = arg.substring(2, equals);
+      final String value = arg.substring(equals + 1);
+      switch (name) {
+        case "input":
+          options.input = value;
+          break;
+        case "output":
+          options.output = value;
+          break;
+        case "input-reader":
+          options.input_reader = parseEnum(InputReader.class, name, value);
+          break;
+        case "input-threads":
+          options.input_threads = parsePositiveInt(name, value);
+          break;
+        case "threads":
+          options.threads = parseEnum(ThreadMode.class, name, value);
+          break;
+        case "fetch-threads":
+          options.fetch_threads = parsePositiveInt(name, value);
+          break;
+        case "process-threads":
+          options.process_threads = parsePositiveInt(name, value);
+          break;
+        case "autoscale":
+          options.autoscale = parseBoolean(name, value);
+          break;
+        case "fetch-threads-max":
+          options.fetch_threads_max = parsePositiveInt(name, value);
+          break;
+        case "process-threads-max":
+          options.process_threads_max = parsePositiveInt(name, value);
+          break;
+        case "url-queue":
+          options.url_queue = parsePositiveInt(name, value);
+          break;
+        case "image-queue":
+          options.image_queue = parsePositiveInt(name, value);
+          break;
+        case "image-budget-mb":
+          options.image_budget_mb = parsePositiveInt(name, value);
+          break;
+        case "result-queue":
+          options.result_queue = parsePositiveInt(name, value);
+          break;
+        case "ordered":
+          options.ordered = parseBoolean(name, value);
+          break;
+        case "reorder-window":
+          options.reorder_window = parsePositiveInt(name, value);
+          break;
+        case "fetch-engine":
+          options.fetch_engine = parseEnum(FetchEngine.class, name, value);
+          break;
+        case "max-in-flight":
+          options.max_in_flight = parsePositiveInt(name, value);
+          break;
+        case "max-per-host":
+          options.max_per_host = parsePositiveInt(name, value);
+          break;
+        case "http2":
+          options.http2 = parseBoolean(name, value);
+          break;
+        case "host-scheduling":
+          options.host_scheduling = parseBoolean(name, value);
+          break;
+        case "host-rate":
+          options.host_rate = parsePositiveInt(name, value);
+          break;
+        case "host-limits":
+          HostScheduler.parseLimits(value, new HostScheduler.Limit(1, 0));
+          options.host_limits = value;
+          break;
+        case "host-backlog":
+          options.host_backlog = parsePositiveInt(name, value);
+          break;
+        case "connect-timeout-ms":
+          options.connect_timeout_ms = parsePositiveInt(name, value);
+          break;
+        case "read-timeout-ms":
+          options.read_timeout_ms = parsePositiveInt(name, value);
+          break;
+        case "fetch-deadline-ms":
+          options.fetch_deadline_ms = parsePositiveInt(name, value);
+          break;
+        case "fetch-retries":
+          options.fetch_retries = parseNonNegativeInt(name, value);
+          break;
+        case "retry-backoff-ms":
+          options.retry_backoff_ms = parsePositiveInt(name, value);
+          break;
+        case "counter":
+          options.counter = parseEnum(CounterEngine.class, name, value);
+          break;
+        case "report-allocations":
+          options.report_allocations = parseBoolean(name, value);
+          break;
+        case "top-colors":
+          options.top_colors = parsePositiveInt(name, value);
+          if (options.top_colors > MAX_TOP_COLORS) {
+            throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+          }
+          break;
+        case "quantize":
+          QuantizedColorCounter.parseBits(value);
+          options.quantize = value;
+          break;
+        case "stripe-threads":
+          options.stripe_threads = parsePositiveInt(name, value);
+          break;
+        case "stripe-min-pixels":
+          options.stripe_min_pixels = parsePositiveInt(name, value);
+          break;
+        case "streaming":
+          options.streaming = parseBoolean(name, value);
+          break;
+        case "stream-band-pixels":
+          options.stream_band_pixels = parsePositiveInt(name, value);
+          break;
+        case "approximate":
+          options.approximate = parseBoolean(name, value);
+          break;
+        case "sample-pixels":
+          options.sample_pixels = parsePositiveInt(name, value);
+          break;
+        case "coalesce":
+          options.coalesce = parseBoolean(name, value);
+          break;
+        case "coalesce-max-results":
+          options.coalesce_max_results = parsePositiveInt(name, value);
+          break;
+        case "dedup":
+          options.dedup = parseBoolean(name, value);
+          break;
+        case "dedup-max-entries":
+          options.dedup_max_entries = parsePositiveInt(name, value);
+          break;
+        case "cache":
+          options.cache = value;
+          break;
+        case "cache-max-entries":
+          options.cache_max_entries = parsePositiveInt(name, value);
+          break;
+        case "journal":
+          options.journal = value;
+          break;
+        case "journal-commit-ms":
+          options.journal_commit_ms = parsePositiveInt(name, value);
+          break;
+        case "listen":
+          options.listen = parsePositiveInt(name, value);
+          break;
+        case "lease-size":
+          options.lease_size = parsePositiveInt(name, value);
+          break;
+        case "lease-timeout-s":
+          options.lease_timeout_s = parsePositiveInt(name, value);
+          break;
+        case "coordinator":
+          final int colon = value.lastIndexOf(':');
+          if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+          }
+          parsePositiveInt(name, value.substring(colon + 1));
+          options.coordinator = value;
+          break;
+        case "worker-leases":
+          options.worker_leases = parsePositiveInt(name, value);
+          break;
+        case "serve":
+          options.serve = parseEnum(ServeMode.class, name, value);
+          break;
+        case "serve-port":
+          options.serve_port = parsePositiveInt(name, value);
+          break;
+        case "jmx":
+          options.jmx = parseBoolean(name, value);
+          break;
+        case "metrics-log":
+          options.metrics_log = parseBoolean(name, value);
+          break;
+        case "progress":
+          options.progress = parseBoolean(name, value);
+          break;
+        case "metrics-interval-s":
+          options.metrics_interval_s = parsePositiveInt(name, value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option --" + name);
+      }
+    }
+    return options;
+  }
+
+  // Number of process threads to run, resolving the default.
+  public int processThreads() {
+    if (process_threads > 0) {
+      return process_threads;
+    }
+    return threads == ThreadMode.VIRTUAL ? Runtime.getRuntime().availableProcessors() : 4;
+  }
+
+  // Most process threads when autoscaling, resolving the default.
+  public int processThreadsMax() {
+    return process_threads_max > 0 ? process_threads_max : 2 * Runtime.getRuntime().availableProcessors();
+  }
+
+  // Bytes of the image memory budget, resolving the default.
+  public long imageBudgetBytes() {
+    return image_budget_mb > 0 ? image_budget_mb * (1L << 20) : Runtime.getRuntime().maxMemory() / 4;
+  }
+
+  // Number of stripe threads to run, resolving the default.
+  public int stripeThreads() {
+    return stripe_threads > 0 ? stripe_threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  private static int parsePositiveInt(String name, String value) {
+    int parsed;
+    try {
+      parsed = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      parsed = 0;
+    }
+    if (parsed <= 0) {
+      throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+    }
+    return parsed;
+  }
+
+  private static int parseNonNegativeInt(String name, String value) {
+    int parsed;
+    try {
+      parsed = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      parsed = -1;
+    }
+    if (parsed < 0) {
+      throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+    }
+    return parsed;
+  }
+
+  private static boolean parseBoolean(String name, String value) {
+    switch (value) {
+      case "true":
+        return true;
+      case "false":
+        return false;
+      default:
+        throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+    }
+  }
+
+  private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+    try {
+      return Enum.valueOf(type, value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid value " + value + " for --" + name);
+    }
+  }
+}
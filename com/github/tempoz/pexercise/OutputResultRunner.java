@@ -4,53 +4,155 @@ import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class OutputResultRunner implements Runnable {
   FileChannel file;
-  BlockingQueue<String> results;
+  BlockingQueue<ResultRow> results;
+  // Null if rows are written in the order they are queued.
+  private final ReorderWindow window;
+  // Null if the rows written aren't journaled.
+  private final ResumeJournal journal;
+  private final long commit_nanos;
+  private long last_commit;
 
-  public OutputResultRunner(Path filepath, BlockingQueue<String> results) throws IOException {
-    this.file = FileChannel.open(filepath, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+  // Rows are written in input order through window, unless it is null.
+  // With a journal, the file is cut back to what it had committed and
+  // appended to, and the rows written are committed to it at most every
+  // commit_ms milliseconds, see ResumeJournal.
+  public OutputResultRunner(Path filepath, BlockingQueue<ResultRow> results, ReorderWindow window,
+      ResumeJournal journal, int commit_ms) throws IOException {
+    if (journal == null) {
+      this.file = FileChannel.open(filepath, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    } else {
+      this.file = FileChannel.open(filepath, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      if (file.size() < journal.committedLength()) {
+        file.close();
+        throw new IOException("Output " + filepath + " is shorter than its journal has committed.");
+      }
+      file.truncate(journal.committedLength());
+      file.position(journal.committedLength());
+    }
     this.results = results;
+    this.window = window;
+    this.journal = journal;
+    this.commit_nanos = TimeUnit.MILLISECONDS.toNanos(commit_ms);
+    this.last_commit = System.nanoTime();
+  }
+
+  public OutputResultRunner(Path filepath, BlockingQueue<ResultRow> results, ReorderWindow window)
+      throws IOException {
+    this(filepath, results, window, null, 0);
+  }
+
+  public OutputResultRunner(Path filepath, BlockingQueue<ResultRow> results) throws IOException {
+    this(filepath, results, null);
+  }
+
+  private void write(RowsToFileChannel out_channel, ResultRow result) {
+    try {
+      out_channel.put(result);
+      if (journal != null) {
+        journal.record(result.image_url);
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to write " + result + "to file.");
+      e.printStackTrace();
+    }
+  }
+
+  // Syncs the rows written since the last commit to the file, then
+  // commits them to the journal.
+  private void commit(RowsToFileChannel out_channel) {
+    last_commit = System.nanoTime();
+    if (!journal.hasUncommitted()) {
+      return;
+    }
+    try {
+      out_channel.flush();
+      file.force(false);
+      journal.commit(file.position());
+    } catch (IOException e) {
+      System.err.println("Failed to commit rows to the journal.");
+      e.printStackTrace();
+    }
+  }
+
+  private ResultRow take() throws InterruptedException {
+    if (journal == null || !journal.hasUncommitted()) {
+      return results.take();
+    }
+    final long wait = last_commit + commit_nanos - System.nanoTime();
+    return results.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
   }
 
   @Override
   public void run() {
-    var out_channel = new StringsToFileChannel(file);
+    var out_channel = new RowsToFileChannel(file);
+    // Rows are taken as many at a time as are queued, so that the queue
+    // is locked once per batch rather than once per row.
+    final ArrayList<ResultRow> batch = new ArrayList<>();
+    // Rows the window has put in order.
+    final ArrayList<ResultRow> ready = new ArrayList<>();
     while (true) {
-      String result;
       try {
-        result = results.take();
+        final ResultRow result = take();
+        if (result != null) {
+          batch.add(result);
+        }
       } catch (InterruptedException e) {
         System.err.println("Interrupted when taking from results queue.");
         e.printStackTrace();
         continue;
       }
+      results.drainTo(batch);
+      if (journal != null && System.nanoTime() - last_commit >= commit_nanos) {
+        commit(out_channel);
+      }
 
-      // "" is the poison pill
-      if (result.isEmpty()) {
-        try {
-          out_channel.flush();
-        } catch (IOException e) {
-          System.err.println("Failed to flush to file.");
-          e.printStackTrace();
+      for (ResultRow result : batch) {
+        // "" is the poison pill
+        if (result.image_url.isEmpty()) {
+          if (window != null) {
+            window.drain(ready);
+            for (ResultRow row : ready) {
+              write(out_channel, row);
+            }
+          }
+          if (journal != null) {
+            commit(out_channel);
+          }
+          try {
+            out_channel.flush();
+          } catch (IOException e) {
+            System.err.println("Failed to flush to file.");
+            e.printStackTrace();
+          }
+          try {
+            file.close();
+          } catch (IOException e) {
+            System.err.println("Failed to close file.");
+            e.printStackTrace();
+          }
+          return;
         }
-        try {
-          file.close();
-        } catch (IOException e) {
-          System.err.println("Failed to close file.");
-          e.printStackTrace();
-        }
-        return;
-      }
 
-      try {
-        out_channel.put(result);
-      } catch (IOException e) {
-        System.err.println("Failed to write " + result + "to file.");
-        e.printStackTrace();
+        if (window == null) {
+          if (!result.isFailure()) {
+            write(out_channel, result);
+          }
+          continue;
+        }
+        window.finish(result, ready);
+        for (ResultRow row : ready) {
+          write(out_channel, row);
+        }
+        ready.clear();
       }
+      batch.clear();
     }
   }
 }
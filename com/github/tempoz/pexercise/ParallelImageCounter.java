@@ -0,0 +1,106 @@
+package com.github.tempoz.pexercise;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Counts the colors of a large image on a ForkJoinPool, so that one
+// large image doesn't hold up a single process thread while the others
+// are idle. The rows are split in halves down to stripes of about
+// STRIPE_PIXELS pixels, each counted into a HashColorCounter of its own,
+// and the halves' counts are merged on the way back up, the smaller
+// into the larger. The merged counts are the same as if counted on one
+// thread, and selected through ColorCounter.offer, so results are
+// exact with the same tie-breaking.
+public class ParallelImageCounter {
+  // Pixels counted by each task, roughly.
+  private static final int STRIPE_PIXELS = 1 << 20;
+  // Pixels read from the image at a time by each task.
+  private static final int CHUNK_PIXELS = 1 << 16;
+
+  private final ForkJoinPool pool;
+
+  // Counters and pixel buffers are kept between images, as in
+  // ProcessImageRunner. Counters are always returned cleared.
+  private final ConcurrentLinkedQueue<HashColorCounter> spare_counters = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<int[]> spare_buffers = new ConcurrentLinkedQueue<>();
+
+  public ParallelImageCounter(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  // Like ColorCounter.selectMostCommon, for all the pixels of the image.
+  public void selectMostCommon(PixelsFromImage pixels, int[] max_colors, int[] max_counts) {
+    final HashColorCounter counter = pool.invoke(new Stripe(pixels, 0, pixels.getHeight()));
+    counter.selectMostCommon(max_colors, max_counts);
+    release(counter);
+  }
+
+  private HashColorCounter acquire() {
+    final HashColorCounter counter = spare_counters.poll();
+    return counter == null ? new HashColorCounter() : counter;
+  }
+
+  private void release(HashColorCounter counter) {
+    counter.clear();
+    spare_counters.add(counter);
+  }
+
+  private class Stripe extends RecursiveTask<HashColorCounter> {
+    private static final long serialVersionUID = 1L;
+
+    private final PixelsFromImage pixels;
+    private final int start_row;
+    private final int end_row;
+
+    Stripe(PixelsFromImage pixels, int start_row, int end_row) {
+      this.pixels = pixels;
+      this.start_row = start_row;
+      this.end_row = end_row;
+    }
+
+    @Override
+    protected HashColorCounter compute() {
+      final int width = pixels.getWidth();
+      if (end_row - start_row <= 1 || (long) (end_row - start_row) * width <= STRIPE_PIXELS) {
+        return count();
+      }
+
+      final int middle_row = (start_row + end_row) >>> 1;
+      final var top = new Stripe(pixels, start_row, middle_row);
+      top.fork();
+      HashColorCounter bottom_counts = new Stripe(pixels, middle_row, end_row).compute();
+      HashColorCounter top_counts = top.join();
+
+      // Merging costs a probe per distinct color of the smaller side.
+      if (top_counts.size() < bottom_counts.size()) {
+        final HashColorCounter swap = top_counts;
+        top_counts = bottom_counts;
+        bottom_counts = swap;
+      }
+      top_counts.addAll(bottom_counts);
+      release(bottom_counts);
+      return top_counts;
+    }
+
+    private HashColorCounter count() {
+      final HashColorCounter counter = acquire();
+      final int width = pixels.getWidth();
+      if (width == 0) {
+        return counter;
+      }
+      final int chunk_rows = Math.max(1, CHUNK_PIXELS / width);
+      int[] buffer = spare_buffers.poll();
+      if (buffer == null || buffer.length < chunk_rows * width) {
+        buffer = new int[chunk_rows * width];
+      }
+      for (int y = start_row; y < end_row; y += chunk_rows) {
+        final int rows = Math.min(chunk_rows, end_row - y);
+        pixels.readRows(y, rows, buffer, 0);
+        counter.add(buffer, 0, rows * width);
+      }
+      spare_buffers.add(buffer);
+      return counter;
+    }
+  }
+}
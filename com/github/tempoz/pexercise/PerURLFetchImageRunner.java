@@ -0,0 +1,102 @@
+package com.github.tempoz.pexercise;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+// Fetches each URL on its own thread, normally a virtual thread, with a
+// blocking FetchImageRunner fetch. Blocking a virtual thread is cheap,
+// so concurrency is limited only by the permits, not by a fixed number
+// of fetch threads.
+public class PerURLFetchImageRunner implements Runnable {
+  private BlockingQueue<String> image_urls;
+  private final FetchImageRunner fetcher;
+  private final ThreadFactory thread_factory;
+  private final FetchPermits permits;
+  // Null if URLs aren't scheduled by host.
+  private final HostScheduler scheduler;
+  private PipelineListener listener;
+
+  // image_urls are handed on by scheduler, unless it is null, which
+  // limits the fetches to each host in place of the permits if it
+  // schedules by host.
+  public PerURLFetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      ThreadFactory thread_factory, Options options, ResultCache cache, ContentDeduplicator dedup,
+      MemoryBudget budget, HostScheduler scheduler, PipelineListener listener) {
+    this.image_urls = image_urls;
+    this.fetcher = new FetchImageRunner(image_urls, images, options, cache, dedup, budget, scheduler, listener);
+    this.thread_factory = thread_factory;
+    this.permits = new FetchPermits(options.max_in_flight,
+      scheduler != null && options.host_scheduling ? options.max_in_flight : options.max_per_host);
+    this.scheduler = scheduler;
+    this.listener = listener;
+  }
+
+  public PerURLFetchImageRunner(BlockingQueue<String> image_urls, BlockingQueue<Pair<String, FetchedImage>> images,
+      ThreadFactory thread_factory, Options options, PipelineListener listener) {
+    this(image_urls, images, thread_factory, options, null, null, null, null, listener);
+  }
+
+  @Override
+  public void run() {
+    String image_url;
+    while (true) {
+      try {
+        image_url = image_urls.take();
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted when taking image_url from queue.");
+        e.printStackTrace();
+        continue;
+      }
+
+      // "" is the poison pill
+      if (image_url.isEmpty()) {
+        while (true) {
+          try {
+            image_urls.put(image_url);
+            break;
+          } catch (InterruptedException e) {
+            System.err.println("Interrupted when re-inserting the poison pill. Retrying...");
+            e.printStackTrace();
+          }
+        }
+        // Wait for the fetches in flight, so that all images are
+        // queued by the time this returns.
+        while (true) {
+          try {
+            permits.awaitIdle();
+            break;
+          } catch (InterruptedException e) {
+            System.err.println("Interrupted waiting for fetches in flight. Retrying...");
+            e.printStackTrace();
+          }
+        }
+        return;
+      }
+
+      final String host = FetchPermits.hostOf(image_url);
+      try {
+        permits.acquire(host);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted when starting fetch of " + image_url);
+        e.printStackTrace();
+        listener.urlFailed(image_url, PipelineListener.Failure.INTERRUPTED);
+        if (scheduler != null) {
+          scheduler.finished(image_url, 0);
+        }
+        continue;
+      }
+      final String url = image_url;
+      thread_factory.newThread(() -> {
+        int status = 0;
+        try {
+          status = fetcher.fetchAndQueue(url);
+        } finally {
+          permits.release(host);
+          if (scheduler != null) {
+            scheduler.finished(url, status);
+          }
+        }
+      }).start();
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package com.github.tempoz.pexercise;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+// Reads URLs from the input file, fetches and processes the images and
+// writes the results to the output file, with each stage running on its
+// own threads as configured by the options.
+public class Pipeline {
+  private final Options options;
+  private final PipelineListener listener;
+
+  public Pipeline(Options options, PipelineListener listener) {
+    this.options = options;
+    this.listener = listener;
+  }
+
+  public Pipeline(Options options) {
+    this(options, PipelineListener.NONE);
+  }
+
+  // Runs the pipeline to completion.
+  public void run() throws IOException, InterruptedException {
+
+    // Threads for the I/O-bound stages. Processing is CPU-bound, so it
+    // always runs on platform threads.
+    final boolean virtual = options.threads == Options.ThreadMode.VIRTUAL;
+    if (virtual && !VirtualThreads.isSupported()) {
+      System.err.println("Virtual threads are not supported by this Java runtime, using platform threads.");
+    }
+    final ThreadFactory io_threads = virtual ? VirtualThreads.factory() : Thread::new;
+
+    // Results kept from earlier runs, if enabled.
+    final ResultCache cache = options.cache == null ? null :
+      ResultCache.open(FileSystems.getDefault().getPath(options.cache), options.cache_max_entries,
+        options.top_colors, options.quantize == null ? "exactly" : "quantized to " + options.quantize);
+
+    // Rows written by an earlier run given the same journal, if enabled.
+    // A worker or a service writes no rows, so keeps none.
+    final boolean writes_output = options.coordinator == null && options.serve == Options.ServeMode.NONE;
+    final ResumeJournal journal = options.journal == null || !writes_output ? null :
+      ResumeJournal.open(FileSystems.getDefault().getPath(options.journal));
+    if (journal != null && journal.doneCount() > 0) {
+      System.out.println(String.format("Resuming: %d URLs already done.", journal.doneCount()));
+    }
+
+    // A worker takes its URLs from the coordinator instead of the input,
+    // and returns their rows to it instead of writing them.
+    final CoordinatorClient client = options.coordinator == null ? null :
+      CoordinatorClient.connect(options.coordinator);
+
+    // Colors of the images processed so far, by content, if enabled.
+    final ContentDeduplicator dedup = options.dedup ? new ContentDeduplicator(options.dedup_max_entries) : null;
+
+    // Bounds the memory of the images between fetching and processing,
+    // besides the capacity of the image queue.
+    final MemoryBudget budget = new MemoryBudget(options.imageBudgetBytes());
+
+    // Start threads and initialize queues
+
+    BlockingQueue<String> image_urls = new ArrayBlockingQueue<String>(options.url_queue);
+    BlockingQueue<Pair<String, FetchedImage>> images =
+      new ArrayBlockingQueue<Pair<String, FetchedImage>>(options.image_queue);
+    BlockingQueue<ResultRow> results = new ArrayBlockingQueue<ResultRow>(options.result_queue);
+
+    // Every stage reports to the metrics as well, if they are used.
+    PipelineMetrics metrics = null;
+    PipelineListener read_listener = listener;
+    if (options.jmx || options.metrics_log || options.progress) {
+      metrics = new PipelineMetrics(image_urls, images, results);
+      read_listener = PipelineListener.tee(listener, metrics);
+    }
+
+    // With coalescing, the URLs read pass through the coalescer on their
+    // way to the fetch threads.
+    final BlockingQueue<String> input_urls = options.coalesce ?
+      new ArrayBlockingQueue<String>(options.url_queue) : image_urls;
+
+    // In order, failures are queued to the output as well, to free their
+    // places in the window, and in a worker or a service to complete
+    // their batches.
+    ReorderWindow window = null;
+    if (options.ordered && writes_output) {
+      window = new ReorderWindow(options.reorder_window);
+    }
+    if (window != null || !writes_output) {
+      read_listener = PipelineListener.tee(read_listener, new PipelineListener() {
+        @Override
+        public void urlFailed(String image_url, Failure failure) {
+          while (true) {
+            try {
+              results.put(ResultRow.failed(image_url));
+              break;
+            } catch (InterruptedException e) {
+              System.err.println("Interrupted queueing the failure of " + image_url + ". Retrying...");
+              e.printStackTrace();
+            }
+          }
+        }
+      });
+    }
+
+    // A service takes its URLs from the batches submitted to it instead of
+    // the input, and streams their rows back instead of writing them.
+    final BatchService service = options.serve == Options.ServeMode.NONE || client != null ? null :
+      new BatchService(options, input_urls, read_listener);
+
+    // Opened before anything is read, as with a journal the output must
+    // still have what the journal committed.
+    final Runnable output = client != null ? new ReturnResultRunner(client, results) :
+      service != null ? new ReturnResultRunner(service, results) :
+      new OutputResultRunner(FileSystems.getDefault().getPath(options.output), results, window, journal,
+        options.journal_commit_ms);
+
+    // The coalescer queues each distinct URL once for fetching. Later
+    // stages report to its listener, so that waiting occurrences fail
+    // with the first. A service keeps no completed results, as it runs
+    // for as long as it is up, and only merges occurrences in flight.
+    CoalesceURLRunner coalescer = null;
+    Thread coalesce_thread = null;
+    PipelineListener stage_listener = read_listener;
+    if (options.coalesce) {
+      coalescer = new CoalesceURLRunner(input_urls, image_urls, results,
+        service != null ? 0 : options.coalesce_max_results, read_listener);
+      coalesce_thread = io_threads.newThread(coalescer);
+      coalesce_thread.start();
+      stage_listener = coalescer.listener();
+    }
+
+    final CoalesceURLRunner url_coalescer = coalescer;
+    final PipelineListener worker_listener = stage_listener;
+
+    // A mapped input file is split into ranges, each read by a thread,
+    // unless the output is in order.
+    final ReadImageURLRunner[] readers;
+    FileChannel mapped_input = null;
+    if (!writes_output) {
+      readers = new ReadImageURLRunner[0];
+    } else if (options.input_reader == Options.InputReader.MAPPED) {
+      int ranges = options.input_threads;
+      if (options.ordered && ranges > 1) {
+        System.err.println("Reading the input with one thread, as the output is in order.");
+        ranges = 1;
+      }
+      mapped_input = FileChannel.open(FileSystems.getDefault().getPath(options.input), StandardOpenOption.READ);
+      final long[] bounds = LinesFromMappedFile.split(mapped_input, ranges);
+      readers = new ReadImageURLRunner[ranges];
+      for (int i = 0; i < readers.length; ++i) {
+        readers[i] = new ReadImageURLRunner(mapped_input, bounds[i], bounds[i + 1], input_urls, window,
+          journal, read_listener);
+      }
+    } else {
+      readers = new ReadImageURLRunner[] {
+        new ReadImageURLRunner(FileSystems.getDefault().getPath(options.input), input_urls, window, journal,
+          read_listener)
+      };
+    }
+    Thread[] read_image_threads;
+    if (client != null) {
+      read_image_threads = new Thread[] {
+        io_threads.newThread(new LeaseURLRunner(client, input_urls, options.worker_leases, read_listener))
+      };
+    } else if (service != null) {
+      read_image_threads = new Thread[] { io_threads.newThread(service) };
+    } else {
+      read_image_threads = new Thread[readers.length];
+      for (int i = 0; i < readers.length; ++i) {
+        read_image_threads[i] = io_threads.newThread(readers[i]);
+      }
+    }
+    for (Thread read_image_thread : read_image_threads) {
+      read_image_thread.start();
+    }
+
+    // The URLs pass through the scheduler, which hands them on a host at
+    // a time as each host is ready for them, with host scheduling, and
+    // hands back fetches to retry as they are due.
+    final FetchRetries retries = new FetchRetries(options);
+    final BlockingQueue<String> scheduled_urls = new ArrayBlockingQueue<String>(1);
+    final HostScheduler fetch_scheduler = new HostScheduler(image_urls, scheduled_urls, options, retries);
+    Thread[] scheduler_threads = {new Thread(fetch_scheduler.feeder()), new Thread(fetch_scheduler)};
+    for (Thread scheduler_thread : scheduler_threads) {
+      scheduler_thread.start();
+    }
+
+    Thread[] fetch_image_threads;
+    WorkerPool fetch_pool = null;
+    ExecutorService fetch_executor = null;
+    if (virtual) {
+      // One thread takes the URLs and starts a thread to fetch each.
+      fetch_image_threads = new Thread[] {
+        io_threads.newThread(
+          new PerURLFetchImageRunner(scheduled_urls, images, io_threads, options, cache, dedup, budget,
+            fetch_scheduler, stage_listener))
+      };
+    } else if (options.fetch_engine == Options.FetchEngine.ASYNC) {
+      // One thread sends the requests, and the fetch threads decode the
+      // responses as they complete.
+      fetch_executor = Executors.newFixedThreadPool(options.fetch_threads);
+      fetch_image_threads = new Thread[] {
+        new Thread(
+          new AsyncFetchImageRunner(scheduled_urls, images, fetch_executor, options, cache, dedup, budget,
+            fetch_scheduler, stage_listener))
+      };
+    } else {
+      fetch_image_threads = new Thread[0];
+      fetch_pool = new WorkerPool(
+        () -> new FetchImageRunner(scheduled_urls, images, options, cache, dedup, budget, fetch_scheduler,
+          worker_listener),
+        Thread::new, options.fetch_threads);
+    }
+    for (Thread fetch_image_thread : fetch_image_threads) {
+      fetch_image_thread.start();
+    }
+
+    // Shared by the process threads to count large images in stripes.
+    ForkJoinPool stripe_pool = options.stripeThreads() > 1 ? new ForkJoinPool(options.stripeThreads()) : null;
+
+    WorkerPool process_pool = new WorkerPool(
+      () -> new ProcessImageRunner(images, results, options, cache, dedup, url_coalescer, worker_listener,
+        stripe_pool),
+      Thread::new, options.processThreads());
+
+    MetricsReporter reporter = null;
+    if (metrics != null) {
+      metrics.watchInput(() -> {
+        long bytes = 0;
+        long bytes_read = 0;
+        for (ReadImageURLRunner reader : readers) {
+          bytes += reader.bytes();
+          bytes_read += reader.bytesRead();
+        }
+        return bytes == 0 ? 0 : (double) bytes_read / bytes;
+      });
+      if (fetch_pool != null) {
+        metrics.watchPool("fetch", fetch_pool);
+      }
+      metrics.watchPool("process", process_pool);
+      if (options.jmx) {
+        metrics.register();
+      }
+      reporter = new MetricsReporter(metrics, options.metrics_interval_s, options.metrics_log, options.progress);
+      Thread reporter_thread = new Thread(reporter);
+      reporter_thread.setDaemon(true);
+      reporter_thread.start();
+    }
+
+    // Resizes the blocking fetch threads and the process threads to the
+    // load, if enabled.
+    PoolAutoscaler autoscaler = null;
+    if (options.autoscale) {
+      autoscaler = new PoolAutoscaler();
+      if (fetch_pool != null) {
+        // The URLs waiting in the scheduler are the fetch stage's backlog.
+        autoscaler.addStage(fetch_pool, fetch_scheduler::occupancy, images, 1, options.fetch_threads_max);
+      }
+      autoscaler.addStage(process_pool, images, results, 1, options.processThreadsMax());
+      Thread autoscaler_thread = new Thread(autoscaler);
+      autoscaler_thread.setDaemon(true);
+      autoscaler_thread.start();
+    }
+
+    Thread output_result_thread = io_threads.newThread(output);
+    output_result_thread.start();
+
+    // Join threads and poison queues
+
+    for (Thread read_image_thread : read_image_threads) {
+      read_image_thread.join();
+    }
+    if (mapped_input != null) {
+      mapped_input.close();
+    }
+    if (coalesce_thread != null) {
+      input_urls.put("");
+      coalesce_thread.join();
+    }
+    image_urls.put("");
+    for (Thread scheduler_thread : scheduler_threads) {
+      scheduler_thread.join();
+    }
+
+    for (Thread fetch_image_thread : fetch_image_threads) {
+      fetch_image_thread.join();
+    }
+    if (fetch_pool != null) {
+      fetch_pool.join();
+    }
+    if (fetch_executor != null) {
+      fetch_executor.shutdown();
+    }
+    images.put(new Pair<String, FetchedImage>("", null));
+
+    process_pool.join();
+    if (autoscaler != null) {
+      autoscaler.stop();
+    }
+    if (stripe_pool != null) {
+      stripe_pool.shutdown();
+    }
+    if (cache != null) {
+      cache.close();
+    }
+    results.put(ResultRow.POISON);
+
+    output_result_thread.join();
+    if (journal != null) {
+      journal.close();
+    }
+    if (client != null) {
+      client.close();
+    }
+
+    if (reporter != null) {
+      reporter.stop();
+      metrics.unregister();
+    }
+
+    if (window != null) {
+      System.out.println(String.format("Reorder window held at most %d of %d rows.", window.peakHeld(),
+          window.size()));
+    }
+    // Served on stdout, the rows are the only output there.
+    final PrintStream report = options.serve == Options.ServeMode.STDIN ? System.err : System.out;
+    final String retry_report = retries.report();
+    if (retry_report != null) {
+      report.println(retry_report);
+    }
+    if (dedup != null && dedup.hits() + dedup.misses() > 0) {
+      report.println(String.format(Locale.ROOT, "Deduplicated %d of %d images by content (%.1f%%).",
+          dedup.hits(), dedup.hits() + dedup.misses(), 100 * dedup.hitRatio()));
+    }
+  }
+}
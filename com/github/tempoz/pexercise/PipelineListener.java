@@ -0,0 +1,118 @@
+package com.github.tempoz.pexercise;
+
+// Receives events as URLs move through the pipeline. Called from the
+// threads of each stage, so implementations must be thread-safe and
+// should be quick.
+public interface PipelineListener {
+  PipelineListener NONE = new PipelineListener() {};
+
+  // Why a URL produced no result.
+  enum Failure {
+    INVALID_URL,
+    NOT_FOUND,
+    // 429 Too Many Requests or 503 Service Unavailable.
+    THROTTLED,
+    // Any other unsuccessful HTTP status.
+    HTTP_STATUS,
+    // No connection, response or image within the timeouts.
+    TIMED_OUT,
+    FETCH_ERROR,
+    DECODE_ERROR,
+    // No ImageReader recognized the image.
+    UNRECOGNIZED_IMAGE,
+    INTERRUPTED,
+  }
+
+  // image_url was read from the input and queued for fetching.
+  default void urlQueued(String image_url) {}
+
+  // The image at image_url was fetched and queued for processing.
+  default void imageQueued(String image_url) {}
+
+  // The result for image_url was queued for output.
+  default void resultQueued(String image_url) {}
+
+  // image_url will not produce a result.
+  default void urlFailed(String image_url) {}
+
+  // image_url will not produce a result, because of failure.
+  default void urlFailed(String image_url, Failure failure) {
+    urlFailed(image_url);
+  }
+
+  // A fetch of image_url failed with failure after nanos, and is to be
+  // retried.
+  default void fetchRetried(String image_url, Failure failure, long nanos) {}
+
+  // The bytes of the image at image_url were downloaded, taking nanos.
+  // bytes is -1 if the image was decoded as it was downloaded, in which
+  // case nanos includes decoding it.
+  default void imageFetched(String image_url, long bytes, long nanos) {}
+
+  // The image at image_url was decoded, taking nanos. Images decoded
+  // while they are counted report imageCounted only.
+  default void imageDecoded(String image_url, long nanos) {}
+
+  // The colors of pixels pixels of the image at image_url were counted,
+  // taking nanos.
+  default void imageCounted(String image_url, long pixels, long nanos) {}
+
+  // Listener forwarding every event to first and then to second.
+  static PipelineListener tee(PipelineListener first, PipelineListener second) {
+    return new PipelineListener() {
+      @Override
+      public void urlQueued(String image_url) {
+        first.urlQueued(image_url);
+        second.urlQueued(image_url);
+      }
+
+      @Override
+      public void imageQueued(String image_url) {
+        first.imageQueued(image_url);
+        second.imageQueued(image_url);
+      }
+
+      @Override
+      public void resultQueued(String image_url) {
+        first.resultQueued(image_url);
+        second.resultQueued(image_url);
+      }
+
+      @Override
+      public void urlFailed(String image_url) {
+        first.urlFailed(image_url);
+        second.urlFailed(image_url);
+      }
+
+      @Override
+      public void urlFailed(String image_url, Failure failure) {
+        first.urlFailed(image_url, failure);
+        second.urlFailed(image_url, failure);
+      }
+
+      @Override
+      public void fetchRetried(String image_url, Failure failure, long nanos) {
+        first.fetchRetried(image_url, failure, nanos);
+        second.fetchRetried(image_url, failure, nanos);
+      }
+
+      @Override
+      public void imageFetched(String image_url, long bytes, long nanos) {
+        first.imageFetched(image_url, bytes, nanos);
+        second.imageFetched(image_url, bytes, nanos);
+      }
+
+      @Override
+      public void imageDecoded(String image_url, long nanos) {
+        first.imageDecoded(image_url, nanos);
+        second.imageDecoded(image_url, nanos);
+      }
+
+      @Override
+      public void imageCounted(String image_url, long pixels, long nanos) {
+        first.imageCounted(image_url, pixels, nanos);
+        second.imageCounted(image_url, pixels, nanos);
+      }
+    };
+  }
+}
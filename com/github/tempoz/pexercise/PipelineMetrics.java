@@ -0,0 +1,346 @@
+package com.github.tempoz.pexercise;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counts what passes through the pipeline, as a listener on every
+// stage, for JMX and MetricsReporter. Recording an event is a few
+// uncontended additions, so it is cheap enough to always be on. Rates
+// and utilization are over the interval between calls to sample.
+public class PipelineMetrics implements PipelineListener, PipelineMetricsMXBean {
+  public static final String OBJECT_NAME = "com.github.tempoz.pexercise:type=Pipeline";
+
+  private final long start_nanos = System.nanoTime();
+
+  private final LongAdder urls_read = new LongAdder();
+  private final LongAdder results = new LongAdder();
+  private final EnumMap<Failure, LongAdder> failures = new EnumMap<>(Failure.class);
+  private final EnumMap<Failure, LongAdder> retries = new EnumMap<>(Failure.class);
+  private final LongAdder retried_nanos = new LongAdder();
+  private final LongAdder bytes_fetched = new LongAdder();
+  private final LongAdder pixels_counted = new LongAdder();
+
+  private final LatencyHistogram fetch_latency = new LatencyHistogram();
+  private final LatencyHistogram decode_latency = new LatencyHistogram();
+  private final LatencyHistogram count_latency = new LatencyHistogram();
+
+  private final BlockingQueue<?> url_queue;
+  private final BlockingQueue<?> image_queue;
+  private final BlockingQueue<?> result_queue;
+  private final LinkedHashMap<String, WorkerPool> pools = new LinkedHashMap<>();
+  private volatile DoubleSupplier fraction_read = () -> 0;
+
+  // As of the last call to sample.
+  private long sampled_at;
+  private long sampled_bytes = 0;
+  private long sampled_pixels = 0;
+  private final LinkedHashMap<String, Long> sampled_busy_nanos = new LinkedHashMap<>();
+  private volatile double bytes_per_second = 0;
+  private volatile double pixels_per_second = 0;
+  private volatile Map<String, Double> utilization = Map.of();
+
+  private ObjectName registered_name;
+
+  public PipelineMetrics(BlockingQueue<?> url_queue, BlockingQueue<?> image_queue, BlockingQueue<?> result_queue) {
+    this.url_queue = url_queue;
+    this.image_queue = image_queue;
+    this.result_queue = result_queue;
+    for (Failure failure : Failure.values()) {
+      failures.put(failure, new LongAdder());
+      retries.put(failure, new LongAdder());
+    }
+    this.sampled_at = start_nanos;
+  }
+
+  // Reports the utilization of pool as that of stage.
+  public synchronized void watchPool(String stage, WorkerPool pool) {
+    pools.put(stage, pool);
+    sampled_busy_nanos.put(stage, pool.busyNanos());
+  }
+
+  // Progress is estimated from the fraction of the input read so far.
+  public void watchInput(DoubleSupplier fraction_read) {
+    this.fraction_read = fraction_read;
+  }
+
+  @Override
+  public void urlQueued(String image_url) {
+    urls_read.increment();
+  }
+
+  @Override
+  public void resultQueued(String image_url) {
+    results.increment();
+  }
+
+  @Override
+  public void urlFailed(String image_url, Failure failure) {
+    failures.get(failure).increment();
+  }
+
+  @Override
+  public void fetchRetried(String image_url, Failure failure, long nanos) {
+    retries.get(failure).increment();
+    retried_nanos.add(nanos);
+  }
+
+  @Override
+  public void imageFetched(String image_url, long bytes, long nanos) {
+    if (bytes > 0) {
+      bytes_fetched.add(bytes);
+    }
+    fetch_latency.record(nanos);
+  }
+
+  @Override
+  public void imageDecoded(String image_url, long nanos) {
+    decode_latency.record(nanos);
+  }
+
+  @Override
+  public void imageCounted(String image_url, long pixels, long nanos) {
+    pixels_counted.add(pixels);
+    count_latency.record(nanos);
+  }
+
+  // Updates the rates and utilization to those since the last call.
+  public synchronized void sample() {
+    final long now = System.nanoTime();
+    final long interval_nanos = Math.max(1, now - sampled_at);
+    final long bytes = bytes_fetched.sum();
+    final long pixels = pixels_counted.sum();
+    bytes_per_second = (bytes - sampled_bytes) * 1e9 / interval_nanos;
+    pixels_per_second = (pixels - sampled_pixels) * 1e9 / interval_nanos;
+    final LinkedHashMap<String, Double> sampled_utilization = new LinkedHashMap<>();
+    for (Map.Entry<String, WorkerPool> stage : pools.entrySet()) {
+      final long busy_nanos = stage.getValue().busyNanos();
+      final long busy = busy_nanos - sampled_busy_nanos.put(stage.getKey(), busy_nanos);
+      final int size = Math.max(1, stage.getValue().size());
+      sampled_utilization.put(stage.getKey(), (double) busy / (size * interval_nanos));
+    }
+    utilization = sampled_utilization;
+    sampled_at = now;
+    sampled_bytes = bytes;
+    sampled_pixels = pixels;
+  }
+
+  // Registers this with the platform MBeanServer under OBJECT_NAME,
+  // unless something already is.
+  public void register() {
+    try {
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      registered_name = name;
+    } catch (JMException e) {
+      System.err.println("Failed to register pipeline metrics with JMX.");
+      e.printStackTrace();
+    }
+  }
+
+  public void unregister() {
+    if (registered_name == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered_name);
+    } catch (JMException e) {
+      System.err.println("Failed to unregister pipeline metrics from JMX.");
+      e.printStackTrace();
+    }
+    registered_name = null;
+  }
+
+  @Override
+  public double getElapsedSeconds() {
+    return (System.nanoTime() - start_nanos) / 1e9;
+  }
+
+  @Override
+  public long getUrlsRead() {
+    return urls_read.sum();
+  }
+
+  @Override
+  public long getResults() {
+    return results.sum();
+  }
+
+  @Override
+  public long getFailures() {
+    long failed = 0;
+    for (LongAdder count : failures.values()) {
+      failed += count.sum();
+    }
+    return failed;
+  }
+
+  private static Map<String, Long> byType(EnumMap<Failure, LongAdder> counts) {
+    final LinkedHashMap<String, Long> by_type = new LinkedHashMap<>();
+    for (Map.Entry<Failure, LongAdder> count : counts.entrySet()) {
+      by_type.put(count.getKey().name(), count.getValue().sum());
+    }
+    return by_type;
+  }
+
+  @Override
+  public Map<String, Long> getFailuresByType() {
+    return byType(failures);
+  }
+
+  @Override
+  public Map<String, Long> getRetriesByType() {
+    return byType(retries);
+  }
+
+  @Override
+  public double getRetriedSeconds() {
+    return retried_nanos.sum() / 1e9;
+  }
+
+  @Override
+  public Map<String, Integer> getQueueDepths() {
+    final LinkedHashMap<String, Integer> depths = new LinkedHashMap<>();
+    depths.put("urls", url_queue.size());
+    depths.put("images", image_queue.size());
+    depths.put("results", result_queue.size());
+    return depths;
+  }
+
+  @Override
+  public long getBytesFetched() {
+    return bytes_fetched.sum();
+  }
+
+  @Override
+  public long getPixelsCounted() {
+    return pixels_counted.sum();
+  }
+
+  @Override
+  public double getBytesPerSecond() {
+    return bytes_per_second;
+  }
+
+  @Override
+  public double getPixelsPerSecond() {
+    return pixels_per_second;
+  }
+
+  private static Map<String, Double> millis(LatencyHistogram histogram) {
+    final LinkedHashMap<String, Double> millis = new LinkedHashMap<>();
+    millis.put("p50", histogram.percentile(0.5) / 1e6);
+    millis.put("p90", histogram.percentile(0.9) / 1e6);
+    millis.put("p99", histogram.percentile(0.99) / 1e6);
+    millis.put("max", histogram.max() / 1e6);
+    return millis;
+  }
+
+  @Override
+  public Map<String, Double> getFetchMillis() {
+    return millis(fetch_latency);
+  }
+
+  @Override
+  public Map<String, Double> getDecodeMillis() {
+    return millis(decode_latency);
+  }
+
+  @Override
+  public Map<String, Double> getCountMillis() {
+    return millis(count_latency);
+  }
+
+  @Override
+  public Map<String, Double> getUtilization() {
+    return utilization;
+  }
+
+  @Override
+  public double getFractionRead() {
+    return fraction_read.getAsDouble();
+  }
+
+  // URLs expected in the input, extrapolated from those read so far.
+  private double expectedUrls() {
+    final double fraction = getFractionRead();
+    return fraction <= 0 ? 0 : getUrlsRead() / Math.min(1, fraction);
+  }
+
+  // The rate so far is a better guide than the last interval's, which
+  // swings with the sizes of the images that happened to finish in it.
+  @Override
+  public double getEtaSeconds() {
+    final long done = getResults() + getFailures();
+    final double expected = expectedUrls();
+    if (done == 0 || expected == 0) {
+      return -1;
+    }
+    return Math.max(0, expected - done) * getElapsedSeconds() / done;
+  }
+
+  // One line of JSON with everything above.
+  public String toJson() {
+    final StringBuilder json = new StringBuilder("{");
+    json.append(String.format(Locale.ROOT, "\"elapsed_s\":%.3f", getElapsedSeconds()));
+    json.append(",\"urls_read\":").append(getUrlsRead());
+    json.append(",\"results\":").append(getResults());
+    json.append(",\"failures\":").append(getFailures());
+    appendObject(json, "failures_by_type", getFailuresByType());
+    appendObject(json, "retries_by_type", getRetriesByType());
+    json.append(String.format(Locale.ROOT, ",\"retried_s\":%.3f", getRetriedSeconds()));
+    appendObject(json, "queue_depths", getQueueDepths());
+    json.append(",\"bytes_fetched\":").append(getBytesFetched());
+    json.append(",\"pixels_counted\":").append(getPixelsCounted());
+    json.append(String.format(Locale.ROOT, ",\"bytes_per_s\":%.0f", getBytesPerSecond()));
+    json.append(String.format(Locale.ROOT, ",\"pixels_per_s\":%.0f", getPixelsPerSecond()));
+    appendObject(json, "fetch_ms", getFetchMillis());
+    appendObject(json, "decode_ms", getDecodeMillis());
+    appendObject(json, "count_ms", getCountMillis());
+    appendObject(json, "utilization", getUtilization());
+    json.append(String.format(Locale.ROOT, ",\"fraction_read\":%.4f", getFractionRead()));
+    final double eta = getEtaSeconds();
+    json.append(",\"eta_s\":").append(eta < 0 ? "null" : String.format(Locale.ROOT, "%.1f", eta));
+    return json.append('}').toString();
+  }
+
+  private static void appendObject(StringBuilder json, String name, Map<String, ? extends Number> values) {
+    json.append(",\"").append(name).append("\":{");
+    boolean first = true;
+    for (Map.Entry<String, ? extends Number> value : values.entrySet()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      json.append('"').append(value.getKey()).append("\":");
+      if (value.getValue() instanceof Double) {
+        json.append(String.format(Locale.ROOT, "%.3f", value.getValue().doubleValue()));
+      } else {
+        json.append(value.getValue());
+      }
+    }
+    json.append('}');
+  }
+
+  // Human-readable progress, with the estimated time remaining.
+  public String progressLine() {
+    final long done = getResults() + getFailures();
+    final double expected = expectedUrls();
+    final double eta = getEtaSeconds();
+    if (expected == 0 || eta < 0) {
+      return String.format(Locale.ROOT, "Progress: %d URLs done, %.0f%% of the input read", done,
+          100 * getFractionRead());
+    }
+    final long eta_s = Math.round(eta);
+    return String.format(Locale.ROOT, "Progress: %.1f%% (%d of ~%.0f URLs), ETA %d:%02d", 100 * done / expected,
+        done, expected, eta_s / 60, eta_s % 60);
+  }
+}
@@ -0,0 +1,54 @@
+package com.github.tempoz.pexercise;
+
+import java.util.Map;
+
+// What PipelineMetrics exposes over JMX, registered as
+// com.github.tempoz.pexercise:type=Pipeline while the pipeline runs.
+public interface PipelineMetricsMXBean {
+  double getElapsedSeconds();
+
+  long getUrlsRead();
+
+  long getResults();
+
+  long getFailures();
+
+  // Failures by PipelineListener.Failure.
+  Map<String, Long> getFailuresByType();
+
+  // Fetches retried, by the PipelineListener.Failure they failed with.
+  Map<String, Long> getRetriesByType();
+
+  // Seconds spent on fetches that failed and were retried.
+  double getRetriedSeconds();
+
+  // Occupancy of the URL, image and result queues.
+  Map<String, Integer> getQueueDepths();
+
+  long getBytesFetched();
+
+  long getPixelsCounted();
+
+  // Rates over the last sampling interval.
+  double getBytesPerSecond();
+
+  double getPixelsPerSecond();
+
+  // Latency percentiles in milliseconds, keyed p50, p90, p99 and max.
+  Map<String, Double> getFetchMillis();
+
+  Map<String, Double> getDecodeMillis();
+
+  Map<String, Double> getCountMillis();
+
+  // Fraction of the last sampling interval that each pool's workers
+  // spent working, by stage.
+  Map<String, Double> getUtilization();
+
+  // Fraction of the input file read.
+  double getFractionRead();
+
+  // Estimated seconds until every URL has a result or has failed, or -1
+  // if there is nothing to estimate from yet.
+  double getEtaSeconds();
+}
@@ -1,34 +1,273 @@
 package com.github.tempoz.pexercise;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.util.PrimitiveIterator;
 
 public class PixelsFromImage implements Iterable<Integer> {
   private BufferedImage image;
+  private int width;
+  private int height;
+
+  // Which of the specialized row readers below applies to this image.
+  // Anything we don't recognize falls back to batched getRGB calls,
+  // which are still much cheaper than one getRGB call per pixel.
+  private static final int READ_FALLBACK = 0;
+  private static final int READ_INT_PACKED = 1;
+  private static final int READ_BYTE_INTERLEAVED = 2;
+  private static final int READ_BYTE_LOOKUP = 3;
+  private int read_type;
+
+  // Backing arrays of the image's DataBuffer, only one of which is
+  // set depending on read_type.
+  private int[] int_data;
+  private byte[] byte_data;
+
+  // Position of pixel (0, 0) in the backing array, and the distance
+  // between consecutive pixels and rows.
+  private int data_offset;
+  private int pixel_stride;
+  private int scanline_stride;
+
+  // Offsets of the red, green, blue and alpha samples from the start
+  // of a pixel for READ_BYTE_INTERLEAVED. Alpha is -1 if absent.
+  private int red_offset;
+  private int green_offset;
+  private int blue_offset;
+  private int alpha_offset;
+
+  // ARGB value for each byte sample for READ_BYTE_LOOKUP. Built from the
+  // image's ColorModel so that the output is identical to getRGB, gamma
+  // conversion of gray images included. Kept across reset, along with
+  // the sample it is built from.
+  private int[] lookup;
+  private final byte[] sample = new byte[1];
+
+  // Masks applied to each pixel for READ_INT_PACKED, so that images
+  // without alpha come out opaque.
+  private int color_mask;
+  private int alpha_mask;
 
   public PixelsFromImage(BufferedImage image) {
+    reset(image);
+  }
+
+  // Has no image until reset.
+  public PixelsFromImage() {
+  }
+
+  // Reads image from now on, without allocating, so that one instance
+  // can be reused for every image a thread processes.
+  public void reset(BufferedImage image) {
     this.image = image;
+    this.width = image.getWidth();
+    this.height = image.getHeight();
+    this.int_data = null;
+    this.byte_data = null;
+    this.read_type = chooseReadType();
+  }
+
+  // Drops the image, so that it isn't kept alive until the next reset.
+  public void release() {
+    image = null;
+    int_data = null;
+    byte_data = null;
+    width = 0;
+    height = 0;
+    read_type = READ_FALLBACK;
+  }
+
+  private int chooseReadType() {
+    final Raster raster = image.getRaster();
+    // Rasters of BufferedImages always start at (0, 0), but the sample
+    // model may be translated if this is a subimage of a larger image.
+    final int sample_x = raster.getMinX() - raster.getSampleModelTranslateX();
+    final int sample_y = raster.getMinY() - raster.getSampleModelTranslateY();
+
+    switch (image.getType()) {
+      case BufferedImage.TYPE_INT_RGB:
+      case BufferedImage.TYPE_INT_ARGB: {
+        if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel) ||
+            !(raster.getDataBuffer() instanceof DataBufferInt)) {
+          return READ_FALLBACK;
+        }
+        var sample_model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        var data_buffer = (DataBufferInt) raster.getDataBuffer();
+        int_data = data_buffer.getData();
+        scanline_stride = sample_model.getScanlineStride();
+        pixel_stride = 1;
+        data_offset = data_buffer.getOffset() + sample_y * scanline_stride + sample_x;
+        final boolean opaque = image.getType() == BufferedImage.TYPE_INT_RGB;
+        color_mask = opaque ? 0xffffff : 0xffffffff;
+        alpha_mask = opaque ? 0xff000000 : 0;
+        return READ_INT_PACKED;
+      }
+
+      case BufferedImage.TYPE_3BYTE_BGR:
+      case BufferedImage.TYPE_4BYTE_ABGR: {
+        if (!(raster.getSampleModel() instanceof ComponentSampleModel) ||
+            !(raster.getDataBuffer() instanceof DataBufferByte)) {
+          return READ_FALLBACK;
+        }
+        var sample_model = (ComponentSampleModel) raster.getSampleModel();
+        var data_buffer = (DataBufferByte) raster.getDataBuffer();
+        byte_data = data_buffer.getData();
+        scanline_stride = sample_model.getScanlineStride();
+        pixel_stride = sample_model.getPixelStride();
+        data_offset = data_buffer.getOffset() + sample_y * scanline_stride + sample_x * pixel_stride;
+        // The offset of each band of pixel (0, 0), as getBandOffsets
+        // returns a copy.
+        red_offset = sample_model.getOffset(0, 0, 0);
+        green_offset = sample_model.getOffset(0, 0, 1);
+        blue_offset = sample_model.getOffset(0, 0, 2);
+        alpha_offset = sample_model.getNumBands() > 3 ? sample_model.getOffset(0, 0, 3) : -1;
+        return READ_BYTE_INTERLEAVED;
+      }
+
+      case BufferedImage.TYPE_BYTE_GRAY:
+      case BufferedImage.TYPE_BYTE_INDEXED: {
+        if (!(raster.getSampleModel() instanceof ComponentSampleModel) ||
+            !(raster.getDataBuffer() instanceof DataBufferByte)) {
+          return READ_FALLBACK;
+        }
+        var sample_model = (ComponentSampleModel) raster.getSampleModel();
+        var data_buffer = (DataBufferByte) raster.getDataBuffer();
+        byte_data = data_buffer.getData();
+        scanline_stride = sample_model.getScanlineStride();
+        pixel_stride = sample_model.getPixelStride();
+        data_offset = data_buffer.getOffset() + sample_model.getOffset(sample_x, sample_y);
+        if (lookup == null) {
+          lookup = new int[256];
+        }
+        final var color_model = image.getColorModel();
+        for (int i = 0; i < lookup.length; ++i) {
+          sample[0] = (byte) i;
+          lookup[i] = color_model.getRGB(sample);
+        }
+        return READ_BYTE_LOOKUP;
+      }
+
+      default:
+        return READ_FALLBACK;
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getPixelCount() {
+    return width * height;
+  }
+
+  // Whether rows are read straight from the image's DataBuffer, in which
+  // case readRows may be called from several threads at once. Otherwise
+  // they are read through the image's ColorModel, which isn't
+  // guaranteed to be thread-safe.
+  public boolean readsDirectly() {
+    return read_type != READ_FALLBACK;
+  }
+
+  // Number of distinct colors the image can possibly contain if it is
+  // known from its ColorModel (indexed or gray images), otherwise -1.
+  public int getPaletteSize() {
+    if (read_type != READ_BYTE_LOOKUP) {
+      return -1;
+    }
+    final var color_model = image.getColorModel();
+    if (color_model instanceof IndexColorModel) {
+      return ((IndexColorModel) color_model).getMapSize();
+    }
+    return lookup.length;
+  }
+
+  // Reads rows [y, y + rows) into pixels starting at offset as ARGB ints,
+  // in the same format as BufferedImage.getRGB. pixels must have room for
+  // rows * getWidth() values past offset.
+  public void readRows(int y, int rows, int[] pixels, int offset) {
+    switch (read_type) {
+      case READ_INT_PACKED:
+        for (int row = y; row < y + rows; ++row) {
+          int src = data_offset + row * scanline_stride;
+          final int src_end = src + width;
+          for (; src < src_end; ++src) {
+            pixels[offset++] = int_data[src] & color_mask | alpha_mask;
+          }
+        }
+        break;
+
+      case READ_BYTE_INTERLEAVED:
+        for (int row = y; row < y + rows; ++row) {
+          int src = data_offset + row * scanline_stride;
+          final int src_end = src + width * pixel_stride;
+          if (alpha_offset < 0) {
+            for (; src < src_end; src += pixel_stride) {
+              pixels[offset++] = 0xff000000 |
+                (byte_data[src + red_offset] & 0xff) << 16 |
+                (byte_data[src + green_offset] & 0xff) << 8 |
+                (byte_data[src + blue_offset] & 0xff);
+            }
+          } else {
+            for (; src < src_end; src += pixel_stride) {
+              pixels[offset++] = (byte_data[src + alpha_offset] & 0xff) << 24 |
+                (byte_data[src + red_offset] & 0xff) << 16 |
+                (byte_data[src + green_offset] & 0xff) << 8 |
+                (byte_data[src + blue_offset] & 0xff);
+            }
+          }
+        }
+        break;
+
+      case READ_BYTE_LOOKUP:
+        for (int row = y; row < y + rows; ++row) {
+          int src = data_offset + row * scanline_stride;
+          final int src_end = src + width * pixel_stride;
+          for (; src < src_end; src += pixel_stride) {
+            pixels[offset++] = lookup[byte_data[src] & 0xff];
+          }
+        }
+        break;
+
+      default:
+        image.getRGB(0, y, width, rows, pixels, offset, width);
+    }
   }
 
   private class PixelIterator implements PrimitiveIterator.OfInt {
-    private int pos;
-    private final int length;
+    // Pixels are read a row at a time, so the per-pixel cost is an
+    // array access rather than a call through the ColorModel.
+    private final int[] row;
+    private int row_pos;
+    private int y;
 
     public PixelIterator() {
-      pos = 0;
-      length = image.getWidth() * image.getHeight();
+      row = new int[width];
+      row_pos = width;
+      y = 0;
     }
 
     @Override
     public boolean hasNext() {
-      return pos < length;
+      return row_pos < width || y < height && width > 0;
     }
 
     @Override
     public int nextInt() {
-      final int color = image.getRGB(pos % image.getWidth(), pos / image.getWidth());
-      ++pos;
-      return color;
+      if (row_pos == width) {
+        readRows(y, 1, row, 0);
+        ++y;
+        row_pos = 0;
+      }
+      return row[row_pos++];
     }
 
   }
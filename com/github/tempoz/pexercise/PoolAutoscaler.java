@@ -0,0 +1,102 @@
+package com.github.tempoz.pexercise;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.DoubleSupplier;
+
+// Resizes WorkerPools to the load while the pipeline runs, so that the
+// thread counts needn't be tuned to the machine and network. Every
+// interval, each stage's pool grows by a worker if its input queue is
+// backing up while its workers are busy and its output queue has room,
+// since otherwise another worker would only wait on the next stage, and
+// shrinks by a worker if its workers are mostly idle with little
+// queued. Pools stay within their bounds, and change by at most one
+// worker per interval so that each change is seen before the next.
+public class PoolAutoscaler implements Runnable {
+  public static final long INTERVAL_MS = 500;
+
+  // Utilization is the fraction of the interval that the stage's
+  // workers spent working rather than waiting for input.
+  private static final double GROW_UTILIZATION = 0.8;
+  private static final double GROW_OCCUPANCY = 0.5;
+  private static final double SHRINK_UTILIZATION = 0.25;
+  private static final double SHRINK_OCCUPANCY = 0.1;
+
+  private static class Stage {
+    final WorkerPool pool;
+    // Fraction of the stage's input backlog that is used.
+    final DoubleSupplier input_occupancy;
+    final BlockingQueue<?> output;
+    final int min_size;
+    final int max_size;
+    long last_busy_nanos = 0;
+
+    Stage(WorkerPool pool, DoubleSupplier input_occupancy, BlockingQueue<?> output, int min_size, int max_size) {
+      this.pool = pool;
+      this.input_occupancy = input_occupancy;
+      this.output = output;
+      this.min_size = min_size;
+      this.max_size = max_size;
+    }
+  }
+
+  private final ArrayList<Stage> stages = new ArrayList<>();
+  private volatile boolean stopped = false;
+
+  // Scales pool between min_size and max_size by the occupancy of input
+  // and output. Stages must all be added before this runs.
+  public void addStage(WorkerPool pool, BlockingQueue<?> input, BlockingQueue<?> output, int min_size,
+      int max_size) {
+    addStage(pool, () -> occupancy(input), output, min_size, max_size);
+  }
+
+  // Like the above, for a stage whose input isn't a queue, but which has
+  // a backlog input_occupancy of its capacity, from 0 to 1.
+  public void addStage(WorkerPool pool, DoubleSupplier input_occupancy, BlockingQueue<?> output, int min_size,
+      int max_size) {
+    stages.add(new Stage(pool, input_occupancy, output, min_size, max_size));
+  }
+
+  public void stop() {
+    stopped = true;
+  }
+
+  private static double occupancy(BlockingQueue<?> queue) {
+    final int size = queue.size();
+    return (double) size / (size + queue.remainingCapacity());
+  }
+
+  private void scale(Stage stage, long interval_nanos) {
+    final long busy_nanos = stage.pool.busyNanos();
+    final int size = stage.pool.size();
+    final double utilization = (double) (busy_nanos - stage.last_busy_nanos) / (size * interval_nanos);
+    stage.last_busy_nanos = busy_nanos;
+
+    final double input_occupancy = stage.input_occupancy.getAsDouble();
+    if (size < stage.max_size && utilization >= GROW_UTILIZATION && input_occupancy >= GROW_OCCUPANCY &&
+        stage.output.remainingCapacity() > 0) {
+      stage.pool.grow();
+    } else if (size > stage.min_size && utilization < SHRINK_UTILIZATION && input_occupancy < SHRINK_OCCUPANCY) {
+      stage.pool.shrink();
+    }
+  }
+
+  @Override
+  public void run() {
+    long last = System.nanoTime();
+    while (!stopped) {
+      try {
+        Thread.sleep(INTERVAL_MS);
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted between scaling worker pools.");
+        e.printStackTrace();
+        continue;
+      }
+      final long now = System.nanoTime();
+      for (Stage stage : stages) {
+        scale(stage, now - last);
+      }
+      last = now;
+    }
+  }
+}
@@ -1,185 +1,250 @@
 package com.github.tempoz.pexercise;
 
 import java.awt.image.BufferedImage;
-// import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
-public class ProcessImageRunner implements Runnable {
-  private BlockingQueue<Pair<String, BufferedImage>> images;
-  private BlockingQueue<String> results;
+public class ProcessImageRunner implements WorkerPool.Worker {
+  private BlockingQueue<Pair<String, FetchedImage>> images;
+  private BlockingQueue<ResultRow> results;
+
+  // Roughly how many pixels are read from the image at a time.
+  private static final int CHUNK_PIXELS = 1 << 16;
 
   // Better to not have to re-allocate these between
   // calls to processImage, so declaring / instantiating
   // them here.
-
-  // Array of of green-blue byte pairs bucketed by red byte
-  // Use ints because java doesn't have unsigned types,
-  // and fixing sign-padding after casting is a mess.
-  private IntList[] red_buckets = new IntList[256];
-
-  // Array of blue bytes bucketed by green byte
-  // Use shorts because java doesn't have unsigned types,
-  // and fixing sign-padding after casting is a mess.
-  private ShortList[] green_buckets = new ShortList[256];
-
-  // Array of the count of pixels encountered bucketed by blue byte
-  // Use shorts because java doesn't have unsigned types,
-  // and fixing sign-padding after casting is a mess.
-  private short[] blue_counts = new short[256];
-
-  private short[] next_red = new short[256];
-  private short[] next_green = new short[256];
-  private short[] next_blue = new short[256];
-
-  public ProcessImageRunner(BlockingQueue<Pair<String, BufferedImage>> images, BlockingQueue<String> results) {
+  private final ColorCounterSelector counters;
+  // Null if images are never counted in stripes.
+  private final ParallelImageCounter striped;
+  private final int stripe_min_pixels;
+  private int[] pixel_buffer = new int[CHUNK_PIXELS];
+  private final PixelsFromImage pixels = new PixelsFromImage();
+  private final int[] max_colors;
+  private final int[] max_counts;
+  // Colors in each row.
+  private final int columns;
+
+  private final boolean report_allocations;
+  private final PipelineListener listener;
+  // Null if results aren't cached.
+  private final ResultCache cache;
+  // Null if images aren't deduplicated by content.
+  private final ContentDeduplicator dedup;
+  // Null if duplicate URLs aren't coalesced.
+  private final CoalesceURLRunner coalescer;
+  private final int stream_band_pixels;
+  private final boolean approximate;
+  private final int sample_pixels;
+
+  private volatile boolean retiring = false;
+  // Time spent on finished images, and when the current one started, 0
+  // if there is none.
+  private volatile long busy_nanos = 0;
+  private volatile long busy_since = 0;
+
+  // Subsampling stride of the last image processed, for the confidence
+  // of approximate results.
+  private int counted_stride;
+  // Pixels counted of the last image processed, for imageCounted.
+  private long counted_pixels;
+
+  // Images of at least options.stripe_min_pixels are counted in stripes
+  // on stripe_pool, unless it is null or colors are quantized. Exact
+  // results of images fetched with validators are stored in cache, and
+  // those of images with a content hash in dedup, unless they are null.
+  // Results are also queued for the occurrences of the URL waiting in
+  // coalescer, unless it is null.
+  public ProcessImageRunner(BlockingQueue<Pair<String, FetchedImage>> images,
+      BlockingQueue<ResultRow> results, Options options, ResultCache cache,
+      ContentDeduplicator dedup, CoalesceURLRunner coalescer, PipelineListener listener,
+      ForkJoinPool stripe_pool) {
     this.images = images;
     this.results = results;
+    this.counters = new ColorCounterSelector(options.counter,
+      options.quantize == null ? null : QuantizedColorCounter.parseBits(options.quantize));
+    // Quantized counts are already cheap enough on one thread.
+    this.striped = stripe_pool == null || options.quantize != null ? null
+      : new ParallelImageCounter(stripe_pool);
+    this.stripe_min_pixels = options.stripe_min_pixels;
+    this.report_allocations = options.report_allocations;
+    this.listener = listener;
+    this.cache = cache;
+    this.dedup = dedup;
+    this.coalescer = coalescer;
+    this.stream_band_pixels = options.stream_band_pixels;
+    this.approximate = options.approximate;
+    this.sample_pixels = options.sample_pixels;
+    // Approximate results also select one more color than the row has,
+    // as the confidence depends on how far behind the last it is.
+    this.columns = options.top_colors;
+    this.max_colors = new int[approximate ? columns + 1 : columns];
+    this.max_counts = new int[max_colors.length];
   }
 
-  /*
-  // HashMap implementation. Much, much slower.
-  public int[] processImageHashMap(String image_url, BufferedImage image) {
-    var color_counts = new HashMap<Integer, Integer>();
+  public ProcessImageRunner(BlockingQueue<Pair<String, FetchedImage>> images,
+      BlockingQueue<ResultRow> results, Options options, PipelineListener listener,
+      ForkJoinPool stripe_pool) {
+    this(images, results, options, null, null, null, listener, stripe_pool);
+  }
 
-    for (var pixel : new PixelsFromImage(image)) {
-      color_counts.compute(pixel & 0xffffff, (color, count) -> count == null ? 1 : count + 1);
-    }
+  public ProcessImageRunner(BlockingQueue<Pair<String, FetchedImage>> images,
+      BlockingQueue<ResultRow> results, Options options, PipelineListener listener) {
+    this(images, results, options, listener, null);
+  }
 
-    int[] max_colors = new int[4];
-    int[] max_counts = new int[4];
-    for (var entry : color_counts.entrySet()) {
-      max_colors[3] = entry.getKey();
-      max_counts[3] = entry.getValue();
-      for (int i = 3; i > 0 && max_counts[i] > max_counts[i - 1]; --i) {
-        int color = max_colors[i];
-        max_colors[i] = max_colors[i - 1];
-        max_colors[i - 1] = color;
+  public ProcessImageRunner(BlockingQueue<Pair<String, FetchedImage>> images,
+      BlockingQueue<ResultRow> results, Options options) {
+    this(images, results, options, PipelineListener.NONE);
+  }
 
-        int count = max_counts[i];
-        max_counts[i] = max_counts[i - 1];
-        max_counts[i - 1] = count;
-      }
+  public ProcessImageRunner(BlockingQueue<Pair<String, FetchedImage>> images,
+      BlockingQueue<ResultRow> results) {
+    this(images, results, new Options());
+  }
 
+  // Returns the most common colors of image in an array of the runner's,
+  // which the next call overwrites. Allocates nothing once the runner has
+  // seen an image as wide and a counter as large, unless the image is
+  // counted in stripes.
+  public int[] processImage(String image_url, BufferedImage image) {
+    Arrays.fill(max_colors, 0);
+    Arrays.fill(max_counts, 0);
+
+    pixels.reset(image);
+    try {
+      countPixels();
+    } finally {
+      pixels.release();
     }
-
-    correctIfZeroCounts(max_colors, max_counts); 
+    correctIfZeroCounts(max_colors, max_counts, columns);
 
     return max_colors;
-
   }
-  */
 
-  public int[] processImage(String image_url, BufferedImage image) {
-    int[] max_colors = new int[3];
-    int[] max_counts = new int[3];
-
-    // We're going to kinda-sort-of radix sort the pixels.
-    // Since we don't actually need all the values at the end,
-    // and we don't care about the order, just the grouping,
-    // we can take some shortcuts.
-    var pixel_iter = new PixelsFromImage(image).iterator();
-
-    short last_red = -1;
-    while (pixel_iter.hasNext()) {
-      int pixel = pixel_iter.nextInt();
-      short red = (short) (pixel >>> 16 & 0xff);
-      var green_blue_node = new IntList(pixel & 0xffff);
-      if (red_buckets[red] == null) {
-        next_red[red] = last_red;
-        last_red = red;
-        red_buckets[red] = green_blue_node;
-      } else {
-        red_buckets[red].next = green_blue_node;
-      }
+  private void countPixels() {
+    counted_stride = 1;
+    counted_pixels = pixels.getPixelCount();
+    if (striped != null && pixels.getPixelCount() >= stripe_min_pixels && pixels.readsDirectly()) {
+      striped.selectMostCommon(pixels, max_colors, max_counts);
+      return;
     }
 
-    for (short red = last_red; red != -1; red = next_red[red]) {
-      short last_green = -1;
-      for(var green_blue_list = red_buckets[red]; green_blue_list != null; green_blue_list = green_blue_list.next) {
-        short green = (short) (green_blue_list.value >>> 8 & 0xff);
-        var blue_node = new ShortList((short) (green_blue_list.value & 0xff));
-        if (green_buckets[green] == null) {
-          next_green[green] = last_green;
-          last_green = green;
-          green_buckets[green] = blue_node;
-        } else {
-          green_buckets[green].next = blue_node;
-        }
+    var counter = counters.forImage(pixels);
 
+    final int width = pixels.getWidth();
+    final int height = pixels.getHeight();
+    if (width > 0) {
+      final int chunk_rows = Math.max(1, CHUNK_PIXELS / width);
+      if (pixel_buffer.length < chunk_rows * width) {
+        pixel_buffer = new int[chunk_rows * width];
       }
+      for (int y = 0; y < height; y += chunk_rows) {
+        final int rows = Math.min(chunk_rows, height - y);
+        pixels.readRows(y, rows, pixel_buffer, 0);
+        counter.add(pixel_buffer, 0, rows * width);
+      }
+    }
 
-      for (short green = last_green; green != -1; green = next_green[green]) {
-        short last_blue = -1;
-        for (var blue_list = green_buckets[green]; blue_list != null; blue_list = blue_list.next) {
-          final short blue = blue_list.value;
-          if (blue_counts[blue] == 0) {
-            next_blue[blue] = last_blue;
-            last_blue = blue;
-          }
-          ++blue_counts[blue];
-        }
+    counter.selectMostCommon(max_colors, max_counts);
+    counter.clear();
+  }
 
-        for(short blue = last_blue; blue != -1; blue = next_blue[blue]) {
-          final int blue_count = blue_counts[blue];
-          // Calculate index arithmetically to avoid branch misprediction
-          final int index = 3 - (
-            ((max_counts[2] - blue_count) >>> 23 & 1) <<
-            ((max_counts[1] - blue_count) >>> 23 & 1) |
-            ((max_counts[0] - blue_count) >>> 23 & 1));
-          switch (index) {
-            case 0:
-              max_counts[index + 2] = max_counts[index + 1];
-              max_colors[index + 2] = max_colors[index + 1];
-            case 1:
-              max_counts[index + 1] = max_counts[index];
-              max_colors[index + 1] = max_colors[index];
-            case 2:
-              max_counts[index] = blue_count;
-              max_colors[index] = (red << 8 | green) << 8 | blue;
-            default:
-              blue_counts[blue] = 0;
-          }
-        }
-        green_buckets[green] = null;
+  // Like processImage, but decodes the image as it is counted,
+  // subsampled if approximate. Returns null if no ImageReader recognizes
+  // the image. The array returned is the runner's, as for processImage.
+  public int[] processEncoded(String image_url, byte[] encoded) throws IOException {
+    Arrays.fill(max_colors, 0);
+    Arrays.fill(max_counts, 0);
+
+    try (var decoder = StreamingImageDecoder.open(encoded, stream_band_pixels)) {
+      if (decoder == null) {
+        return null;
+      }
+      if (approximate) {
+        decoder.setSourceSubsampling(
+          Sampling.stride(decoder.getWidth(), decoder.getHeight(), sample_pixels));
+      }
+      counted_stride = decoder.getSourceSubsampling();
+      counted_pixels = decoder.getSampledPixelCount();
+      var counter = counters.forImage(decoder);
+      try {
+        decoder.decodeInto(counter);
+        counter.selectMostCommon(max_colors, max_counts);
+      } finally {
+        counter.clear();
       }
-      red_buckets[red] = null;
     }
 
-   correctIfZeroCounts(max_colors, max_counts); 
+    correctIfZeroCounts(max_colors, max_counts, columns);
 
     return max_colors;
   }
 
   public static void correctIfZeroCounts(int[] max_colors, int[] max_counts) {
+    correctIfZeroCounts(max_colors, max_counts, 3);
+  }
+
+  public static void correctIfZeroCounts(int[] max_colors, int[] max_counts, int columns) {
     // If no colors are encountered (image size is zero),
-    // output [0x0, 0xbad, 0x0]. It is impossible for valid
+    // output [0x0, 0xbad, 0x0, ...]. It is impossible for valid
     // output to contain colors in an A, B, A pattern, so
-    // this is easily distinguished as an error case.
+    // this is easily distinguished as an error case. With a
+    // single column, the output is just [0xbad].
     if (max_counts[0] == 0) {
-      max_colors[1] = 0xBAD;
+      max_colors[Math.min(1, columns - 1)] = 0xBAD;
       return;
     }
-    
-    // If fewer than 3 colors were encountered, repeat the
-    // first color to fill to 3 colors. It is impossible for an
-    // image with more than three colors to 
-    if (max_counts[2] == 0) {
-      max_colors[2] = max_counts[1] == 0 ? max_colors[0] : max_colors[1];
-      max_colors[1] = max_colors[0];
+
+    // If fewer than columns colors were encountered, repeat the
+    // first color in front of the others to fill to columns colors,
+    // as [A, A, B] for two colors in three columns. Valid output
+    // never repeats a color after a different one.
+    if (max_counts[columns - 1] == 0) {
+      int found = 1;
+      while (max_counts[found] != 0) {
+        ++found;
+      }
+      System.arraycopy(max_colors, 0, max_colors, columns - found, found);
+      Arrays.fill(max_colors, 0, columns - found, max_colors[columns - found]);
     }
   }
 
+  @Override
+  public void retire() {
+    retiring = true;
+  }
+
+  @Override
+  public long busyNanos() {
+    final long since = busy_since;
+    return busy_nanos + (since == 0 ? 0 : System.nanoTime() - since);
+  }
+
   @Override
   public void run() {
     while (true) {
-      Pair<String, BufferedImage> labeled_image;
+      if (busy_since != 0) {
+        busy_nanos += System.nanoTime() - busy_since;
+        busy_since = 0;
+      }
+      if (retiring) {
+        return;
+      }
+      Pair<String, FetchedImage> labeled_image;
       try {
-        labeled_image = images.take();
+        labeled_image = images.poll(WorkerPool.RETIRE_CHECK_MS, TimeUnit.MILLISECONDS);
       } catch (InterruptedException e) {
         System.err.println("Interrupted taking image from the image queue.");
         e.printStackTrace();
         continue;
       }
+      if (labeled_image == null) {
+        continue;
+      }
 
       // "" key is the poison pill
       if (labeled_image.key.isEmpty()) {
@@ -195,23 +260,81 @@ public class ProcessImageRunner implements Runnable {
         return;
       }
 
-      if (labeled_image.value == null)
+      busy_since = System.nanoTime();
+      if (labeled_image.value == null || labeled_image.value.image == null &&
+          labeled_image.value.encoded == null && labeled_image.value.cached_colors == null)
       {
         System.err.println("Image " + labeled_image.key + " is a null image.");
+        listener.urlFailed(labeled_image.key, PipelineListener.Failure.UNRECOGNIZED_IMAGE);
         continue;
       }
 
-      int[] max_colors = processImage(labeled_image.key, labeled_image.value);
-      // int[] max_colors = processImageHashMap(labeled_image.key, labeled_image.value);
-
-      final String result = String.format("%s,#%06X,#%06X,#%06X%s", labeled_image.key, max_colors[0], max_colors[1],
-          max_colors[2], System.lineSeparator());
-
+      final long allocated_before = report_allocations ? AllocationMeter.allocatedBytes() : 0;
+      final BufferedImage image = labeled_image.value.image;
+      int[] colors;
+      final long count_start = System.nanoTime();
       try {
-        results.put(result);
-      } catch (InterruptedException e) {
-        System.err.println("Interrupted putting " + result + " into the result queue.");
-        e.printStackTrace();
+        if (labeled_image.value.cached_colors != null) {
+          colors = labeled_image.value.cached_colors;
+          counted_stride = 1;
+        } else if (image != null) {
+          // Copied, as the row keeps it.
+          colors = processImage(labeled_image.key, image).clone();
+          counted_stride = labeled_image.value.sample_stride;
+        } else {
+          try {
+            colors = processEncoded(labeled_image.key, labeled_image.value.encoded);
+          } catch (IOException | RuntimeException e) {
+            System.err.println("Encountered error decoding " + labeled_image.key);
+            e.printStackTrace();
+            listener.urlFailed(labeled_image.key, PipelineListener.Failure.DECODE_ERROR);
+            continue;
+          }
+          if (colors == null) {
+            System.err.println("Reading " + labeled_image.key + " returned a null image.");
+            listener.urlFailed(labeled_image.key, PipelineListener.Failure.UNRECOGNIZED_IMAGE);
+            continue;
+          }
+          colors = colors.clone();
+        }
+      } finally {
+        // Counted, so no longer holding its memory.
+        labeled_image.value.releaseBudget();
+      }
+      if (labeled_image.value.cached_colors == null) {
+        listener.imageCounted(labeled_image.key, counted_pixels, System.nanoTime() - count_start);
+      }
+      if (cache != null && labeled_image.value.validators != null && counted_stride == 1) {
+        cache.put(labeled_image.key, colors, labeled_image.value.validators);
+      }
+      if (dedup != null && labeled_image.value.content_hash != null && counted_stride == 1) {
+        dedup.put(labeled_image.value.content_hash, colors);
+      }
+      if (report_allocations && labeled_image.value.cached_colors == null) {
+        final long allocated = AllocationMeter.allocatedBytes() - allocated_before;
+        final String size = image != null
+          ? image.getWidth() + "x" + image.getHeight()
+          : labeled_image.value.encoded.length + " bytes encoded";
+        System.out.println("Allocated " + allocated + " bytes processing " + labeled_image.key +
+            " (" + size + ")");
+      }
+
+      final ResultRow result = approximate
+        ? ResultRow.approximate(labeled_image.key, colors, columns,
+            Sampling.confidence(max_counts, counted_stride))
+        : ResultRow.exact(labeled_image.key, colors, columns);
+
+      final int occurrences =
+        1 + (coalescer == null ? 0 : coalescer.complete(labeled_image.key, result));
+      for (int i = 0; i < occurrences; ++i) {
+        try {
+          results.put(result);
+          listener.resultQueued(labeled_image.key);
+        } catch (InterruptedException e) {
+          System.err.println("Interrupted putting " + result + " into the result queue.");
+          e.printStackTrace();
+          listener.urlFailed(labeled_image.key, PipelineListener.Failure.INTERRUPTED);
+        }
       }
     }
   }
@@ -0,0 +1,104 @@
+package com.github.tempoz.pexercise;
+
+import java.util.Arrays;
+
+// Counts colors quantized to fewer bits per channel, for a palette of
+// the image rather than its exact colors. With 5-6-5 bits the counts
+// take a 64K entry array and with 4-4-4 a 4K entry one, small enough to
+// stay in the L2 or L1 cache, so each pixel costs a few shifts and an
+// increment that hits the cache, and the most common colors are picked
+// by a scan of the array. Each quantized color is reported as the full
+// color its bits expand to, repeating the high bits in the low ones, so
+// that the darkest and brightest levels of a channel are 0x00 and 0xff.
+public class QuantizedColorCounter implements ColorCounter {
+  // The counts take at most 2^MAX_BITS entries, a 256KB array.
+  public static final int MAX_BITS = 16;
+
+  private final int red_bits;
+  private final int green_bits;
+  private final int blue_bits;
+  private final int[] counts;
+
+  // bits is the bits kept of red, green and blue, see parseBits.
+  public QuantizedColorCounter(int[] bits) {
+    this.red_bits = bits[0];
+    this.green_bits = bits[1];
+    this.blue_bits = bits[2];
+    this.counts = new int[1 << (red_bits + green_bits + blue_bits)];
+  }
+
+  // Parses bits per channel given as red,green,blue, each 1 to 8 and at
+  // most MAX_BITS in all.
+  public static int[] parseBits(String bits) {
+    final String[] channels = bits.split(",");
+    if (channels.length != 3) {
+      throw new IllegalArgumentException("Malformed bits per channel " + bits);
+    }
+    final int[] parsed = new int[3];
+    int total = 0;
+    for (int i = 0; i < 3; ++i) {
+      try {
+        parsed[i] = Integer.parseInt(channels[i].trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Malformed bits per channel " + bits);
+      }
+      if (parsed[i] < 1 || parsed[i] > 8) {
+        throw new IllegalArgumentException("Bits per channel must be 1 to 8, not " + parsed[i]);
+      }
+      total += parsed[i];
+    }
+    if (total > MAX_BITS) {
+      throw new IllegalArgumentException("At most " + MAX_BITS + " bits in all, not " + total);
+    }
+    return parsed;
+  }
+
+  @Override
+  public void add(int[] pixels, int offset, int length) {
+    // Each channel is shifted so its high bits land in place in the
+    // index, then masked.
+    final int red_shift = 24 - red_bits - green_bits - blue_bits;
+    final int green_shift = 16 - green_bits - blue_bits;
+    final int blue_shift = 8 - blue_bits;
+    final int red_mask = ((1 << red_bits) - 1) << (green_bits + blue_bits);
+    final int green_mask = ((1 << green_bits) - 1) << blue_bits;
+    final int blue_mask = (1 << blue_bits) - 1;
+    final int[] counts = this.counts;
+    for (int i = offset; i < offset + length; ++i) {
+      final int color = pixels[i];
+      ++counts[(color >>> red_shift & red_mask) | (color >>> green_shift & green_mask) |
+        (color >>> blue_shift & blue_mask)];
+    }
+  }
+
+  // The 8 bits that the high bits of a channel expand to.
+  private static int expand(int value, int bits) {
+    int expanded = value << (8 - bits);
+    for (int filled = bits; filled < 8; filled += bits) {
+      expanded |= expanded >>> filled;
+    }
+    return expanded & 0xff;
+  }
+
+  @Override
+  public void selectMostCommon(int[] max_colors, int[] max_counts) {
+    final int green_blue_bits = green_bits + blue_bits;
+    for (int index = 0; index < counts.length; ++index) {
+      final int count = counts[index];
+      if (count == 0) {
+        continue;
+      }
+      // Expanding keeps the order of the indices, so ties still go to
+      // the lower color.
+      final int color = expand(index >>> green_blue_bits, red_bits) << 16 |
+        expand(index >>> blue_bits & ((1 << green_bits) - 1), green_bits) << 8 |
+        expand(index & ((1 << blue_bits) - 1), blue_bits);
+      ColorCounter.offer(max_colors, max_counts, color, count);
+    }
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(counts, 0);
+  }
+}
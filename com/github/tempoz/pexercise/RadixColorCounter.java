@@ -0,0 +1,131 @@
+package com.github.tempoz.pexercise;
+
+import java.util.Arrays;
+
+// Counts colors by bucketing pixels in a way very similar to a radix
+// sort: by red byte, then green byte, then counting the blue bytes.
+// Since we don't actually need all the values at the end, and we don't
+// care about the order, just the grouping, we can take some shortcuts.
+//
+// The buckets are laid out by counting sort in flat primitive arrays
+// rather than as lists of nodes, and the arrays are kept between images
+// and only grown when a larger image arrives, so after warm-up counting
+// an image allocates nothing.
+public class RadixColorCounter implements ColorCounter {
+  // Colors of the pixels added since the last clear.
+  private int[] colors = new int[1 << 16];
+  private int size = 0;
+
+  // Green-blue byte pairs of the pixels bucketed by red byte. The bucket
+  // for red byte r is [red_offsets[r], red_offsets[r + 1]).
+  // Use ints because java doesn't have unsigned types,
+  // and fixing sign-padding after casting is a mess.
+  private int[] green_blues = new int[1 << 16];
+  private int[] red_offsets = new int[257];
+
+  // Blue bytes of a single red bucket bucketed by green byte, laid out
+  // the same way. Only needs to be as large as the largest red bucket.
+  // Use shorts because java doesn't have unsigned types,
+  // and fixing sign-padding after casting is a mess.
+  private short[] blues = new short[1 << 12];
+  private int[] green_offsets = new int[257];
+
+  // Array of the count of pixels encountered bucketed by blue byte
+  private int[] blue_counts = new int[256];
+
+  // Implicit linked list of the blue bytes in use, so that the sparsely
+  // populated blue_counts doesn't have to be scanned.
+  private short[] next_blue = new short[256];
+
+  @Override
+  public void add(int[] pixels, int offset, int length) {
+    if (size + length > colors.length) {
+      colors = Arrays.copyOf(colors, Math.max(size + length, colors.length * 2));
+    }
+    System.arraycopy(pixels, offset, colors, size, length);
+    size += length;
+  }
+
+  @Override
+  public void selectMostCommon(int[] max_colors, int[] max_counts) {
+    if (green_blues.length < size) {
+      green_blues = new int[Math.max(size, green_blues.length * 2)];
+    }
+
+    // Bucket by red byte
+    Arrays.fill(red_offsets, 0);
+    for (int i = 0; i < size; ++i) {
+      ++red_offsets[(colors[i] >>> 16 & 0xff) + 1];
+    }
+    int largest_red_bucket = 0;
+    for (int red = 0; red < 256; ++red) {
+      largest_red_bucket = Math.max(largest_red_bucket, red_offsets[red + 1]);
+      red_offsets[red + 1] += red_offsets[red];
+    }
+    for (int i = 0; i < size; ++i) {
+      final int color = colors[i];
+      // red_offsets[r] is the insertion point for bucket r, and ends up
+      // as the start of bucket r + 1 once all are inserted.
+      green_blues[red_offsets[color >>> 16 & 0xff]++] = color & 0xffff;
+    }
+    // Shift the offsets back so that red_offsets[r] is the start of r
+    System.arraycopy(red_offsets, 0, red_offsets, 1, 256);
+    red_offsets[0] = 0;
+
+    if (blues.length < largest_red_bucket) {
+      blues = new short[Math.max(largest_red_bucket, blues.length * 2)];
+    }
+
+    for (int red = 0; red < 256; ++red) {
+      final int red_start = red_offsets[red];
+      final int red_end = red_offsets[red + 1];
+      if (red_start == red_end) {
+        continue;
+      }
+
+      // Bucket by green byte
+      Arrays.fill(green_offsets, 0);
+      for (int i = red_start; i < red_end; ++i) {
+        ++green_offsets[(green_blues[i] >>> 8 & 0xff) + 1];
+      }
+      for (int green = 0; green < 256; ++green) {
+        green_offsets[green + 1] += green_offsets[green];
+      }
+      for (int i = red_start; i < red_end; ++i) {
+        final int green_blue = green_blues[i];
+        blues[green_offsets[green_blue >>> 8 & 0xff]++] = (short) (green_blue & 0xff);
+      }
+      System.arraycopy(green_offsets, 0, green_offsets, 1, 256);
+      green_offsets[0] = 0;
+
+      for (int green = 0; green < 256; ++green) {
+        final int green_start = green_offsets[green];
+        final int green_end = green_offsets[green + 1];
+        if (green_start == green_end) {
+          continue;
+        }
+
+        // Count blue bytes
+        short last_blue = -1;
+        for (int i = green_start; i < green_end; ++i) {
+          final short blue = blues[i];
+          if (blue_counts[blue] == 0) {
+            next_blue[blue] = last_blue;
+            last_blue = blue;
+          }
+          ++blue_counts[blue];
+        }
+
+        for (short blue = last_blue; blue != -1; blue = next_blue[blue]) {
+          ColorCounter.offer(max_colors, max_counts, (red << 8 | green) << 8 | blue, blue_counts[blue]);
+          blue_counts[blue] = 0;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void clear() {
+    size = 0;
+  }
+}
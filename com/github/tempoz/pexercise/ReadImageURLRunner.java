@@ -9,30 +9,121 @@ import java.util.concurrent.BlockingQueue;
 public class ReadImageURLRunner implements Runnable {
   FileChannel file;
   BlockingQueue<String> image_urls;
+  PipelineListener listener;
+  // Null if the whole file is read through the channel, which this
+  // runner then owns.
+  private final LinesFromMappedFile mapped;
+  private final long bytes;
+  // Null if the output isn't put in input order.
+  private final ReorderWindow window;
+  // Null if no earlier run is resumed.
+  private final ResumeJournal journal;
+  private volatile boolean done = false;
 
-  public ReadImageURLRunner(Path image_url_filepath, BlockingQueue<String> image_urls) throws IOException {
+  public ReadImageURLRunner(Path image_url_filepath, BlockingQueue<String> image_urls, PipelineListener listener)
+      throws IOException {
+    this(image_url_filepath, image_urls, null, null, listener);
+  }
+
+  // Reads the lines in [start, end) of file from a mapping, see
+  // LinesFromMappedFile, so that several runners can read ranges of the
+  // same file in parallel. file is left open. Each URL read is assigned
+  // its place in the output in window, unless it is null, once there is
+  // room for it. URLs journal has as done are skipped, unless it is null.
+  public ReadImageURLRunner(FileChannel file, long start, long end, BlockingQueue<String> image_urls,
+      ReorderWindow window, ResumeJournal journal, PipelineListener listener) {
+    this.file = file;
+    this.image_urls = image_urls;
+    this.listener = listener;
+    this.mapped = new LinesFromMappedFile(file, start, end);
+    this.bytes = end - start;
+    this.window = window;
+    this.journal = journal;
+  }
+
+  // Each URL read is assigned its place in the output in window, unless
+  // it is null, once there is room for it. URLs journal has as done are
+  // skipped, unless it is null.
+  public ReadImageURLRunner(Path image_url_filepath, BlockingQueue<String> image_urls, ReorderWindow window,
+      ResumeJournal journal, PipelineListener listener) throws IOException {
     this.file = FileChannel.open(image_url_filepath, StandardOpenOption.READ);
     this.image_urls = image_urls;
+    this.listener = listener;
+    this.mapped = null;
+    this.bytes = file.size();
+    this.window = window;
+    this.journal = journal;
+  }
+
+  public ReadImageURLRunner(Path image_url_filepath, BlockingQueue<String> image_urls) throws IOException {
+    this(image_url_filepath, image_urls, PipelineListener.NONE);
+  }
+
+  // Bytes of the file or range to read.
+  public long bytes() {
+    return bytes;
+  }
+
+  // Bytes of them read so far.
+  public long bytesRead() {
+    if (done) {
+      return bytes;
+    }
+    if (mapped != null) {
+      return mapped.position() - mapped.start();
+    }
+    try {
+      return file.position();
+    } catch (IOException e) {
+      // Closed since checking done.
+      return bytes;
+    }
+  }
+
+  // Fraction of the file or range read so far.
+  public double fractionRead() {
+    return bytes == 0 ? (done ? 1 : 0) : (double) bytesRead() / bytes;
   }
 
   private void addToImageURLs(CharSequence image_url) {
+    final String url = image_url.toString();
+    // Its row is already in the output.
+    if (journal != null && journal.skip(url)) {
+      return;
+    }
+    while (window != null) {
+      try {
+        window.assign(url);
+        break;
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted waiting for room in the reorder window. Retrying...");
+        e.printStackTrace();
+      }
+    }
+    listener.urlQueued(url);
     try {
-      image_urls.put(image_url.toString());
+      image_urls.put(url);
     } catch (InterruptedException e) {
       System.err.println("Interrupted putting " +
                           image_url +
                           " into the image_urls queue.");
       e.printStackTrace();
+      listener.urlFailed(url, PipelineListener.Failure.INTERRUPTED);
     }
   }
 
   @Override
   public void run() {
-    for (CharSequence line : new LinesFromFileChannel(file)) {
+    final Iterable<CharSequence> lines = mapped != null ? mapped : new LinesFromFileChannel(file);
+    for (CharSequence line : lines) {
       if(line.length() != 0) {
         addToImageURLs(line);
       }
     }
+    done = true;
+    if (mapped != null) {
+      return;
+    }
     try {
       file.close();
     } catch (IOException e) {
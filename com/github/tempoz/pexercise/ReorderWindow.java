@@ -0,0 +1,97 @@
+package com.github.tempoz.pexercise;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+
+// Puts result rows back in input order for the output. The reader
+// assigns each URL read the next sequence number, waiting while that
+// would put it a whole window ahead of the oldest URL not yet written,
+// so at most a window of rows is ever held here. Rows and failures are
+// matched to the sequence numbers of their URL in the order read, as
+// every occurrence of a URL gets the same row. A failure, queued to the
+// output like a row, see ResultRow.failed, frees its place without a
+// row so that the output never stalls on it.
+public class ReorderWindow {
+  // Finished rows by sequence number modulo the window, null until
+  // finished.
+  private final ResultRow[] slots;
+  // Sequence numbers of the occurrences of each URL not yet finished, in
+  // the order read.
+  private final HashMap<String, ArrayDeque<Long>> pending = new HashMap<>();
+  // Next sequence number to assign, and the oldest one not yet written.
+  private long next = 0;
+  private long head = 0;
+  // Most rows held at once, for reporting.
+  private int peak_held = 0;
+  private int held = 0;
+
+  public ReorderWindow(int size) {
+    this.slots = new ResultRow[size];
+  }
+
+  public int size() {
+    return slots.length;
+  }
+
+  public synchronized int peakHeld() {
+    return peak_held;
+  }
+
+  // Assigns image_url the next sequence number, once it is within the
+  // window.
+  public synchronized void assign(String image_url) throws InterruptedException {
+    while (next - head >= slots.length) {
+      wait();
+    }
+    pending.computeIfAbsent(image_url, url -> new ArrayDeque<>()).addLast(next++);
+  }
+
+  // Places row, or the failure it stands for, at the oldest unfinished
+  // occurrence of its URL, and adds the rows now in order to ready.
+  public synchronized void finish(ResultRow row, List<ResultRow> ready) {
+    final ArrayDeque<Long> sequences = pending.get(row.image_url);
+    if (sequences == null) {
+      System.err.println("No occurrence of " + row.image_url + " to order its row by. Writing it now.");
+      if (!row.isFailure()) {
+        ready.add(row);
+      }
+      return;
+    }
+    final long sequence = sequences.removeFirst();
+    if (sequences.isEmpty()) {
+      pending.remove(row.image_url);
+    }
+    slots[(int) (sequence % slots.length)] = row;
+    peak_held = Math.max(peak_held, ++held);
+    advance(ready, false);
+  }
+
+  // Adds every row held to ready, in order, skipping any that never
+  // finished, for once nothing more will be finished.
+  public synchronized void drain(List<ResultRow> ready) {
+    advance(ready, true);
+  }
+
+  private void advance(List<ResultRow> ready, boolean skip_unfinished) {
+    final long head_before = head;
+    while (head < next) {
+      final int slot = (int) (head % slots.length);
+      final ResultRow row = slots[slot];
+      if (row == null && !skip_unfinished) {
+        break;
+      }
+      if (row != null) {
+        slots[slot] = null;
+        --held;
+        if (!row.isFailure()) {
+          ready.add(row);
+        }
+      }
+      ++head;
+    }
+    if (head != head_before) {
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package com.github.tempoz.pexercise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+// Results of earlier runs, kept in a file between runs and keyed by URL,
+// with the HTTP validators and freshness lifetime of the response each
+// was computed from. Fresh entries are used without fetching at all,
+// and stale ones are revalidated with a conditional request, so that an
+// unchanged image costs a 304 rather than a download and processing.
+//
+// The file is a header, with how the results were counted, followed by
+// one record per result, appended as results come in so that they
+// survive a crash. A file counted some other way is discarded. Later
+// records supersede earlier ones. At most max_entries are kept,
+// evicting the least recently used. The file is rewritten with only the
+// entries kept, least recently used first, so that the order survives
+// to the next run: on open, which also drops a record cut short by a
+// crash before anything is appended after it, each time max_entries
+// records have been appended since, so that it never holds more than
+// twice that, and on close.
+public class ResultCache implements Closeable {
+  // "PXC" and a format version.
+  private static final int MAGIC = 0x50584302;
+
+  // What a response said about how long its result may be reused, and
+  // how to revalidate it after that.
+  public static class Validators {
+    // null if the response had none.
+    public final String etag;
+    public final String last_modified;
+    // When the response was received and for how long after that it is
+    // fresh, in milliseconds, or -1 if it must always be revalidated.
+    public final long fetched_at;
+    public final long max_age;
+
+    public Validators(String etag, String last_modified, long fetched_at, long max_age) {
+      this.etag = etag;
+      this.last_modified = last_modified;
+      this.fetched_at = fetched_at;
+      this.max_age = max_age;
+    }
+
+    // Reads the validators from a response's headers, looked up by
+    // name with header, returning null if it must not be stored.
+    public static Validators fromHeaders(Function<String, String> header, long now) {
+      long max_age = -1;
+      final String cache_control = header.apply("Cache-Control");
+      if (cache_control != null) {
+        for (String directive : cache_control.toLowerCase(Locale.ROOT).split(",")) {
+          directive = directive.trim();
+          if (directive.equals("no-store")) {
+            return null;
+          } else if (directive.equals("no-cache")) {
+            max_age = 0;
+          } else if (directive.startsWith("max-age=") && max_age != 0) {
+            try {
+              max_age = Long.parseLong(directive.substring("max-age=".length())) * 1000;
+            } catch (NumberFormatException e) {
+              // Treated as absent
+            }
+          }
+        }
+      }
+      final var validators = new Validators(header.apply("ETag"), header.apply("Last-Modified"), now, max_age);
+      // Without these, a stale entry could never be used again.
+      if (validators.etag == null && validators.last_modified == null && max_age <= 0) {
+        return null;
+      }
+      return validators;
+    }
+
+    public boolean isFresh(long now) {
+      return max_age > 0 && now - fetched_at < max_age;
+    }
+
+    // Validators after a 304 response with validators response, which
+    // may leave out the ones that haven't changed.
+    public Validators revalidated(Validators response) {
+      if (response == null) {
+        return new Validators(etag, last_modified, System.currentTimeMillis(), max_age);
+      }
+      return new Validators(response.etag != null ? response.etag : etag,
+          response.last_modified != null ? response.last_modified : last_modified,
+          response.fetched_at, response.max_age);
+    }
+  }
+
+  public static class Entry {
+    public final int[] colors;
+    public final Validators validators;
+
+    Entry(int[] colors, Validators validators) {
+      this.colors = colors;
+      this.validators = validators;
+    }
+  }
+
+  private final Path path;
+  private final int max_entries;
+  // Colors in each result, and how they were counted.
+  private final int columns;
+  private final String counting;
+  // In access order, so the eldest entry is the least recently used.
+  private final LinkedHashMap<String, Entry> entries;
+  private DataOutputStream out;
+  // Records appended since the file was last rewritten.
+  private int appended = 0;
+
+  private ResultCache(Path path, int max_entries, int columns, String counting) {
+    this.path = path;
+    this.max_entries = max_entries;
+    this.columns = columns;
+    this.counting = counting;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > ResultCache.this.max_entries;
+      }
+    };
+  }
+
+  // Loads the cache at path, creating it if it doesn't exist, for
+  // results of columns colors counted as described by counting, such as
+  // "exactly". An unreadable file, or one with results counted otherwise,
+  // is replaced.
+  public static ResultCache open(Path path, int max_entries, int columns, String counting) throws IOException {
+    var cache = new ResultCache(path, max_entries, columns, counting);
+    if (Files.exists(path)) {
+      cache.load();
+    }
+    cache.rewrite();
+    cache.out = cache.append();
+    return cache;
+  }
+
+  private DataOutputStream append() throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.APPEND)));
+  }
+
+  private void writeHeader(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(columns);
+    out.writeUTF(counting);
+  }
+
+  private void load() throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a result cache");
+      }
+      final int file_columns = in.readInt();
+      final String file_counting = in.readUTF();
+      if (file_columns != columns || !file_counting.equals(counting)) {
+        System.err.println("Discarding result cache " + path + " of " + file_columns + " colors counted " +
+            file_counting + ", as " + columns + " colors are counted " + counting + ".");
+        return;
+      }
+      while (true) {
+        final String url = in.readUTF();
+        final int[] colors = new int[columns];
+        for (int i = 0; i < columns; ++i) {
+          colors[i] = in.readInt();
+        }
+        final long fetched_at = in.readLong();
+        final long max_age = in.readLong();
+        final String etag = in.readUTF();
+        final String last_modified = in.readUTF();
+        entries.put(url, new Entry(colors, new Validators(etag.isEmpty() ? null : etag,
+            last_modified.isEmpty() ? null : last_modified, fetched_at, max_age)));
+      }
+    } catch (EOFException e) {
+      // The end of the file, or of the last record written before a
+      // crash, which is dropped.
+    } catch (IOException e) {
+      System.err.println("Discarding unreadable result cache " + path);
+      e.printStackTrace();
+      entries.clear();
+    }
+  }
+
+  // Returns the entry for image_url, or null if there is none.
+  public synchronized Entry lookup(String image_url) {
+    return entries.get(image_url);
+  }
+
+  // Stores the result for image_url, computed from a response with
+  // validators.
+  public synchronized void put(String image_url, int[] colors, Validators validators) {
+    final var entry = new Entry(colors.clone(), validators);
+    entries.put(image_url, entry);
+    try {
+      write(out, image_url, entry);
+      out.flush();
+      if (++appended >= max_entries) {
+        out.close();
+        try {
+          rewrite();
+        } finally {
+          out = append();
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to write " + image_url + " to the result cache.");
+      e.printStackTrace();
+    }
+  }
+
+  private void write(DataOutputStream out, String url, Entry entry) throws IOException {
+    out.writeUTF(url);
+    for (int i = 0; i < columns; ++i) {
+      out.writeInt(entry.colors[i]);
+    }
+    out.writeLong(entry.validators.fetched_at);
+    out.writeLong(entry.validators.max_age);
+    out.writeUTF(entry.validators.etag == null ? "" : entry.validators.etag);
+    out.writeUTF(entry.validators.last_modified == null ? "" : entry.validators.last_modified);
+  }
+
+  // Replaces the file with one of only the entries kept.
+  private void rewrite() throws IOException {
+    final Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+    try (var compacted_out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted)))) {
+      writeHeader(compacted_out);
+      for (var entry : entries.entrySet()) {
+        write(compacted_out, entry.getKey(), entry.getValue());
+      }
+    }
+    Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    appended = 0;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+    rewrite();
+  }
+}
@@ -0,0 +1,64 @@
+package com.github.tempoz.pexercise;
+
+import java.util.Locale;
+
+// A row of the output as queued for writing: the URL, its most common
+// colors and, for approximate results, the confidence in them. Rows are
+// encoded straight into the output buffer by RowsToFileChannel, rather
+// than formatted into a String and encoded again, so a row costs one
+// small object over the colors the process thread already has.
+public class ResultRow {
+  // The poison pill of the result queue, which like the others has an
+  // empty URL.
+  public static final ResultRow POISON = new ResultRow("", new int[0], 0, Double.NaN);
+
+  public final String image_url;
+  // The first columns of colors are written, most common first. Null
+  // for a failure.
+  public final int[] colors;
+  public final int columns;
+  // Fraction written as a percentage after the colors, unless NaN.
+  public final double confidence;
+
+  private ResultRow(String image_url, int[] colors, int columns, double confidence) {
+    this.image_url = image_url;
+    this.colors = colors;
+    this.columns = columns;
+    this.confidence = confidence;
+  }
+
+  public static ResultRow exact(String image_url, int[] colors, int columns) {
+    return new ResultRow(image_url, colors, columns, Double.NaN);
+  }
+
+  public static ResultRow approximate(String image_url, int[] colors, int columns, double confidence) {
+    return new ResultRow(image_url, colors, columns, confidence);
+  }
+
+  // Stands for image_url failing, queued to the output only to free its
+  // place in the ReorderWindow.
+  public static ResultRow failed(String image_url) {
+    return new ResultRow(image_url, null, 0, Double.NaN);
+  }
+
+  public boolean isFailure() {
+    return colors == null;
+  }
+
+  public boolean isApproximate() {
+    return !Double.isNaN(confidence);
+  }
+
+  // The row as written, without the line separator.
+  @Override
+  public String toString() {
+    final StringBuilder row = new StringBuilder(image_url);
+    for (int i = 0; i < columns; ++i) {
+      row.append(String.format(",#%06X", colors[i]));
+    }
+    if (isApproximate()) {
+      row.append(String.format(Locale.ROOT, ",%.1f%%", 100 * confidence));
+    }
+    return row.toString();
+  }
+}
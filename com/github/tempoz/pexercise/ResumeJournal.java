@@ -0,0 +1,174 @@
+package com.github.tempoz.pexercise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Records which URLs have their row in the output, so that a run that
+// dies can be resumed without fetching them again. The output thread
+// records each row it writes, and commits them in groups: it flushes
+// and syncs the output, then appends the group and the length of the
+// output to the journal and syncs that. A group is only trusted once
+// all of it is in the journal, so a crash loses at most the rows since
+// the last commit, which the resumed run fetches again, and the output
+// is cut back to the length of the last commit, dropping any rows
+// written after it.
+//
+// URLs are recorded rather than input positions, so that it doesn't
+// matter in what order the input was read. As every occurrence of a URL
+// gets the same row, a resumed run skips as many occurrences of each as
+// were done. URLs that failed aren't recorded, and are tried again.
+//
+// The file is a header followed by one record per group: the length of
+// the output after it, the number of URLs, and the URLs. On open, the
+// groups that were read in full are rewritten as one.
+public class ResumeJournal implements Closeable {
+  // "PXJ" and a format version.
+  private static final int MAGIC = 0x50584A01;
+
+  private final Path path;
+  // Occurrences of each URL done in earlier runs and not yet skipped.
+  private final HashMap<String, Integer> done = new HashMap<>();
+  private long done_count = 0;
+  private long committed_length = 0;
+  // Written since the last commit.
+  private final ArrayList<String> uncommitted = new ArrayList<>();
+
+  private FileChannel channel;
+  private DataOutputStream out;
+
+  private ResumeJournal(Path path) {
+    this.path = path;
+  }
+
+  // Loads the journal at path, creating it if it doesn't exist. An
+  // unreadable file is treated as empty.
+  public static ResumeJournal open(Path path) throws IOException {
+    var journal = new ResumeJournal(path);
+    if (Files.exists(path)) {
+      journal.load();
+    }
+    journal.rewrite();
+    return journal;
+  }
+
+  private void load() throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a resume journal");
+      }
+      final ArrayList<String> group = new ArrayList<>();
+      while (true) {
+        final long length = in.readLong();
+        final int count = in.readInt();
+        group.clear();
+        for (int i = 0; i < count; ++i) {
+          group.add(in.readUTF());
+        }
+        for (String url : group) {
+          done.merge(url, 1, Integer::sum);
+        }
+        done_count += count;
+        committed_length = length;
+      }
+    } catch (EOFException e) {
+      // The end of the file, or of the group being written when the run
+      // died, which is dropped.
+    } catch (IOException e) {
+      System.err.println("Discarding unreadable resume journal " + path);
+      e.printStackTrace();
+      done.clear();
+      done_count = 0;
+      committed_length = 0;
+    }
+  }
+
+  // Replaces the file with one group of everything done, and opens it to
+  // append to.
+  private void rewrite() throws IOException {
+    final Path rewritten = path.resolveSibling(path.getFileName() + ".tmp");
+    try (var rewritten_channel = FileChannel.open(rewritten, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        var rewritten_out =
+            new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(rewritten_channel)))) {
+      rewritten_out.writeInt(MAGIC);
+      rewritten_out.writeLong(committed_length);
+      rewritten_out.writeInt((int) done_count);
+      for (var url : done.entrySet()) {
+        for (int i = 0; i < url.getValue(); ++i) {
+          rewritten_out.writeUTF(url.getKey());
+        }
+      }
+      rewritten_out.flush();
+      rewritten_channel.force(false);
+    }
+    Files.move(rewritten, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+  }
+
+  // Number of URLs done in earlier runs.
+  public long doneCount() {
+    return done_count;
+  }
+
+  // Length of the output as of the last commit, to cut it back to.
+  public long committedLength() {
+    return committed_length;
+  }
+
+  // Whether an occurrence of image_url was done in an earlier run, in
+  // which case it counts as skipped.
+  public synchronized boolean skip(String image_url) {
+    final Integer remaining = done.get(image_url);
+    if (remaining == null) {
+      return false;
+    }
+    if (remaining == 1) {
+      done.remove(image_url);
+    } else {
+      done.put(image_url, remaining - 1);
+    }
+    return true;
+  }
+
+  // Records that the row of image_url was written, to be committed.
+  public void record(String image_url) {
+    uncommitted.add(image_url);
+  }
+
+  public boolean hasUncommitted() {
+    return !uncommitted.isEmpty();
+  }
+
+  // Commits the rows recorded since the last commit, once the output
+  // has been synced up to output_length.
+  public void commit(long output_length) throws IOException {
+    out.writeLong(output_length);
+    out.writeInt(uncommitted.size());
+    for (String url : uncommitted) {
+      out.writeUTF(url);
+    }
+    out.flush();
+    channel.force(false);
+    uncommitted.clear();
+    committed_length = output_length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
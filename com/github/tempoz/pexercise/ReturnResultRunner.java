@@ -0,0 +1,52 @@
+package com.github.tempoz.pexercise;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+
+// The output of a pipeline whose URLs didn't come from the input: hands
+// each row, and each failure, back to where its URL came from, the
+// coordinator, see CoordinatorClient, or a batch submitted to the
+// service, see BatchService.
+public class ReturnResultRunner implements Runnable {
+  public interface Receiver {
+    void finish(ResultRow row) throws IOException;
+  }
+
+  Receiver receiver;
+  BlockingQueue<ResultRow> results;
+
+  public ReturnResultRunner(Receiver receiver, BlockingQueue<ResultRow> results) {
+    this.receiver = receiver;
+    this.results = results;
+  }
+
+  @Override
+  public void run() {
+    final ArrayList<ResultRow> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(results.take());
+      } catch (InterruptedException e) {
+        System.err.println("Interrupted when taking from results queue.");
+        e.printStackTrace();
+        continue;
+      }
+      results.drainTo(batch);
+
+      for (ResultRow result : batch) {
+        // "" is the poison pill
+        if (result.image_url.isEmpty()) {
+          return;
+        }
+        try {
+          receiver.finish(result);
+        } catch (IOException e) {
+          System.err.println("Failed to return " + result + ".");
+          e.printStackTrace();
+        }
+      }
+      batch.clear();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.github.tempoz.pexercise;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Writes ResultRows to a FileChannel through a direct buffer, encoding
+// each as CSV straight into the buffer: the URL as UTF-8, a byte per
+// char while it is ASCII, the colors as hex digits, and the confidence
+// as a percentage with one decimal, exactly as String.format would.
+// Nothing is allocated per row, short of the rare confidence near a
+// tie.
+public class RowsToFileChannel {
+  private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+  private final FileChannel file;
+  private final ByteBuffer buffer;
+  private final byte[] line_separator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+  // Digits of a number, least significant first.
+  private final byte[] digits = new byte[20];
+
+  public RowsToFileChannel(FileChannel file, int buffer_size) {
+    this.file = file;
+    this.buffer = ByteBuffer.allocateDirect(buffer_size);
+  }
+
+  public RowsToFileChannel(FileChannel file) {
+    this(file, 64 * 1024);
+  }
+
+  private void put(byte b) throws IOException {
+    if (!buffer.hasRemaining()) {
+      flush();
+    }
+    buffer.put(b);
+  }
+
+  // At least 6 digits, as %06X, and more for colors with alpha.
+  private void putHex(int color) throws IOException {
+    final int count = Math.max(6, (Integer.SIZE - Integer.numberOfLeadingZeros(color) + 3) / 4);
+    for (int shift = 4 * (count - 1); shift >= 0; shift -= 4) {
+      put(HEX_DIGITS[(color >>> shift) & 0xF]);
+    }
+  }
+
+  private void putDecimal(long value) throws IOException {
+    int count = 0;
+    do {
+      digits[count++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    while (count > 0) {
+      put(digits[--count]);
+    }
+  }
+
+  // percent with one decimal, as %.1f%%. That rounds the shortest
+  // decimal representation of percent half up, which differs from
+  // rounding percent * 10 only near ties, so those are left to it.
+  private void putPercent(double percent) throws IOException {
+    final double scaled = percent * 10;
+    if (Math.abs(scaled - Math.floor(scaled) - 0.5) < 1e-6) {
+      for (byte b : String.format(Locale.ROOT, "%.1f%%", percent).getBytes(StandardCharsets.US_ASCII)) {
+        put(b);
+      }
+      return;
+    }
+    final long tenths = Math.round(scaled);
+    putDecimal(tenths / 10);
+    put((byte)'.');
+    put((byte) ('0' + tenths % 10));
+    put((byte)'%');
+  }
+
+  // text as UTF-8, with unpaired surrogates as '?', as
+  // String.getBytes would.
+  private void putUtf8(String text) throws IOException {
+    for (int i = 0; i < text.length(); ++i) {
+      final char c = text.charAt(i);
+      if (c < 0x80) {
+        put((byte) c);
+      } else if (c < 0x800) {
+        put((byte) (0xC0 | c >>> 6));
+        put((byte) (0x80 | c & 0x3F));
+      } else if (!Character.isSurrogate(c)) {
+        put((byte) (0xE0 | c >>> 12));
+        put((byte) (0x80 | c >>> 6 & 0x3F));
+        put((byte) (0x80 | c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < text.length() &&
+          Character.isLowSurrogate(text.charAt(i + 1))) {
+        final int code_point = Character.toCodePoint(c, text.charAt(++i));
+        put((byte) (0xF0 | code_point >>> 18));
+        put((byte) (0x80 | code_point >>> 12 & 0x3F));
+        put((byte) (0x80 | code_point >>> 6 & 0x3F));
+        put((byte) (0x80 | code_point & 0x3F));
+      } else {
+        put((byte) '?');
+      }
+    }
+  }
+
+  public void put(ResultRow row) throws IOException {
+    putUtf8(row.image_url);
+    for (int i = 0; i < row.columns; ++i) {
+      put((byte)',');
+      put((byte)'#');
+      putHex(row.colors[i]);
+    }
+    if (row.isApproximate()) {
+      put((byte)',');
+      putPercent(100 * row.confidence);
+    }
+    for (byte b : line_separator) {
+      put(b);
+    }
+  }
+
+  public void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      file.write(buffer);
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,85 @@
+package com.github.tempoz.pexercise;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Decode-time subsampling for --approximate. Images are decoded keeping
+// every stride-th pixel of every stride-th row, with the stride chosen
+// so that about sample_pixels pixels are decoded and counted whatever
+// the size of the image, and the most common colors of the sample stand
+// in for those of the image.
+public class Sampling {
+
+  // Stride that samples about sample_pixels of a width x height image,
+  // 1 if the image is no larger than that.
+  public static int stride(int width, int height, int sample_pixels) {
+    final double pixels = (double) width * height;
+    if (pixels <= sample_pixels) {
+      return 1;
+    }
+    return (int) Math.ceil(Math.sqrt(pixels / sample_pixels));
+  }
+
+  // Like ImageIO.read, but subsampled to about sample_pixels pixels.
+  // Returns null if no ImageReader recognizes the image.
+  public static FetchedImage read(InputStream input, int sample_pixels) throws IOException {
+    try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+      if (stream == null) {
+        throw new IIOException("Can't create an ImageInputStream!");
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(stream, true, true);
+        final int stride = stride(reader.getWidth(0), reader.getHeight(0), sample_pixels);
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(stride, stride, 0, 0);
+        final BufferedImage image = reader.read(0, param);
+        return FetchedImage.sampled(image, stride);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  // Estimated probability that the most common colors of a sample are
+  // those of the whole image, in the same order, given the counts of the
+  // sample's most common colors in descending order, one more than are
+  // reported. Treating the sample as random, the difference between two
+  // counts is roughly normal with a variance of their sum, so each
+  // adjacent pair is ordered correctly with probability Phi(z) for
+  // z = (a - b) / sqrt(a + b). The closest pair dominates, so its
+  // probability is returned. 1 if the image wasn't subsampled.
+  public static double confidence(int[] max_counts, int stride) {
+    if (stride <= 1) {
+      return 1;
+    }
+    double min_z = Double.POSITIVE_INFINITY;
+    for (int i = 0; i + 1 < max_counts.length && max_counts[i] > 0; ++i) {
+      final double sum = max_counts[i] + max_counts[i + 1];
+      min_z = Math.min(min_z, (max_counts[i] - max_counts[i + 1]) / Math.sqrt(sum));
+    }
+    return min_z == Double.POSITIVE_INFINITY ? 1 : normalCdf(min_z);
+  }
+
+  // Standard normal CDF, using the erf approximation 7.1.26 of
+  // Abramowitz and Stegun, accurate to about 1e-7.
+  private static double normalCdf(double z) {
+    final double x = Math.abs(z) / Math.sqrt(2);
+    final double t = 1 / (1 + 0.3275911 * x);
+    final double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 +
+      t * 1.061405429)))) * Math.exp(-x * x);
+    return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+  }
+}
@@ -1,12 +0,0 @@
-package com.github.tempoz.pexercise;
-
-public class ShortList {
-  public short value;
-  public ShortList next;
-
-  public ShortList(short value) {
-    this.value = value;
-    this.next = null;
-  }
-  
-}
@@ -0,0 +1,443 @@
+package com.github.tempoz.pexercise;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+// Decodes an encoded image a few rows at a time, feeding the rows to a
+// ColorCounter as they are decoded, so that the decoded image is never
+// resident in full.
+//
+// The reader decodes into a destination image the size of the whole
+// image, but whose raster only has storage for a window of rows. Rows
+// are counted as the reader writes them, and the window then moves down.
+// This only works for readers that write rows in order, which the JPEG,
+// PNG and GIF readers do for all but interlaced images. Anything
+// else is instead decoded in bands of rows with
+// ImageReadParam.setSourceRegion, which uses as little memory but costs
+// more decoding time, since readers decode from the start of the image
+// for each band.
+public class StreamingImageDecoder implements Closeable {
+  // Rows are decoded through a window of about this many pixels. It only
+  // needs to hold the rows a reader writes at once, usually one.
+  private static final int ROW_WINDOW_PIXELS = 1 << 16;
+  // Formats whose readers write rows through the raster's methods, as
+  // the window needs. Others, such as BMP, write straight into its data
+  // buffer.
+  private static final Set<String> ROW_FORMATS = Set.of("jpeg", "png", "gif");
+
+  private final byte[] encoded;
+  // Pixels decoded at once when decoding in bands.
+  private final int band_pixels;
+
+  private ImageInputStream input;
+  private ImageReader reader;
+  private int width;
+  private int height;
+  private ImageTypeSpecifier type;
+  // Every stride-th pixel of every stride-th row is decoded, see Sampling.
+  private int stride = 1;
+  // Whether the last decodeInto decoded in bands rather than rows.
+  private boolean decoded_in_bands = false;
+
+  private StreamingImageDecoder(byte[] encoded, int band_pixels) {
+    this.encoded = encoded;
+    this.band_pixels = band_pixels;
+  }
+
+  // Reads the header of encoded, returning null if no ImageReader
+  // recognizes it. At most band_pixels decoded pixels are resident at a
+  // time.
+  public static StreamingImageDecoder open(byte[] encoded, int band_pixels) throws IOException {
+    var decoder = new StreamingImageDecoder(encoded, band_pixels);
+    if (!decoder.openReader()) {
+      decoder.close();
+      return null;
+    }
+    decoder.width = decoder.reader.getWidth(0);
+    decoder.height = decoder.reader.getHeight(0);
+    // The reader's preferred type, as ImageIO.read would decode to.
+    Iterator<ImageTypeSpecifier> types = decoder.reader.getImageTypes(0);
+    if (!types.hasNext()) {
+      decoder.close();
+      throw new IIOException("No destination image type for the image");
+    }
+    decoder.type = types.next();
+    return decoder;
+  }
+
+  private boolean openReader() throws IOException {
+    close();
+    input = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded));
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+    if (!readers.hasNext()) {
+      return false;
+    }
+    reader = readers.next();
+    reader.setInput(input, true, true);
+    return true;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getPixelCount() {
+    return width * height;
+  }
+
+  // Decodes only every stride-th pixel of every stride-th row.
+  public void setSourceSubsampling(int stride) {
+    this.stride = stride;
+  }
+
+  public int getSourceSubsampling() {
+    return stride;
+  }
+
+  // Number of pixels decodeInto counts, given the subsampling.
+  public int getSampledPixelCount() {
+    return sampledWidth() * sampledHeight();
+  }
+
+  private int sampledWidth() {
+    return (width + stride - 1) / stride;
+  }
+
+  private int sampledHeight() {
+    return (height + stride - 1) / stride;
+  }
+
+  // Number of distinct colors the image can possibly contain if it is
+  // known from its ColorModel, otherwise -1.
+  public int getPaletteSize() {
+    final var color_model = type.getColorModel();
+    if (color_model instanceof IndexColorModel) {
+      return ((IndexColorModel) color_model).getMapSize();
+    }
+    return -1;
+  }
+
+  // Decodes the image, adding each pixel to counter.
+  public void decodeInto(ColorCounter counter) throws IOException {
+    decoded_in_bands = false;
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    if (ROW_FORMATS.contains(reader.getFormatName().toLowerCase(Locale.ROOT))) {
+      if (decodeRows(counter)) {
+        return;
+      }
+      counter.clear();
+      if (!openReader()) {
+        throw new IIOException("Image is no longer readable");
+      }
+    }
+    decoded_in_bands = true;
+    decodeBands(counter);
+  }
+
+  // Whether the last decodeInto fell back to decoding in bands.
+  boolean decodedInBands() {
+    return decoded_in_bands;
+  }
+
+  // Thrown to abort reading when a reader writes rows in an order the
+  // window can't follow.
+  private static class OutOfOrderException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    OutOfOrderException() {
+      super(null, null, false, false);
+    }
+  }
+
+  // A raster covering the whole image, but with storage only for a window
+  // of rows. Whole rows written to it are counted straight away, and the
+  // window then moves down to start at the next row, which is a matter
+  // of changing the translation from the raster's coordinates to its
+  // sample model's. width and height here are the raster's own, which
+  // are those of the image after subsampling.
+  private class RowWindowRaster extends WritableRaster {
+    private final ColorCounter counter;
+    private final PixelsFromImage window;
+    private final int window_rows;
+    private final int[] pixels;
+    private int next_row = 0;
+    // Next pixel of next_row for readers writing a pixel at a time.
+    private int next_column = 0;
+    // Writes made while handling another write aren't counted again.
+    private int depth = 0;
+
+    RowWindowRaster(BufferedImage window_image, Rectangle bounds, ColorCounter counter) {
+      super(window_image.getSampleModel(), window_image.getRaster().getDataBuffer(), bounds, new Point(0, 0), null);
+      this.counter = counter;
+      this.window = new PixelsFromImage(window_image);
+      this.window_rows = window_image.getHeight();
+      this.pixels = new int[window_rows * width];
+    }
+
+    private void checkWrite(int x, int y, int w, int h) {
+      if (depth > 0) {
+        return;
+      }
+      if (y == 0 && next_row == height) {
+        // Rows are being written again by a new pass over the image, and
+        // the last pass is the one that counts.
+        counter.clear();
+        next_row = 0;
+        sampleModelTranslateY = 0;
+      }
+      if (x != 0 || w != width || y != next_row || h > window_rows || next_column != 0) {
+        throw new OutOfOrderException();
+      }
+    }
+
+    private void rowsWritten(int h) {
+      if (depth > 0) {
+        return;
+      }
+      window.readRows(0, h, pixels, 0);
+      counter.add(pixels, 0, h * width);
+      next_row += h;
+      sampleModelTranslateY = next_row;
+    }
+
+    boolean isComplete() {
+      return next_row == height;
+    }
+
+    // Backing array of the window if it has byte samples interleaved
+    // within pixels, so that writes can be copied straight into it,
+    // otherwise null.
+    private byte[] byteData() {
+      if (!(getSampleModel() instanceof ComponentSampleModel) || !(getDataBuffer() instanceof DataBufferByte) ||
+          getDataBuffer().getNumBanks() != 1) {
+        return null;
+      }
+      return ((DataBufferByte) getDataBuffer()).getData();
+    }
+
+    // Copies rows from src if both it and the window have byte samples
+    // interleaved within pixels, returning false otherwise.
+    private boolean copyRows(int dx, int dy, Raster src) {
+      final byte[] data = byteData();
+      if (data == null || !(src.getSampleModel() instanceof ComponentSampleModel) ||
+          !(src.getDataBuffer() instanceof DataBufferByte) || src.getDataBuffer().getNumBanks() != 1 ||
+          src.getNumBands() != getNumBands()) {
+        return false;
+      }
+      final var sample_model = (ComponentSampleModel) getSampleModel();
+      final var src_model = (ComponentSampleModel) src.getSampleModel();
+      final var src_buffer = (DataBufferByte) src.getDataBuffer();
+      final byte[] src_data = src_buffer.getData();
+      final int src_width = src.getWidth();
+      final int src_stride = src_model.getPixelStride();
+      final int dst_stride = sample_model.getPixelStride();
+      final int[] src_bands = src_model.getBandOffsets();
+      final int[] dst_bands = sample_model.getBandOffsets();
+      final boolean same_layout = src_stride == dst_stride && Arrays.equals(src_bands, dst_bands);
+      final int src_x = src.getMinX() - src.getSampleModelTranslateX();
+      final int src_y = src.getMinY() - src.getSampleModelTranslateY();
+      final int dst_x = dx + src.getMinX() - sampleModelTranslateX;
+      final int dst_y = dy + src.getMinY() - sampleModelTranslateY;
+      for (int row = 0; row < src.getHeight(); ++row) {
+        int src_pos = src_buffer.getOffset() + (src_y + row) * src_model.getScanlineStride() + src_x * src_stride;
+        int dst_pos = getDataBuffer().getOffset() + (dst_y + row) * sample_model.getScanlineStride()
+          + dst_x * dst_stride;
+        if (same_layout) {
+          System.arraycopy(src_data, src_pos, data, dst_pos, src_width * src_stride);
+          continue;
+        }
+        // Typically RGB samples from the reader into a BGR window.
+        for (int x = 0; x < src_width; ++x, src_pos += src_stride, dst_pos += dst_stride) {
+          for (int band = 0; band < src_bands.length; ++band) {
+            data[dst_pos + dst_bands[band]] = src_data[src_pos + src_bands[band]];
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void setRect(int dx, int dy, Raster src) {
+      final int h = src.getHeight();
+      checkWrite(dx + src.getMinX(), dy + src.getMinY(), src.getWidth(), h);
+      if (depth > 0 || !copyRows(dx, dy, src)) {
+        ++depth;
+        try {
+          super.setRect(dx, dy, src);
+        } finally {
+          --depth;
+        }
+      }
+      rowsWritten(h);
+    }
+
+    private void checkPixelWrite(int x, int y) {
+      if (x == 0 && y == 0 && next_row == height) {
+        checkWrite(0, 0, width, 1);
+      }
+      if (x != next_column || y != next_row) {
+        throw new OutOfOrderException();
+      }
+    }
+
+    private void pixelWritten() {
+      if (++next_column == width) {
+        next_column = 0;
+        rowsWritten(1);
+      }
+    }
+
+    @Override
+    public void setPixel(int x, int y, int[] samples) {
+      if (depth > 0) {
+        super.setPixel(x, y, samples);
+        return;
+      }
+      checkPixelWrite(x, y);
+      ++depth;
+      try {
+        super.setPixel(x, y, samples);
+      } finally {
+        --depth;
+      }
+      pixelWritten();
+    }
+
+    // Single band images only, as a pixel of several bands takes several
+    // writes.
+    @Override
+    public void setSample(int x, int y, int band, int sample) {
+      if (depth > 0) {
+        super.setSample(x, y, band, sample);
+        return;
+      }
+      if (getNumBands() != 1) {
+        throw new OutOfOrderException();
+      }
+      checkPixelWrite(x, y);
+      ++depth;
+      try {
+        super.setSample(x, y, band, sample);
+      } finally {
+        --depth;
+      }
+      pixelWritten();
+    }
+
+    @Override
+    public void setDataElements(int x, int y, int w, int h, Object data) {
+      checkWrite(x, y, w, h);
+      final byte[] window_data = byteData();
+      if (depth == 0 && window_data != null && data instanceof byte[] &&
+          ((ComponentSampleModel) getSampleModel()).getPixelStride() == 1 && getNumBands() == 1) {
+        // Single byte samples, as in indexed and gray images.
+        final var sample_model = (ComponentSampleModel) getSampleModel();
+        for (int row = 0; row < h; ++row) {
+          System.arraycopy(data, row * w,
+              window_data,
+              getDataBuffer().getOffset() + (y + row - sampleModelTranslateY) * sample_model.getScanlineStride()
+                + x - sampleModelTranslateX + sample_model.getBandOffsets()[0],
+              w);
+        }
+      } else {
+        ++depth;
+        try {
+          super.setDataElements(x, y, w, h, data);
+        } finally {
+          --depth;
+        }
+      }
+      rowsWritten(h);
+    }
+  }
+
+  // Decodes through a window of rows, returning false if the reader
+  // didn't write the rows in order.
+  private boolean decodeRows(ColorCounter counter) throws IOException {
+    final int sampled_width = sampledWidth();
+    final int sampled_height = sampledHeight();
+    final BufferedImage window_image = type.createBufferedImage(sampled_width,
+        Math.max(1, Math.min(sampled_height, ROW_WINDOW_PIXELS / sampled_width)));
+    final var raster = new RowWindowRaster(window_image, new Rectangle(0, 0, sampled_width, sampled_height), counter);
+    final BufferedImage destination;
+    try {
+      destination = new BufferedImage(window_image.getColorModel(), raster, window_image.isAlphaPremultiplied(),
+          null);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+
+    final ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(destination);
+    param.setSourceSubsampling(stride, stride, 0, 0);
+    try {
+      reader.read(0, param);
+    } catch (OutOfOrderException e) {
+      return false;
+    } catch (IIOException e) {
+      // Some readers wrap exceptions thrown while writing rows.
+      if (e.getCause() instanceof OutOfOrderException) {
+        return false;
+      }
+      throw e;
+    }
+    return raster.isComplete();
+  }
+
+  // Decodes the image in bands of rows, each read separately.
+  private void decodeBands(ColorCounter counter) throws IOException {
+    final int sampled_width = sampledWidth();
+    final int sampled_height = sampledHeight();
+    final int band_rows = Math.max(1, Math.min(sampled_height, band_pixels / sampled_width));
+    final int[] pixels = new int[band_rows * sampled_width];
+    for (int y = 0; y < sampled_height; y += band_rows) {
+      final int rows = Math.min(band_rows, sampled_height - y);
+      final ImageReadParam param = reader.getDefaultReadParam();
+      // Bands start on a sampled row, so the subsampling grid lines up.
+      final int source_y = y * stride;
+      param.setSourceRegion(new Rectangle(0, source_y, width, Math.min(rows * stride, height - source_y)));
+      param.setSourceSubsampling(stride, stride, 0, 0);
+      final BufferedImage band = reader.read(0, param);
+      new PixelsFromImage(band).readRows(0, rows, pixels, 0);
+      counter.add(pixels, 0, rows * sampled_width);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.dispose();
+      reader = null;
+    }
+    if (input != null) {
+      input.close();
+      input = null;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package com.github.tempoz.pexercise;
+
+import java.util.concurrent.ThreadFactory;
+
+// Creates virtual threads where the runtime supports them (Java 21 and
+// later). They are looked up reflectively so that the program still
+// builds and runs on older runtimes, where platform threads are used
+// instead.
+public class VirtualThreads {
+  private static final ThreadFactory virtual_factory = lookUpFactory();
+
+  private static ThreadFactory lookUpFactory() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  public static boolean isSupported() {
+    return virtual_factory != null;
+  }
+
+  // Factory for virtual threads, or for platform threads if they aren't
+  // supported.
+  public static ThreadFactory factory() {
+    if (virtual_factory != null) {
+      return virtual_factory;
+    }
+    return runnable -> new Thread(runnable);
+  }
+}
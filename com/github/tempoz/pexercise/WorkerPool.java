@@ -0,0 +1,85 @@
+package com.github.tempoz.pexercise;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+// The threads of one stage, which PoolAutoscaler may grow and shrink
+// while the pipeline runs. Workers retire cleanly between items when
+// asked to, so a shrinking pool doesn't depend on the poison pill.
+public class WorkerPool {
+  // How often idle workers check whether they have been asked to retire.
+  public static final long RETIRE_CHECK_MS = 100;
+
+  public interface Worker extends Runnable {
+    // Asks the worker to return from run once it is done with the item
+    // it is working on, if any.
+    void retire();
+
+    // Nanoseconds spent working on items so far, including the item it
+    // is working on.
+    long busyNanos();
+  }
+
+  private final Supplier<Worker> factory;
+  private final ThreadFactory thread_factory;
+  // Workers that haven't been asked to retire, oldest first.
+  private final ArrayList<Worker> active = new ArrayList<>();
+  // Every worker and thread ever started, for busyNanos and join.
+  private final ArrayList<Worker> started = new ArrayList<>();
+  private final ArrayList<Thread> threads = new ArrayList<>();
+  private boolean closed = false;
+
+  public WorkerPool(Supplier<Worker> factory, ThreadFactory thread_factory, int size) {
+    this.factory = factory;
+    this.thread_factory = thread_factory;
+    for (int i = 0; i < size; ++i) {
+      grow();
+    }
+  }
+
+  // Starts another worker, unless the pool is closed.
+  public synchronized void grow() {
+    if (closed) {
+      return;
+    }
+    final Worker worker = factory.get();
+    final Thread thread = thread_factory.newThread(worker);
+    active.add(worker);
+    started.add(worker);
+    threads.add(thread);
+    thread.start();
+  }
+
+  // Retires the newest worker, unless it is the last.
+  public synchronized void shrink() {
+    if (active.size() > 1) {
+      active.remove(active.size() - 1).retire();
+    }
+  }
+
+  public synchronized int size() {
+    return active.size();
+  }
+
+  public synchronized long busyNanos() {
+    long busy = 0;
+    for (Worker worker : started) {
+      busy += worker.busyNanos();
+    }
+    return busy;
+  }
+
+  // Stops the pool from growing and waits for every worker to return,
+  // which they do once they take the poison pill.
+  public void join() throws InterruptedException {
+    final ArrayList<Thread> to_join;
+    synchronized (this) {
+      closed = true;
+      to_join = new ArrayList<>(threads);
+    }
+    for (Thread thread : to_join) {
+      thread.join();
+    }
+  }
+}